@@ -0,0 +1,76 @@
+package com.riverssen.veras;
+
+import java.util.concurrent.atomic.LongAdder;
+
+//// Kernel wide resource counters.
+//// Every core (or process thread) adds to its own striped cell, the cells are only
+//// summed when a counter is read, so accounting never contends between cores.
+public class Accounting {
+    private final LongAdder instructions;
+    private final LongAdder wallNanos;
+    private final LongAdder allocations;
+    private final LongAdder allocatedBytes;
+    private final LongAdder descheduled;
+    private final LongAdder killed;
+
+    public Accounting()
+    {
+        this.instructions   = new LongAdder();
+        this.wallNanos      = new LongAdder();
+        this.allocations    = new LongAdder();
+        this.allocatedBytes = new LongAdder();
+        this.descheduled    = new LongAdder();
+        this.killed         = new LongAdder();
+    }
+
+    //// one quantum of a process.
+    protected void quantum(long instructions, long wallNanos)
+    {
+        this.instructions.add(instructions);
+        this.wallNanos.add(wallNanos);
+    }
+
+    protected void allocated(int bytes)
+    {
+        allocations.increment();
+        allocatedBytes.add(bytes);
+    }
+
+    protected void enforced(final ProcessQuota.Action action)
+    {
+        (action == ProcessQuota.Action.KILL ? killed : descheduled).increment();
+    }
+
+    public long getInstructionsRetired()
+    {
+        return instructions.sum();
+    }
+
+    //// time processes spent on a core, summed over all cores.
+    public long getWallTime()
+    {
+        return wallNanos.sum();
+    }
+
+    public long getAllocations()
+    {
+        return allocations.sum();
+    }
+
+    public long getAllocatedBytes()
+    {
+        return allocatedBytes.sum();
+    }
+
+    //// processes hung for going over their quota.
+    public long getDescheduled()
+    {
+        return descheduled.sum();
+    }
+
+    //// processes halted for going over their quota.
+    public long getKilled()
+    {
+        return killed.sum();
+    }
+}
@@ -0,0 +1,340 @@
+package com.riverssen.veras;
+
+import com.riverssen.veras.exceptions.MemoryException;
+import com.riverssen.veras.exceptions.ProcessException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//// Admission state of a kernel: the spawn token bucket, the callers waiting to be
+//// admitted and the queue of pending spawns.
+////
+//// Waiters are signalled when a process halts and re-check every RECHECK, memory is
+//// also freed without a halt. Pending spawns are started in order when a process
+//// halts or, while a limit is still hit, by a kernel timer.
+//// An admitted process holds a reservation of its slot and footprint from the check
+//// until it was created (or failed to be), so concurrent admissions cannot all pass
+//// a check that only one of them fits.
+final class Admission {
+    //// memory a new process allocates up front: heap, value stack and frame table.
+    static final long               FOOTPRINT   = Heap.DEFAULT_SIZE + Stack.DEFAULT_SIZE + Stack.FRAME_TABLE_SIZE;
+    private static final long       RECHECK     = 10;
+
+    private final KernelImpl        kernel;
+    private final ReentrantLock     lock;
+    private final Condition         released;
+    private final Deque<Pending>    pending;
+    private volatile AdmissionControl control;
+    private double                  tokens;
+    private long                    refilledAt;
+    private boolean                 drainScheduled;
+    private boolean                 closed;
+    private int                     reservedProcesses;
+    private long                    reservedBytes;
+
+    Admission(final KernelImpl kernel)
+    {
+        this.kernel     = kernel;
+        this.lock       = new ReentrantLock();
+        this.released   = lock.newCondition();
+        this.pending    = new ArrayDeque<>();
+        this.control    = AdmissionControl.NONE;
+    }
+
+    AdmissionControl getControl()
+    {
+        return control;
+    }
+
+    //// the bucket starts full.
+    void setControl(final AdmissionControl control)
+    {
+        lock.lock();
+        try {
+            this.control    = control;
+            this.tokens     = control.getBurst();
+            this.refilledAt = kernel.getTimerService().now();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        drain();
+    }
+
+    int getPending()
+    {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //// creates a process if it is admitted right now.
+    //// throws exception if it is not.
+    Process admit(final Process parent) throws MemoryException
+    {
+        lock.lock();
+        try {
+            String refusal = refusal(1, FOOTPRINT);
+            if (refusal != null)
+                throw new MemoryException("process not admitted: " + refusal + ".");
+        } finally {
+            lock.unlock();
+        }
+
+        return create(parent);
+    }
+
+    //// admits count processes needing bytes of memory in all, or none of them.
+    //// the caller creates them and then calls created(count, bytes) either way.
+    //// throws exception if they are not admitted.
+    void admit(int count, long bytes) throws MemoryException
+    {
+        lock.lock();
+        try {
+            String refusal = refusal(count, bytes);
+            if (refusal != null)
+                throw new MemoryException(count + " processes not admitted: " + refusal + ".");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //// waits up to timeout (forever if negative) for the process to be admitted.
+    //// returns null if the timeout elapsed first.
+    Process admit(final Process parent, long timeout, final TimeUnit unit) throws MemoryException, InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        lock.lockInterruptibly();
+        try {
+            while (refusal(1, FOOTPRINT) != null)
+            {
+                long wait = TimeUnit.MILLISECONDS.toNanos(Math.max(RECHECK, tokenDelay()));
+                if (timeout >= 0)
+                {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        return null;
+                    wait = Math.min(wait, remaining);
+                }
+                released.awaitNanos(wait);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return create(parent);
+    }
+
+    //// drops the reservation of admitted processes once they exist or failed to.
+    void created(int count, long bytes)
+    {
+        lock.lock();
+        try {
+            reservedProcesses  -= count;
+            reservedBytes      -= bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Process create(final Process parent) throws MemoryException
+    {
+        try {
+            return kernel.createProcess(parent);
+        } finally {
+            created(1, FOOTPRINT);
+        }
+    }
+
+    //// starts the program in a new process once it is admitted.
+    //// the future fails if the pending queue is full or the process cannot be created.
+    CompletableFuture<Process> submit(final Process parent, final byte program[])
+    {
+        CompletableFuture<Process> future = new CompletableFuture<>();
+
+        lock.lock();
+        try {
+            if (closed)
+            {
+                future.completeExceptionally(new MemoryException("kernel halted."));
+                return future;
+            }
+
+            ////earlier submissions go first.
+            if (!pending.isEmpty() || refusal(1, FOOTPRINT) != null)
+            {
+                if (pending.size() >= control.getPendingCapacity())
+                    future.completeExceptionally(new MemoryException("pending spawn queue is full."));
+                else
+                {
+                    pending.add(new Pending(parent, program, future));
+                    scheduleDrain();
+                }
+                return future;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        spawn(new Pending(parent, program, future));
+        return future;
+    }
+
+    //// a process halted, wakes waiters and starts pending spawns.
+    void released()
+    {
+        if (control == AdmissionControl.NONE)
+            return;
+
+        lock.lock();
+        try {
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        drain();
+    }
+
+    //// fails every pending spawn.
+    void close()
+    {
+        Pending abandoned[];
+        lock.lock();
+        try {
+            closed      = true;
+            abandoned   = pending.toArray(new Pending[0]);
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+
+        for (Pending spawn : abandoned)
+            spawn.future.completeExceptionally(new MemoryException("kernel halted."));
+    }
+
+    private void drain()
+    {
+        while (true)
+        {
+            Pending next;
+            lock.lock();
+            try {
+                if (pending.isEmpty())
+                    return;
+
+                if (refusal(1, FOOTPRINT) != null)
+                {
+                    scheduleDrain();
+                    return;
+                }
+
+                next = pending.poll();
+            } finally {
+                lock.unlock();
+            }
+
+            spawn(next);
+        }
+    }
+
+    private void spawn(final Pending spawn)
+    {
+        Process process = null;
+        try {
+            process = create(spawn.parent);
+            process.setProgram(spawn.program);
+            kernel.executeProcess(process);
+            spawn.future.complete(process);
+        } catch (MemoryException | ProcessException e) {
+            if (process != null)
+                kernel.haltProcess(process);
+            spawn.future.completeExceptionally(e);
+        }
+    }
+
+    //// lock held.
+    private void scheduleDrain()
+    {
+        if (drainScheduled || closed)
+            return;
+
+        drainScheduled = true;
+        kernel.getTimerService().scheduleAfter(Math.max(RECHECK, tokenDelay()), () -> {
+            lock.lock();
+            try {
+                drainScheduled = false;
+            } finally {
+                lock.unlock();
+            }
+
+            drain();
+        });
+    }
+
+    //// returns null, takes count spawn tokens and reserves count processes and bytes if
+    //// they may be created now, otherwise the limit that is hit. lock held.
+    private String refusal(int count, long bytes)
+    {
+        AdmissionControl control = this.control;
+        if (closed)
+            return "kernel halted";
+        if ((long) kernel.getLiveProcesses() + reservedProcesses + count > Math.min(control.getMaxLive(), kernel.getMaxLiveProcesses()))
+            return "too many live processes";
+        if (control != AdmissionControl.NONE)
+        {
+            if (kernel.getMemoryHeadroom() - reservedBytes - bytes < control.getMinHeadroom())
+                return "not enough memory headroom";
+            if (control.getSpawnsPerSecond() != AdmissionControl.UNLIMITED)
+            {
+                refill(control);
+                if (tokens < count)
+                    return "spawn rate exceeded";
+
+                tokens -= count;
+            }
+        }
+
+        reservedProcesses  += count;
+        reservedBytes      += bytes;
+        return null;
+    }
+
+    private void refill(final AdmissionControl control)
+    {
+        long now    = kernel.getTimerService().now();
+        tokens      = Math.min(control.getBurst(), tokens + (now - refilledAt) * control.getSpawnsPerSecond() / 1000.0);
+        refilledAt  = now;
+    }
+
+    //// milliseconds until the next spawn token, lock held.
+    private long tokenDelay()
+    {
+        AdmissionControl control = this.control;
+        if (control.getSpawnsPerSecond() == AdmissionControl.UNLIMITED || tokens >= 1)
+            return 0;
+        return (long) Math.ceil((1 - tokens) * 1000.0 / control.getSpawnsPerSecond());
+    }
+
+    private static final class Pending {
+        private final Process                       parent;
+        private final byte                          program[];
+        private final CompletableFuture<Process>    future;
+
+        private Pending(final Process parent, final byte program[], final CompletableFuture<Process> future)
+        {
+            this.parent     = parent;
+            this.program    = program;
+            this.future     = future;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.riverssen.veras;
+
+//// Limits a kernel checks before it creates a process for the host.
+////
+//// A process is admitted while the kernel has fewer than maxLive live processes, at
+//// least minHeadroom bytes of memory would be left after its heap and stacks are
+//// allocated, and a spawn token is available. Tokens refill at spawnsPerSecond up to
+//// burst. Spawns submitted while a limit is hit wait in a queue of pendingCapacity.
+public final class AdmissionControl {
+    public static final int                 UNLIMITED   = Integer.MAX_VALUE;
+    public static final AdmissionControl    NONE        = new AdmissionControl(UNLIMITED, 0, UNLIMITED, 1, 0);
+
+    private final int       maxLive;
+    private final long      minHeadroom;
+    private final int       spawnsPerSecond;
+    private final int       burst;
+    private final int       pendingCapacity;
+
+    public AdmissionControl(int maxLive, long minHeadroom, int spawnsPerSecond, int burst, int pendingCapacity)
+    {
+        if (maxLive <= 0 || minHeadroom < 0 || spawnsPerSecond <= 0 || burst <= 0 || pendingCapacity < 0)
+            throw new IllegalArgumentException("invalid admission limits.");
+
+        this.maxLive            = maxLive;
+        this.minHeadroom        = minHeadroom;
+        this.spawnsPerSecond    = spawnsPerSecond;
+        this.burst              = burst;
+        this.pendingCapacity    = pendingCapacity;
+    }
+
+    //// processes created and not halted yet, running or blocked.
+    public int getMaxLive()
+    {
+        return maxLive;
+    }
+
+    //// free memory (below the kernel's memory quota) left after a new process.
+    public long getMinHeadroom()
+    {
+        return minHeadroom;
+    }
+
+    public int getSpawnsPerSecond()
+    {
+        return spawnsPerSecond;
+    }
+
+    public int getBurst()
+    {
+        return burst;
+    }
+
+    public int getPendingCapacity()
+    {
+        return pendingCapacity;
+    }
+}
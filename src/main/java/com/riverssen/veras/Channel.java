@@ -0,0 +1,245 @@
+package com.riverssen.veras;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//// Bounded lock-free inter-process channel of 64bit words.
+////
+//// Processes that find the channel empty (or full) register themselves as waiters
+//// and hang, the next successful send (or receive) wakes one of them directly so
+//// blocked processes are never polled by their SharedProcess.
+public abstract class Channel {
+    public static final int SPSC = 0, MPSC = 1, MPMC = 2;
+    //// the most words a channel buffers, larger requests are refused.
+    public static final int MAX_CAPACITY = 1 << 20;
+
+    private final int                   id;
+    private final Queue<Process>        receivers;
+    private final Queue<Process>        senders;
+    private final AtomicBoolean         closed;
+    ////the processes using the sides of an SPSC channel, -1 until one is used.
+    private final AtomicInteger         sender;
+    private final AtomicInteger         receiver;
+    private int                         owner;
+
+    protected Channel(final int id)
+    {
+        this.id         = id;
+        this.receivers  = new ConcurrentLinkedQueue<>();
+        this.senders    = new ConcurrentLinkedQueue<>();
+        this.closed     = new AtomicBoolean(false);
+        this.sender     = new AtomicInteger(-1);
+        this.receiver   = new AtomicInteger(-1);
+        this.owner      = -1;
+    }
+
+    public static Channel create(int id, int kind, int capacity)
+    {
+        if (capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("channel capacity '" + capacity + "' exceeds " + MAX_CAPACITY + ".");
+
+        switch (kind) {
+            case SPSC: return new SpscChannel(id, capacity);
+            case MPSC: return new MpscChannel(id, capacity);
+            case MPMC: return new MpmcChannel(id, capacity);
+            default:
+                throw new IllegalArgumentException("unknown channel kind '" + kind + "'.");
+        }
+    }
+
+    //// rounds the requested capacity up to a power of two, at most MAX_CAPACITY.
+    protected static int capacityOf(int capacity)
+    {
+        if (capacity <= 1)
+            return 2;
+        return Integer.highestOneBit(Math.min(capacity, MAX_CAPACITY) - 1) << 1;
+    }
+
+    //// writes the channel and the words buffered in it to a kernel image.
+    //// waiters are not kept, a restored process re-registers when it retries its
+    //// blocking instruction. the channel must not be used while it is written.
+    void write(final DataOutputStream out) throws IOException
+    {
+        out.writeInt(id);
+        out.writeInt(getKind());
+        out.writeInt(capacity());
+        out.writeInt(owner);
+        out.writeInt(sender.get());
+        out.writeInt(receiver.get());
+        out.writeBoolean(isClosed());
+
+        long words[]    = new long[capacity()];
+        int count       = dequeue(words, 0, words.length);
+        enqueue(words, 0, count);
+
+        out.writeInt(count);
+        for (int i = 0; i < count; i ++)
+            out.writeLong(words[i]);
+    }
+
+    static Channel read(final DataInputStream in) throws IOException
+    {
+        Channel channel = create(in.readInt(), in.readInt(), in.readInt());
+        channel.owner   = in.readInt();
+        channel.sender.set(in.readInt());
+        channel.receiver.set(in.readInt());
+        channel.closed.set(in.readBoolean());
+
+        for (int i = in.readInt(); i > 0; i --)
+            channel.enqueue(in.readLong());
+
+        return channel;
+    }
+
+    public abstract int getKind();
+    public abstract int capacity();
+    protected abstract boolean enqueue(long value);
+    protected abstract boolean dequeue(long dst[], int index);
+    public abstract boolean isEmpty();
+    public abstract boolean isFull();
+
+    //// batched variants, implementations may publish the whole batch at once.
+    protected int enqueue(long src[], int offset, int length)
+    {
+        int i = 0;
+        while (i < length && enqueue(src[offset + i]))
+            i ++;
+        return i;
+    }
+
+    protected int dequeue(long dst[], int offset, int length)
+    {
+        int i = 0;
+        while (i < length && dequeue(dst, offset + i))
+            i ++;
+        return i;
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    //// the pid of the process that opened the channel, -1 if the host opened it.
+    public int getOwner()
+    {
+        return owner;
+    }
+
+    void setOwner(int owner)
+    {
+        this.owner = owner;
+    }
+
+    //// each side of an SPSC channel belongs to the first process that uses it, false for
+    //// any other process. other kinds take any number of processes, the host is not checked.
+    boolean bindSender(int processID)
+    {
+        return getKind() != SPSC || bind(sender, processID);
+    }
+
+    boolean bindReceiver(int processID)
+    {
+        return getKind() != SPSC || bind(receiver, processID);
+    }
+
+    private static boolean bind(final AtomicInteger side, int processID)
+    {
+        return side.compareAndSet(-1, processID) || side.get() == processID;
+    }
+
+    public boolean offer(long value)
+    {
+        if (closed.get() || !enqueue(value))
+            return false;
+
+        wakeOne(receivers);
+        return true;
+    }
+
+    public int offer(long src[], int offset, int length)
+    {
+        if (closed.get())
+            return 0;
+
+        int sent = enqueue(src, offset, length);
+        if (sent > 0)
+            wakeOne(receivers);
+        return sent;
+    }
+
+    public boolean poll(long dst[], int index)
+    {
+        if (!dequeue(dst, index))
+            return false;
+
+        wakeOne(senders);
+        return true;
+    }
+
+    public int poll(long dst[], int offset, int length)
+    {
+        int received = dequeue(dst, offset, length);
+        if (received > 0)
+            wakeOne(senders);
+        return received;
+    }
+
+    //// hangs the process until the channel has data or is closed.
+    public void awaitReceive(final Process process)
+    {
+        process.hang();
+        receivers.add(process);
+
+        //// a sender may have slipped in before we were registered.
+        if (!isEmpty() || isClosed())
+            wakeAll(receivers);
+    }
+
+    //// hangs the process until the channel has room or is closed.
+    public void awaitSend(final Process process)
+    {
+        process.hang();
+        senders.add(process);
+
+        if (!isFull() || isClosed())
+            wakeAll(senders);
+    }
+
+    //// unregisters a receiver whose wait timed out.
+    public void cancelReceive(final Process process)
+    {
+        receivers.remove(process);
+    }
+
+    public void close()
+    {
+        closed.set(true);
+        wakeAll(receivers);
+        wakeAll(senders);
+    }
+
+    public boolean isClosed()
+    {
+        return closed.get();
+    }
+
+    private static void wakeOne(Queue<Process> waiters)
+    {
+        Process process = waiters.poll();
+        if (process != null)
+            process.wake();
+    }
+
+    private static void wakeAll(Queue<Process> waiters)
+    {
+        Process process;
+        while ((process = waiters.poll()) != null)
+            process.wake();
+    }
+}
@@ -0,0 +1,572 @@
+package com.riverssen.veras;
+
+import com.riverssen.veras.exceptions.ProcessException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//// A kernel's membership in a cluster of kernels, over non-blocking NIO.
+////
+//// One selector thread owns every connection. Nodes exchange length prefixed frames:
+////   HELLO    node id
+////   LOAD     runnable processes, broadcast every LOAD_INTERVAL milliseconds
+////   SPAWN    batch of (request id, checkpoint) of processes to run
+////   SPAWNED  batch of (request id, pid or -1)
+////   EXIT     request id, exit code
+//// OP_PRCE asks place() before scheduling a process locally. If a peer reported a load
+//// lower than ours by more than IMBALANCE, the process is checkpointed and queued for
+//// that peer. Spawns queued between two selector wakeups share one frame.
+//// The guest keeps its local pid, which stays joinable: the exit future completes
+//// once the peer reports the remote process' exit. A refused spawn, or one whose frame
+//// never fully left before the peer was lost, runs the process locally. A spawn the
+//// lost peer may have started is not run again, its exit completes with -1 like the
+//// exits of processes already moved.
+public class ClusterNode implements Runnable {
+    static final byte               HELLO           = 1;
+    static final byte               LOAD            = 2;
+    static final byte               SPAWN           = 3;
+    static final byte               SPAWNED         = 4;
+    static final byte               EXIT            = 5;
+
+    public static final int         LOAD_INTERVAL   = 50;
+    public static final int         IMBALANCE       = 2;
+    private static final int        MAX_FRAME       = 64 * 1024 * 1024;
+
+    private final KernelImpl            kernel;
+    private final int                   nodeID;
+    private final Selector              selector;
+    private final ServerSocketChannel   server;
+    private final Queue<Runnable>       commands;
+    private final List<Peer>            peers;
+    private final AtomicLong            requestIDs;
+    private final AtomicInteger         localLoad;
+    private final AtomicBoolean         running;
+    private Thread                      thread;
+    private long                        reported;
+
+    public ClusterNode(final KernelImpl kernel, int nodeID, InetSocketAddress address) throws IOException
+    {
+        this.kernel     = kernel;
+        this.nodeID     = nodeID;
+        this.selector   = Selector.open();
+        this.server     = ServerSocketChannel.open();
+        this.commands   = new ConcurrentLinkedQueue<>();
+        this.peers      = new CopyOnWriteArrayList<>();
+        this.requestIDs = new AtomicLong(1);
+        this.localLoad  = new AtomicInteger(0);
+        this.running    = new AtomicBoolean(false);
+
+        server.configureBlocking(false);
+        server.bind(address);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getNodeID()
+    {
+        return nodeID;
+    }
+
+    public InetSocketAddress getAddress() throws IOException
+    {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    //// node ids of the connected peers that introduced themselves.
+    public List<Integer> getPeers()
+    {
+        List<Integer> nodes = new ArrayList<>();
+        for (Peer peer : peers)
+            if (peer.nodeID >= 0)
+                nodes.add(peer.nodeID);
+        return nodes;
+    }
+
+    public void start()
+    {
+        if (!running.compareAndSet(false, true))
+            return;
+
+        thread = new Thread(this, "veras-cluster-" + nodeID);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop()
+    {
+        if (!running.compareAndSet(true, false))
+            return;
+        selector.wakeup();
+    }
+
+    //// connects to another node, the connection is completed by the selector thread.
+    public void connect(final InetSocketAddress address) throws IOException
+    {
+        final SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        commands.add(() -> {
+            try {
+                Peer peer = new Peer(channel);
+                if (channel.connect(address))
+                    connected(peer);
+                else
+                    peer.key = channel.register(selector, SelectionKey.OP_CONNECT, peer);
+            } catch (IOException e) {
+                close(channel);
+            }
+        });
+        selector.wakeup();
+    }
+
+    //// decides where a process that is about to be executed runs.
+    //// returns true if it was handed to a peer, false if it has to be scheduled here.
+    public boolean place(final Process process)
+    {
+        if (!running.get() || process.isScheduled() || process.getProgram() == 0 || process.halted())
+            return false;
+
+        Peer target = null;
+        for (Peer peer : peers)
+            if (peer.nodeID >= 0 && (target == null || peer.load.get() < target.load.get()))
+                target = peer;
+
+        if (target == null || localLoad.get() - target.load.get() <= IMBALANCE)
+        {
+            localLoad.incrementAndGet();
+            return false;
+        }
+
+        ////the process has not run yet, a single round carries all of it.
+        ProcessCheckpoint checkpoint    = new ProcessCheckpoint(kernel, process);
+        ByteArrayOutputStream image     = new ByteArrayOutputStream();
+        try {
+            checkpoint.commit(new DataOutputStream(image));
+        } catch (IOException | ProcessException e) {
+            checkpoint.abort();
+            localLoad.incrementAndGet();
+            return false;
+        }
+
+        target.load.incrementAndGet();
+        target.spawns.add(new Spawn(requestIDs.getAndIncrement(), process, checkpoint, image.toByteArray()));
+        selector.wakeup();
+        return true;
+    }
+
+    public void run()
+    {
+        try {
+            while (running.get())
+            {
+                selector.select(LOAD_INTERVAL);
+
+                Runnable command;
+                while ((command = commands.poll()) != null)
+                    command.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    dispatch(key);
+                }
+
+                long now = System.nanoTime();
+                if (now - reported >= TimeUnit.MILLISECONDS.toNanos(LOAD_INTERVAL))
+                {
+                    reported = now;
+                    localLoad.set(kernel.getLoad());
+                    for (Peer peer : peers)
+                        send(peer, load());
+                }
+
+                for (Peer peer : peers)
+                {
+                    flushSpawns(peer);
+                    if (peer.key != null && peer.key.isValid() && (peer.key.interestOps() & SelectionKey.OP_CONNECT) == 0)
+                        peer.key.interestOps(peer.writing != null || !peer.out.isEmpty() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                }
+            }
+        } catch (IOException e) {
+        } finally {
+            for (Peer peer : peers)
+                disconnect(peer);
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void dispatch(final SelectionKey key)
+    {
+        if (!key.isValid())
+            return;
+
+        try {
+            if (key.isAcceptable())
+            {
+                SocketChannel channel = server.accept();
+                if (channel == null)
+                    return;
+
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Peer peer   = new Peer(channel);
+                peer.key    = channel.register(selector, SelectionKey.OP_READ, peer);
+                introduce(peer);
+                return;
+            }
+
+            Peer peer = (Peer) key.attachment();
+            try {
+                if (key.isConnectable())
+                {
+                    peer.channel.finishConnect();
+                    connected(peer);
+                    return;
+                }
+                if (key.isReadable())
+                    read(peer);
+                if (key.isValid() && key.isWritable())
+                    write(peer);
+            } catch (IOException e) {
+                disconnect(peer);
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    private void connected(final Peer peer) throws IOException
+    {
+        peer.key = peer.channel.register(selector, SelectionKey.OP_READ, peer);
+        introduce(peer);
+    }
+
+    private void introduce(final Peer peer)
+    {
+        peers.add(peer);
+
+        ByteBuffer hello = frame(HELLO, 4);
+        hello.putInt(nodeID);
+        send(peer, hello);
+        send(peer, load());
+    }
+
+    private void read(final Peer peer) throws IOException
+    {
+        if (peer.channel.read(peer.in) < 0)
+            throw new EOFException();
+
+        peer.in.flip();
+        while (peer.in.remaining() >= 4)
+        {
+            int length = peer.in.getInt(peer.in.position());
+            if (length <= 0 || length > MAX_FRAME)
+                throw new IOException("malformed frame of '" + length + "' bytes.");
+
+            if (peer.in.remaining() < 4 + length)
+            {
+                if (peer.in.capacity() < 4 + length)
+                {
+                    ByteBuffer grown = ByteBuffer.allocate(4 + length);
+                    grown.put(peer.in);
+                    peer.in = grown;
+                    return;
+                }
+                break;
+            }
+
+            peer.in.getInt();
+            ByteBuffer frame = peer.in.slice();
+            frame.limit(length);
+            peer.in.position(peer.in.position() + length);
+
+            ////a frame shorter than its type says drops the peer, not the selector thread.
+            try {
+                receive(peer, frame);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("truncated frame.");
+            }
+        }
+        peer.in.compact();
+    }
+
+    private void write(final Peer peer) throws IOException
+    {
+        while (true)
+        {
+            if (peer.writing == null)
+                peer.writing = peer.out.poll();
+            if (peer.writing == null)
+                return;
+
+            peer.channel.write(peer.writing);
+            if (peer.writing.hasRemaining())
+                return;
+            peer.writing = null;
+        }
+    }
+
+    private void receive(final Peer peer, final ByteBuffer frame) throws IOException
+    {
+        switch (frame.get()) {
+            case HELLO:
+                peer.nodeID = frame.getInt();
+                break;
+            case LOAD:
+                peer.load.set(frame.getInt());
+                break;
+            case SPAWN:
+                spawn(peer, frame);
+                break;
+            case SPAWNED:
+                for (int i = frame.getInt(); i > 0; i --)
+                    spawned(peer, frame.getLong(), frame.getInt());
+                break;
+            case EXIT: {
+                CompletableFuture<Long> exit = peer.remote.remove(frame.getLong());
+                long code = frame.getLong();
+                if (exit != null)
+                    exit.complete(code);
+                break;
+            }
+            default:
+                throw new IOException("unknown frame type.");
+        }
+    }
+
+    //// imports a batch of processes and answers with one SPAWNED frame.
+    //// throws exception if the frame is malformed, an image that cannot be imported is refused.
+    private void spawn(final Peer peer, final ByteBuffer frame) throws IOException
+    {
+        int count           = frame.getInt();
+        if (count < 0 || count > frame.remaining() / 12)
+            throw new IOException("malformed spawn frame of '" + count + "' processes.");
+
+        ////the whole frame is checked first, a malformed one imports nothing.
+        int start = frame.position();
+        for (int i = 0; i < count; i ++)
+        {
+            frame.getLong();
+            int length = frame.getInt();
+            if (length < 0 || length > frame.remaining())
+                throw new IOException("malformed spawn image of '" + length + "' bytes.");
+            frame.position(frame.position() + length);
+        }
+        frame.position(start);
+
+        ByteBuffer reply    = frame(SPAWNED, 4 + count * 12);
+        reply.putInt(count);
+
+        for (int i = 0; i < count; i ++)
+        {
+            final long requestID    = frame.getLong();
+            byte image[]            = new byte[frame.getInt()];
+            frame.get(image);
+
+            ProcessImport processImport = new ProcessImport(kernel, null);
+            int processID = -1;
+            try {
+                if (processImport.read(new DataInputStream(new ByteArrayInputStream(image))))
+                {
+                    processID = processImport.getProcess().getProcessID();
+                    processImport.getProcess().getExitFuture().whenComplete((code, error) -> {
+                        ByteBuffer exit = frame(EXIT, 16);
+                        exit.putLong(requestID);
+                        exit.putLong(code == null ? -1L : code);
+                        send(peer, exit);
+                        selector.wakeup();
+                    });
+                }
+                else
+                    processImport.abort();
+            } catch (IOException e) {
+                processImport.abort();
+            }
+
+            reply.putLong(requestID);
+            reply.putInt(processID);
+        }
+
+        send(peer, reply);
+    }
+
+    private void spawned(final Peer peer, long requestID, int processID)
+    {
+        Spawn spawn = peer.inFlight.remove(requestID);
+        if (spawn == null)
+            return;
+
+        if (processID < 0)
+        {
+            ////refused, run it here after all.
+            spawn.checkpoint.abort();
+            kernel.executeProcess(spawn.process);
+            return;
+        }
+
+        CompletableFuture<Long> exit = new CompletableFuture<>();
+        peer.remote.put(requestID, exit);
+        spawn.checkpoint.finish(exit);
+    }
+
+    private void flushSpawns(final Peer peer)
+    {
+        if (peer.spawns.isEmpty())
+            return;
+
+        List<Spawn> batch   = new ArrayList<>();
+        int length          = 4;
+        Spawn spawn;
+        while ((spawn = peer.spawns.poll()) != null)
+        {
+            batch.add(spawn);
+            length += 12 + spawn.image.length;
+        }
+
+        ByteBuffer frame = frame(SPAWN, length);
+        frame.putInt(batch.size());
+        for (Spawn queued : batch)
+        {
+            frame.putLong(queued.requestID);
+            frame.putInt(queued.image.length);
+            frame.put(queued.image);
+            queued.frame = frame;
+            peer.inFlight.put(queued.requestID, queued);
+        }
+
+        send(peer, frame);
+    }
+
+    private ByteBuffer load()
+    {
+        ByteBuffer load = frame(LOAD, 4);
+        load.putInt(localLoad.get());
+        return load;
+    }
+
+    //// a frame with room for the payload, the length and type are already written.
+    private static ByteBuffer frame(byte type, int payload)
+    {
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + payload);
+        frame.putInt(1 + payload);
+        frame.put(type);
+        return frame;
+    }
+
+    //// queues a filled frame, callable from any thread.
+    private static void send(final Peer peer, final ByteBuffer frame)
+    {
+        frame.flip();
+        peer.out.add(frame);
+    }
+
+    private void disconnect(final Peer peer)
+    {
+        peers.remove(peer);
+        if (peer.key != null)
+            peer.key.cancel();
+        close(peer.channel);
+
+        Spawn spawn;
+        while ((spawn = peer.spawns.poll()) != null)
+            peer.inFlight.put(spawn.requestID, spawn);
+
+        for (Spawn lost : peer.inFlight.values())
+        {
+            ////a frame written in full may have been imported before the reply was lost.
+            if (lost.frame != null && !lost.frame.hasRemaining())
+            {
+                lost.checkpoint.finish(CompletableFuture.completedFuture(-1L));
+                continue;
+            }
+
+            lost.checkpoint.abort();
+            kernel.executeProcess(lost.process);
+        }
+        peer.inFlight.clear();
+
+        for (CompletableFuture<Long> exit : peer.remote.values())
+            exit.complete(-1L);
+        peer.remote.clear();
+    }
+
+    private static void close(final SocketChannel channel)
+    {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static final class Spawn {
+        private final long              requestID;
+        private final Process           process;
+        private final ProcessCheckpoint checkpoint;
+        private final byte              image[];
+        ////the SPAWN frame carrying it, once queued.
+        private ByteBuffer              frame;
+
+        private Spawn(long requestID, Process process, ProcessCheckpoint checkpoint, byte image[])
+        {
+            this.requestID  = requestID;
+            this.process    = process;
+            this.checkpoint = checkpoint;
+            this.image      = image;
+        }
+    }
+
+    private static final class Peer {
+        private final SocketChannel                         channel;
+        private final Queue<ByteBuffer>                     out;
+        private final Queue<Spawn>                          spawns;
+        private final Map<Long, Spawn>                      inFlight;
+        private final Map<Long, CompletableFuture<Long>>    remote;
+        private final AtomicInteger                         load;
+        private volatile int                                nodeID;
+        private SelectionKey                                key;
+        private ByteBuffer                                  in;
+        private ByteBuffer                                  writing;
+
+        private Peer(final SocketChannel channel)
+        {
+            this.channel    = channel;
+            this.out        = new ConcurrentLinkedQueue<>();
+            this.spawns     = new ConcurrentLinkedQueue<>();
+            this.inFlight   = new ConcurrentHashMap<>();
+            this.remote     = new ConcurrentHashMap<>();
+            this.load       = new AtomicInteger(Integer.MAX_VALUE);
+            this.nodeID     = -1;
+            this.in         = ByteBuffer.allocate(64 * 1024);
+        }
+    }
+}
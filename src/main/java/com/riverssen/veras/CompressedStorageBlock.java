@@ -0,0 +1,543 @@
+package com.riverssen.veras;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+////// Per-cell compression in front of a storage engine.
+//////
+////// The codec is chosen for every cell when it is written: a sample of its first
+////// SAMPLE_SIZE bytes is deflated, cells whose sample (or whole) does not shrink below
+////// SKIP_RATIO, and small cells, are stored as they are. A compressed cell starts with
+////// MAGIC and the codec, a stored cell is written bare, unless it starts with MAGIC
+////// itself (then it gets a STORED header), so cells written before compression was
+////// turned on, or while it is off, read the same.
+//////
+////// Streams compress and decompress as they go. Deflaters and inflaters are pooled.
+public class CompressedStorageBlock implements StorageBlock {
+    public static final byte        STORED      = 0;
+    public static final byte        DEFLATE     = 1;
+    //// cells smaller than this are not worth a codec.
+    public static final int         MIN_SIZE    = 128;
+    public static final int         SAMPLE_SIZE = 4096;
+    //// a cell is compressed if it shrinks below this fraction.
+    public static final double      SKIP_RATIO  = 0.9;
+    public static final int         LEVEL       = Deflater.BEST_SPEED;
+    private static final byte       MAGIC[]     = { (byte) 0xCE, 'V', 'Z', 'C' };
+    private static final int        HEADER_SIZE = MAGIC.length + 1;
+    private static final int        POOL_SIZE   = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final StorageBlock      engine;
+    private final Queue<Deflater>   deflaters;
+    private final Queue<Inflater>   inflaters;
+    private final AtomicInteger     pooledDeflaters;
+    private final AtomicInteger     pooledInflaters;
+    private final LongAdder         bytesWritten;
+    private final LongAdder         bytesStored;
+    private final LongAdder         compressedCells;
+    private final LongAdder         storedCells;
+    private final LongAdder         compressionNanos;
+    private final LongAdder         decompressionNanos;
+    private volatile boolean        compressing;
+
+    public CompressedStorageBlock(final StorageBlock engine)
+    {
+        this.engine             = engine;
+        this.deflaters          = new ConcurrentLinkedQueue<>();
+        this.inflaters          = new ConcurrentLinkedQueue<>();
+        this.pooledDeflaters    = new AtomicInteger(0);
+        this.pooledInflaters    = new AtomicInteger(0);
+        this.bytesWritten       = new LongAdder();
+        this.bytesStored        = new LongAdder();
+        this.compressedCells    = new LongAdder();
+        this.storedCells        = new LongAdder();
+        this.compressionNanos   = new LongAdder();
+        this.decompressionNanos = new LongAdder();
+    }
+
+    public StorageBlock getEngine()
+    {
+        return engine;
+    }
+
+    public boolean isCompressing()
+    {
+        return compressing;
+    }
+
+    //// compressed cells are read either way, only new writes change.
+    public void setCompressing(boolean compressing)
+    {
+        this.compressing = compressing;
+    }
+
+    //// bytes of the cells written, before compression.
+    public long getBytesWritten()
+    {
+        return bytesWritten.sum();
+    }
+
+    //// bytes of the cells written as the engine stores them.
+    public long getBytesStored()
+    {
+        return bytesStored.sum();
+    }
+
+    //// bytes written for every byte stored.
+    public double getRatio()
+    {
+        long stored = bytesStored.sum();
+        return stored == 0 ? 1 : (double) bytesWritten.sum() / stored;
+    }
+
+    public long getCompressedCells()
+    {
+        return compressedCells.sum();
+    }
+
+    //// cells written bare, they were too small or did not compress.
+    public long getStoredCells()
+    {
+        return storedCells.sum();
+    }
+
+    //// time spent compressing, sampling included.
+    public long getCompressionNanos()
+    {
+        return compressionNanos.sum();
+    }
+
+    public long getDecompressionNanos()
+    {
+        return decompressionNanos.sum();
+    }
+
+    @Override
+    public long size() {
+        return engine.size();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        engine.sync();
+    }
+
+    @Override
+    public boolean createBlock(byte[] key) {
+        return engine.createBlock(key);
+    }
+
+    @Override
+    public boolean blockExists(byte[] key) {
+        return engine.blockExists(key);
+    }
+
+    @Override
+    public boolean deleteBlock(byte[] key) throws IOException {
+        return engine.deleteBlock(key);
+    }
+
+    @Override
+    public boolean reachable(byte[] key) {
+        return engine.reachable(key);
+    }
+
+    @Override
+    public CellInputStream openInputStream(byte[] key) throws IOException {
+        CellInputStream cell = engine.openInputStream(key);
+        if (cell == null)
+            return null;
+
+        PushbackInputStream in = new PushbackInputStream(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return cell.read();
+            }
+
+            @Override
+            public int read(byte dst[], int offset, int length) throws IOException {
+                if (offset == 0 && length == dst.length)
+                    return cell.read(dst);
+                byte read[] = new byte[length];
+                int count = cell.read(read);
+                if (count > 0)
+                    System.arraycopy(read, 0, dst, offset, count);
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                cell.close();
+            }
+        }, HEADER_SIZE);
+
+        byte header[] = new byte[HEADER_SIZE];
+        int length = 0;
+        for (int read; length < HEADER_SIZE && (read = in.read(header, length, HEADER_SIZE - length)) > 0; )
+            length += read;
+
+        if (length < HEADER_SIZE || !startsWithMagic(header, 0))
+        {
+            in.unread(header, 0, length);
+            return new CellInputStream(in);
+        }
+        if (header[MAGIC.length] == STORED)
+            return new CellInputStream(in);
+        if (header[MAGIC.length] != DEFLATE)
+        {
+            in.close();
+            throw new IOException("cell has an unknown codec " + header[MAGIC.length] + ".");
+        }
+
+        final Inflater inflater = inflater();
+        return new CellInputStream(new InflaterInputStream(in, inflater) {
+            private boolean closed;
+
+            @Override
+            public int read(byte dst[], int offset, int length) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return super.read(dst, offset, length);
+                } finally {
+                    decompressionNanos.add(System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed)
+                    return;
+                closed = true;
+
+                super.close();
+                release(inflater);
+            }
+        });
+    }
+
+    //// the codec is chosen once SAMPLE_SIZE bytes are written, or on close.
+    @Override
+    public CellOutputStream openOutputStream(byte[] key) throws IOException {
+        CellOutputStream cell = engine.openOutputStream(key);
+        if (cell == null)
+            return null;
+
+        return new CellOutputStream(new CompressingOutputStream(cell));
+    }
+
+    @Override
+    public ByteBuffer mapCell(byte[] key) throws IOException {
+        ByteBuffer cell = engine.mapCell(key);
+        if (cell == null || cell.remaining() < HEADER_SIZE)
+            return cell;
+
+        byte header[] = new byte[HEADER_SIZE];
+        cell.duplicate().get(header);
+        if (!startsWithMagic(header, 0))
+            return cell;
+
+        cell.position(cell.position() + HEADER_SIZE);
+        if (header[MAGIC.length] == STORED)
+            return cell.slice();
+        if (header[MAGIC.length] != DEFLATE)
+            throw new IOException("cell has an unknown codec " + header[MAGIC.length] + ".");
+
+        return ByteBuffer.wrap(inflate(cell)).asReadOnlyBuffer();
+    }
+
+    @Override
+    public boolean writeCell(byte[] key, ByteBuffer srcs[]) throws IOException {
+        long length = 0;
+        for (ByteBuffer src : srcs)
+            length += src.remaining();
+        bytesWritten.add(length);
+
+        if (compressing && length >= MIN_SIZE && length <= Integer.MAX_VALUE && compresses(sample(srcs, (int) Math.min(length, SAMPLE_SIZE))))
+        {
+            byte data[] = sample(srcs, (int) length);
+            byte compressed[] = deflate(data, 0, data.length);
+            if (compressed != null)
+            {
+                bytesStored.add(compressed.length);
+                compressedCells.increment();
+                return engine.writeCell(key, new ByteBuffer[] { ByteBuffer.wrap(header(DEFLATE)), ByteBuffer.wrap(compressed) });
+            }
+        }
+
+        storedCells.increment();
+        if (!startsWithMagic(sample(srcs, (int) Math.min(length, MAGIC.length)), 0))
+        {
+            bytesStored.add(length);
+            return engine.writeCell(key, srcs);
+        }
+
+        ByteBuffer stored[] = new ByteBuffer[srcs.length + 1];
+        stored[0] = ByteBuffer.wrap(header(STORED));
+        System.arraycopy(srcs, 0, stored, 1, srcs.length);
+        bytesStored.add(length + HEADER_SIZE);
+        return engine.writeCell(key, stored);
+    }
+
+    //// the first bytes of the buffers, their positions are left alone.
+    private static byte[] sample(final ByteBuffer srcs[], int length)
+    {
+        byte sample[] = new byte[length];
+        int copied = 0;
+        for (int source = 0; source < srcs.length && copied < length; source ++)
+        {
+            ByteBuffer src = srcs[source].duplicate();
+            int count = Math.min(src.remaining(), length - copied);
+            src.get(sample, copied, count);
+            copied += count;
+        }
+
+        return sample;
+    }
+
+    private boolean compresses(final byte sample[])
+    {
+        return deflate(sample, 0, sample.length) != null;
+    }
+
+    //// returns null if the data does not shrink below SKIP_RATIO.
+    private byte[] deflate(final byte data[], int offset, int length)
+    {
+        long start = System.nanoTime();
+        Deflater deflater = deflater();
+        try {
+            byte compressed[] = new byte[(int) (length * SKIP_RATIO)];
+            int size = 0;
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            while (!deflater.finished() && size < compressed.length)
+                size += deflater.deflate(compressed, size, compressed.length - size);
+
+            return deflater.finished() ? Arrays.copyOf(compressed, size) : null;
+        } finally {
+            release(deflater);
+            compressionNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] inflate(final ByteBuffer src) throws IOException
+    {
+        long start = System.nanoTime();
+        byte input[];
+        int offset, length = src.remaining();
+        if (src.hasArray())
+        {
+            input   = src.array();
+            offset  = src.arrayOffset() + src.position();
+        }
+        else
+        {
+            input   = new byte[length];
+            offset  = 0;
+            src.duplicate().get(input);
+        }
+
+        Inflater inflater = inflater();
+        try {
+            inflater.setInput(input, offset, length);
+            byte output[] = new byte[Math.max(SAMPLE_SIZE, 4 * length)];
+            int size = 0;
+            while (!inflater.finished())
+            {
+                if (size == output.length)
+                    output = Arrays.copyOf(output, 2 * output.length);
+
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("compressed cell is truncated.");
+                size += inflated;
+            }
+
+            return size == output.length ? output : Arrays.copyOf(output, size);
+        } catch (DataFormatException e) {
+            throw new IOException("compressed cell is corrupt: " + e.getMessage());
+        } finally {
+            release(inflater);
+            decompressionNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private Deflater deflater()
+    {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null)
+            return new Deflater(LEVEL);
+
+        pooledDeflaters.decrementAndGet();
+        return deflater;
+    }
+
+    private void release(final Deflater deflater)
+    {
+        deflater.reset();
+        if (pooledDeflaters.incrementAndGet() <= POOL_SIZE)
+            deflaters.offer(deflater);
+        else
+        {
+            pooledDeflaters.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    private Inflater inflater()
+    {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null)
+            return new Inflater();
+
+        pooledInflaters.decrementAndGet();
+        return inflater;
+    }
+
+    private void release(final Inflater inflater)
+    {
+        inflater.reset();
+        if (pooledInflaters.incrementAndGet() <= POOL_SIZE)
+            inflaters.offer(inflater);
+        else
+        {
+            pooledInflaters.decrementAndGet();
+            inflater.end();
+        }
+    }
+
+    private static byte[] header(byte codec)
+    {
+        byte header[] = Arrays.copyOf(MAGIC, HEADER_SIZE);
+        header[MAGIC.length] = codec;
+        return header;
+    }
+
+    private static boolean startsWithMagic(final byte data[], int offset)
+    {
+        if (data.length - offset < MAGIC.length)
+            return false;
+
+        for (int i = 0; i < MAGIC.length; i ++)
+            if (data[offset + i] != MAGIC[i])
+                return false;
+        return true;
+    }
+
+    //// holds back the first SAMPLE_SIZE bytes until the codec is chosen, then streams.
+    private final class CompressingOutputStream extends OutputStream {
+        private final CellOutputStream  cell;
+        private final byte              sample[];
+        private int                     sampled;
+        private OutputStream            out;
+        private Deflater                deflater;
+        private boolean                 closed;
+
+        private CompressingOutputStream(final CellOutputStream cell)
+        {
+            this.cell   = cell;
+            this.sample = new byte[SAMPLE_SIZE];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte src[], int offset, int length) throws IOException {
+            bytesWritten.add(length);
+            if (out == null)
+            {
+                int count = Math.min(length, sample.length - sampled);
+                System.arraycopy(src, offset, sample, sampled, count);
+                sampled += count;
+                offset  += count;
+                length  -= count;
+                if (sampled < sample.length)
+                    return;
+
+                choose();
+            }
+
+            if (length > 0)
+                out.write(src, offset, length);
+        }
+
+        //// the stream the rest of the cell is written to.
+        private void choose() throws IOException
+        {
+            ////counts what reaches the engine.
+            OutputStream engine = new FilterOutputStream(null) {
+                @Override
+                public void write(int b) throws IOException {
+                    cell.write(b);
+                    bytesStored.increment();
+                }
+
+                @Override
+                public void write(byte src[], int offset, int length) throws IOException {
+                    cell.write(src, offset, length);
+                    bytesStored.add(length);
+                }
+            };
+
+            if (compressing && sampled >= MIN_SIZE && compresses(Arrays.copyOf(sample, sampled)))
+            {
+                compressedCells.increment();
+                engine.write(header(DEFLATE));
+                deflater    = deflater();
+                out         = new DeflaterOutputStream(engine, deflater, SAMPLE_SIZE) {
+                    @Override
+                    public void write(byte src[], int offset, int length) throws IOException {
+                        long start = System.nanoTime();
+                        try {
+                            super.write(src, offset, length);
+                        } finally {
+                            compressionNanos.add(System.nanoTime() - start);
+                        }
+                    }
+                };
+            }
+            else
+            {
+                storedCells.increment();
+                if (sampled >= MAGIC.length && startsWithMagic(sample, 0))
+                    engine.write(header(STORED));
+                out         = engine;
+            }
+
+            out.write(sample, 0, sampled);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+
+            try {
+                if (out == null)
+                    choose();
+                if (deflater != null)
+                    ((DeflaterOutputStream) out).finish();
+            } finally {
+                if (deflater != null)
+                    release(deflater);
+                cell.close();
+            }
+        }
+    }
+}
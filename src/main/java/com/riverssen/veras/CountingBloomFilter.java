@@ -0,0 +1,106 @@
+package com.riverssen.veras;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//// Counting Bloom filter of 64 bit key hashes.
+////
+//// Every key sets k of m 4 bit counters, picked by double hashing the two halves of its
+//// hash. A key is absent if any of its counters is zero, so a negative answer is always
+//// right and a positive one is wrong at about the rate the filter was sized for.
+//// Removing a key decrements its counters, a counter that overflowed stays at its
+//// maximum for good (it can no longer tell how many keys share it).
+////
+//// Writers must be serialized by the caller, readers need no lock.
+public final class CountingBloomFilter {
+    private static final int        COUNTER_BITS    = 4;
+    private static final int        COUNTERS_PER_WORD = 64 / COUNTER_BITS;
+    private static final long       MAX_COUNT       = (1L << COUNTER_BITS) - 1;
+
+    private final AtomicLongArray   counters;
+    private final long              size;
+    private final int               hashes;
+
+    //// a filter for the number of keys at the false positive rate.
+    public CountingBloomFilter(long keys, double falsePositiveRate)
+    {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("invalid false positive rate.");
+
+        keys        = Math.max(1, keys);
+        long size   = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        if (size / COUNTERS_PER_WORD >= Integer.MAX_VALUE)
+            throw new IllegalArgumentException("bloom filter is too large.");
+
+        this.size       = Math.max(COUNTERS_PER_WORD, size);
+        this.hashes     = Math.max(1, (int) Math.round((double) this.size / keys * Math.log(2)));
+        this.counters   = new AtomicLongArray((int) ((this.size + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD));
+    }
+
+    public long size()
+    {
+        return size;
+    }
+
+    public int getHashes()
+    {
+        return hashes;
+    }
+
+    //// bytes of the counters.
+    public long getMemory()
+    {
+        return counters.length() * 8L;
+    }
+
+    public boolean mightContain(long hash)
+    {
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i ++)
+            if (count(counter(h1, h2, i)) == 0)
+                return false;
+        return true;
+    }
+
+    public void add(long hash)
+    {
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i ++)
+        {
+            long counter = counter(h1, h2, i);
+            long count = count(counter);
+            if (count < MAX_COUNT)
+                set(counter, count + 1);
+        }
+    }
+
+    public void remove(long hash)
+    {
+        int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i ++)
+        {
+            long counter = counter(h1, h2, i);
+            long count = count(counter);
+            if (count > 0 && count < MAX_COUNT)
+                set(counter, count - 1);
+        }
+    }
+
+    private long counter(int h1, int h2, int i)
+    {
+        return ((h1 & 0xFFFFFFFFL) + i * (h2 & 0xFFFFFFFFL)) % size;
+    }
+
+    private long count(long counter)
+    {
+        long word = counters.get((int) (counter / COUNTERS_PER_WORD));
+        return (word >>> (counter % COUNTERS_PER_WORD * COUNTER_BITS)) & MAX_COUNT;
+    }
+
+    private void set(long counter, long count)
+    {
+        int index   = (int) (counter / COUNTERS_PER_WORD);
+        int shift   = (int) (counter % COUNTERS_PER_WORD * COUNTER_BITS);
+        long word   = counters.get(index);
+        counters.set(index, (word & ~(MAX_COUNT << shift)) | (count << shift));
+    }
+}
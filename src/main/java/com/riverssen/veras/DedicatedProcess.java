@@ -0,0 +1,39 @@
+package com.riverssen.veras;
+
+//// Runs a single process on its own thread (ExecutionMode.VIRTUAL).
+//// Unlike SharedProcess nothing is multiplexed, a process that is not awake
+//// parks its thread until it is woken or halted.
+public class DedicatedProcess implements Runnable {
+    private final Kernel    kernel;
+    private final Process   process;
+    private final int       budget;
+
+    public DedicatedProcess(final Kernel kernel, final Process process, final int budget)
+    {
+        this.kernel     = kernel;
+        this.process    = process;
+        this.budget     = budget;
+    }
+
+    public void run()
+    {
+        process.bind(Thread.currentThread());
+
+        try {
+            while (kernel.getKeepAlive() && !process.halted())
+            {
+                if (process.isIdle())
+                {
+                    process.park();
+                    continue;
+                }
+
+                process.execute(Math.max(1, (budget * process.getPriority()) / 100));
+                Thread.yield();
+            }
+        } finally {
+            process.bind(null);
+            process.clearQueued();
+        }
+    }
+}
@@ -0,0 +1,626 @@
+package com.riverssen.veras;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+////// Content-addressed storage in front of the page cache.
+//////
+////// While deduplicating, the contents of a cell are cut into chunks where a rolling
+////// (gear) hash of the last bytes matches, so an insertion only changes the chunks
+////// around it. A chunk is a cell of its own named by its SHA-256 and is stored once,
+////// dedup.index counts its references. The cell itself holds a manifest:
+////// | MAGIC | length | chunk count | (hash | chunk length) ... |. Identical cells and
+////// chunks share disk space and cached pages.
+//////
+////// A chunk is written before it is counted, counted before a manifest refers to it, and
+////// released after the manifest that referred to it is replaced. While durable the
+////// counts are forced to disk before a manifest is written and before a chunk is
+////// deleted, so a crash can leave a chunk behind but never lose one. Small cells and
+////// cells written while not deduplicating are stored as they are, cells that start with
+////// MAGIC always get a manifest so they are never mistaken for one. Keys that start with
+////// CHUNK belong to the chunks, callers cannot create, write or delete them.
+public class DedupStorageBlock implements StorageBlock {
+    public static final String      INDEX           = "dedup.index";
+    //// cells smaller than this are stored as they are.
+    public static final int         MIN_SIZE        = 4096;
+    public static final int         MIN_CHUNK       = 2048;
+    public static final int         AVERAGE_CHUNK   = 8192;
+    public static final int         MAX_CHUNK       = 65536;
+    private static final byte       MAGIC[]         = { (byte) 0xCE, 'V', 'D', 'M' };
+    private static final byte       CHUNK[]         = { (byte) 0xCE, 'V', 'D', 'C' };
+    ////index keys of cells that (may) hold a manifest.
+    private static final byte       MANIFEST[]      = { (byte) 0xCE, 'V', 'D', 'R' };
+    private static final int        HASH_SIZE       = 32;
+    private static final int        HEADER_SIZE     = MAGIC.length + 12;
+    private static final int        ENTRY_SIZE      = HASH_SIZE + 4;
+    ////a boundary is where the top bits of the gear hash are zero, 1 in AVERAGE_CHUNK bytes.
+    private static final long       BOUNDARY        = -1L << (64 - Integer.numberOfTrailingZeros(AVERAGE_CHUNK));
+    private static final long       GEAR[]          = new long[256];
+    private static final int        STRIPES         = 64;
+
+    static {
+        Random random = new Random(0x5645524153L);
+        for (int i = 0; i < GEAR.length; i ++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private final StorageBlock      storage;
+    private final StorageIndex      references;
+    private final Object            cells[];
+    private final Object            chunks[];
+    private final LongAdder         bytesWritten;
+    private final LongAdder         bytesStored;
+    private final LongAdder         chunksWritten;
+    private final LongAdder         duplicateChunks;
+    private volatile boolean        deduplicating;
+    private volatile boolean        durable;
+
+    public DedupStorageBlock(final StorageBlock storage, final File index) throws IOException
+    {
+        this.storage            = storage;
+        this.references         = StorageIndex.open(index);
+        this.cells              = new Object[STRIPES];
+        this.chunks             = new Object[STRIPES];
+        this.bytesWritten       = new LongAdder();
+        this.bytesStored        = new LongAdder();
+        this.chunksWritten      = new LongAdder();
+        this.duplicateChunks    = new LongAdder();
+
+        for (int stripe = 0; stripe < STRIPES; stripe ++)
+        {
+            cells[stripe]   = new Object();
+            chunks[stripe]  = new Object();
+        }
+    }
+
+    public StorageBlock getStorage()
+    {
+        return storage;
+    }
+
+    public boolean isDeduplicating()
+    {
+        return deduplicating;
+    }
+
+    //// manifests are read either way, only new writes change.
+    public void setDeduplicating(boolean deduplicating)
+    {
+        this.deduplicating = deduplicating;
+    }
+
+    public boolean isDurable()
+    {
+        return durable;
+    }
+
+    //// set along with a write-ahead log below, the counts then reach disk before a
+    //// manifest or a deletion that depends on them.
+    public void setDurable(boolean durable)
+    {
+        this.durable = durable;
+    }
+
+    //// bytes of the cells written.
+    public long getBytesWritten()
+    {
+        return bytesWritten.sum();
+    }
+
+    //// bytes written to storage for them: new chunks, manifests and plain cells.
+    public long getBytesStored()
+    {
+        return bytesStored.sum();
+    }
+
+    //// bytes written for every byte stored.
+    public double getRatio()
+    {
+        long stored = bytesStored.sum();
+        return stored == 0 ? 1 : (double) bytesWritten.sum() / stored;
+    }
+
+    //// chunks written for the first time.
+    public long getChunksWritten()
+    {
+        return chunksWritten.sum();
+    }
+
+    //// chunks that were stored already and only got another reference.
+    public long getDuplicateChunks()
+    {
+        return duplicateChunks.sum();
+    }
+
+    //// reference counts are written back, storage is closed on its own.
+    public void close()
+    {
+        references.force();
+    }
+
+    @Override
+    public long size() {
+        return storage.size();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        storage.sync();
+        references.force();
+    }
+
+    @Override
+    public boolean createBlock(byte[] key) {
+        if (reserved(key))
+            return false;
+        return storage.createBlock(key);
+    }
+
+    @Override
+    public boolean blockExists(byte[] key) {
+        return storage.blockExists(key);
+    }
+
+    @Override
+    public boolean reachable(byte[] key) {
+        return storage.reachable(key);
+    }
+
+    @Override
+    public boolean deleteBlock(byte[] key) throws IOException {
+        if (reserved(key))
+            return false;
+
+        synchronized (stripe(cells, key))
+        {
+            Chunk previous[] = previous(key);
+            if (!storage.deleteBlock(key))
+                return false;
+
+            references.remove(cellReference(key));
+            if (previous != null)
+                release(previous);
+            return true;
+        }
+    }
+
+    //// every chunk of a manifest is opened before the stream is returned, so a writer that
+    //// replaces the cell cannot release them from under the reader.
+    @Override
+    public CellInputStream openInputStream(byte[] key) throws IOException {
+        Chunk failed[] = null;
+        while (true)
+        {
+            CellInputStream cell = storage.openInputStream(key);
+            if (cell == null)
+                return null;
+
+            PushbackInputStream in = new PushbackInputStream(stream(cell), MAGIC.length);
+            byte magic[] = new byte[MAGIC.length];
+            int length = 0;
+            for (int read; length < magic.length && (read = in.read(magic, length, magic.length - length)) > 0; )
+                length += read;
+
+            if (length < magic.length || !Arrays.equals(magic, MAGIC))
+            {
+                in.unread(magic, 0, length);
+                return new CellInputStream(in);
+            }
+
+            Chunk manifest[];
+            try (DataInputStream data = new DataInputStream(in)) {
+                manifest = readManifest(data);
+            }
+
+            List<InputStream> chunks = openChunks(manifest);
+            if (chunks != null)
+                return new CellInputStream(new SequenceInputStream(Collections.enumeration(chunks)));
+
+            ////released by a writer that replaced the cell meanwhile, read it again.
+            if (failed != null && sameManifest(failed, manifest))
+                throw new IOException("cell '" + Base16.encode(key) + "' refers to a missing chunk.");
+            failed = manifest;
+        }
+    }
+
+    //// returns null (closing what was opened) if a chunk is missing.
+    private List<InputStream> openChunks(final Chunk manifest[]) throws IOException
+    {
+        List<InputStream> chunks = new ArrayList<>(manifest.length);
+        try {
+            for (Chunk chunk : manifest)
+            {
+                CellInputStream in = storage.openInputStream(chunk.key());
+                if (in == null)
+                {
+                    for (InputStream opened : chunks)
+                        opened.close();
+                    return null;
+                }
+                chunks.add(stream(in));
+            }
+        } catch (IOException e) {
+            for (InputStream opened : chunks)
+                opened.close();
+            throw e;
+        }
+
+        return chunks;
+    }
+
+    private static boolean sameManifest(final Chunk a[], final Chunk b[])
+    {
+        if (a.length != b.length)
+            return false;
+        for (int i = 0; i < a.length; i ++)
+            if (a[i].length != b[i].length || !Arrays.equals(a[i].hash, b[i].hash))
+                return false;
+        return true;
+    }
+
+    private static InputStream stream(final CellInputStream cell)
+    {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return cell.read();
+            }
+
+            @Override
+            public int read(byte dst[], int offset, int length) throws IOException {
+                if (offset == 0 && length == dst.length)
+                    return cell.read(dst);
+                byte read[] = new byte[length];
+                int count = cell.read(read);
+                if (count > 0)
+                    System.arraycopy(read, 0, dst, offset, count);
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                cell.close();
+            }
+        };
+    }
+
+    //// the cell is written in memory and stored when the stream is closed.
+    @Override
+    public CellOutputStream openOutputStream(byte[] key) throws IOException {
+        if (reserved(key) || !storage.blockExists(key))
+            return null;
+
+        return new CellOutputStream(new ByteArrayOutputStream() {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed)
+                    return;
+                closed = true;
+
+                writeCell(key, new ByteBuffer[] { ByteBuffer.wrap(buf, 0, count) });
+            }
+        });
+    }
+
+    @Override
+    public ByteBuffer mapCell(byte[] key) throws IOException {
+        while (true)
+        {
+            ByteBuffer cell = storage.mapCell(key);
+            if (cell == null || !isManifest(cell))
+                return cell;
+
+            Chunk manifest[] = readManifest(cell);
+            long length = 0;
+            for (Chunk chunk : manifest)
+                length += chunk.length;
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("cell is too large to map.");
+
+            ByteBuffer contents = ByteBuffer.allocate((int) length);
+            boolean missing = false;
+            for (Chunk chunk : manifest)
+            {
+                ByteBuffer data = storage.mapCell(chunk.key());
+                if (data == null || data.remaining() != chunk.length)
+                {
+                    missing = true;
+                    break;
+                }
+                contents.put(data);
+            }
+
+            if (!missing)
+            {
+                contents.flip();
+                return contents.asReadOnlyBuffer();
+            }
+
+            ////released by a writer that replaced the cell meanwhile, read it again.
+            ByteBuffer again = storage.mapCell(key);
+            if (again != null && again.equals(cell))
+                throw new IOException("cell '" + Base16.encode(key) + "' refers to a missing chunk.");
+        }
+    }
+
+    @Override
+    public boolean writeCell(byte[] key, ByteBuffer srcs[]) throws IOException {
+        if (reserved(key))
+            return false;
+
+        long length = 0;
+        for (ByteBuffer src : srcs)
+            length += src.remaining();
+        bytesWritten.add(length);
+
+        synchronized (stripe(cells, key))
+        {
+            if (!storage.blockExists(key))
+                return false;
+
+            Chunk previous[] = previous(key);
+            boolean written;
+            if ((deduplicating && length >= MIN_SIZE) || startsWithMagic(srcs))
+            {
+                if (length > Integer.MAX_VALUE)
+                    throw new IOException("cell is too large to deduplicate.");
+
+                byte data[] = new byte[(int) length];
+                ByteBuffer gathered = ByteBuffer.wrap(data);
+                for (ByteBuffer src : srcs)
+                    gathered.put(src);
+
+                Chunk manifest[] = chunk(data);
+                for (int retained = 0; retained < manifest.length; retained ++)
+                {
+                    try {
+                        retain(manifest[retained], data);
+                    } catch (IOException e) {
+                        release(Arrays.copyOf(manifest, retained));
+                        throw e;
+                    }
+                }
+
+                references.put(cellReference(key), 0, 0);
+                if (durable)
+                    references.force();
+                ByteBuffer encoded = writeManifest(manifest, length);
+                bytesStored.add(encoded.remaining());
+                written = storage.writeCell(key, new ByteBuffer[] { encoded });
+                if (!written)
+                    release(manifest);
+            }
+            else
+            {
+                bytesStored.add(length);
+                written = storage.writeCell(key, srcs);
+                if (written)
+                    references.remove(cellReference(key));
+            }
+
+            if (written && previous != null)
+                release(previous);
+            return written;
+        }
+    }
+
+    //// the manifest the cell holds now, null if it is stored as it is. cell stripe held.
+    private Chunk[] previous(final byte key[]) throws IOException
+    {
+        if (!references.contains(cellReference(key)))
+            return null;
+
+        ByteBuffer cell = storage.mapCell(key);
+        return cell == null || !isManifest(cell) ? null : readManifest(cell);
+    }
+
+    //// adds a reference to the chunk, writing it if it is new.
+    private void retain(final Chunk chunk, final byte data[]) throws IOException
+    {
+        byte key[] = chunk.key();
+        long values[] = new long[2];
+        synchronized (stripe(chunks, chunk.hash))
+        {
+            if (references.get(key, values))
+            {
+                references.put(key, values[0] + 1, values[1]);
+                duplicateChunks.increment();
+                return;
+            }
+
+            storage.createBlock(key);
+            if (!storage.writeCell(key, new ByteBuffer[] { ByteBuffer.wrap(data, chunk.offset, chunk.length) }))
+                throw new IOException("chunk " + Base16.encode(chunk.hash) + " could not be written.");
+
+            references.put(key, 1, chunk.length);
+            chunksWritten.increment();
+            bytesStored.add(chunk.length);
+        }
+    }
+
+    //// drops a reference to every chunk, deleting those nothing refers to anymore.
+    private void release(final Chunk manifest[]) throws IOException
+    {
+        long values[] = new long[2];
+        for (Chunk chunk : manifest)
+        {
+            byte key[] = chunk.key();
+            synchronized (stripe(chunks, chunk.hash))
+            {
+                if (!references.get(key, values))
+                    continue;
+
+                if (values[0] > 1)
+                {
+                    references.put(key, values[0] - 1, values[1]);
+                    continue;
+                }
+
+                references.remove(key);
+                if (durable)
+                    references.force();
+                storage.deleteBlock(key);
+            }
+        }
+    }
+
+    //// cuts the data where the gear hash hits a boundary, between MIN_CHUNK and MAX_CHUNK.
+    private static Chunk[] chunk(final byte data[])
+    {
+        MessageDigest digest = Digests.get("SHA-256");
+        List<Chunk> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < data.length)
+        {
+            int end = Math.min(data.length, start + MAX_CHUNK);
+            int cut = Math.min(data.length, start + MIN_CHUNK);
+            long hash = 0;
+            for (; cut < end; cut ++)
+            {
+                hash = (hash << 1) + GEAR[data[cut] & 0xFF];
+                if ((hash & BOUNDARY) == 0)
+                {
+                    cut ++;
+                    break;
+                }
+            }
+
+            digest.update(data, start, cut - start);
+            chunks.add(new Chunk(digest.digest(), start, cut - start));
+            start = cut;
+        }
+
+        return chunks.toArray(new Chunk[0]);
+    }
+
+    private static ByteBuffer writeManifest(final Chunk manifest[], long length)
+    {
+        ByteBuffer encoded = ByteBuffer.allocate(HEADER_SIZE + manifest.length * ENTRY_SIZE);
+        encoded.put(MAGIC);
+        encoded.putLong(length);
+        encoded.putInt(manifest.length);
+        for (Chunk chunk : manifest)
+        {
+            encoded.put(chunk.hash);
+            encoded.putInt(chunk.length);
+        }
+
+        encoded.flip();
+        return encoded;
+    }
+
+    private static Chunk[] readManifest(ByteBuffer cell) throws IOException
+    {
+        cell = cell.duplicate();
+        cell.position(cell.position() + MAGIC.length);
+        cell.getLong();
+        int count = cell.getInt();
+        if (count < 0 || count > cell.remaining() / ENTRY_SIZE)
+            throw new IOException("cell has a corrupt manifest.");
+
+        Chunk manifest[] = new Chunk[count];
+        for (int i = 0; i < count; i ++)
+        {
+            byte hash[] = new byte[HASH_SIZE];
+            cell.get(hash);
+            manifest[i] = new Chunk(hash, 0, cell.getInt());
+        }
+
+        return manifest;
+    }
+
+    //// the manifest after MAGIC.
+    private static Chunk[] readManifest(final DataInputStream in) throws IOException
+    {
+        in.readLong();
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("cell has a corrupt manifest.");
+
+        List<Chunk> manifest = new ArrayList<>();
+        for (int i = 0; i < count; i ++)
+        {
+            byte hash[] = new byte[HASH_SIZE];
+            in.readFully(hash);
+            manifest.add(new Chunk(hash, 0, in.readInt()));
+        }
+
+        return manifest.toArray(new Chunk[0]);
+    }
+
+    private static boolean isManifest(final ByteBuffer cell)
+    {
+        if (cell.remaining() < HEADER_SIZE)
+            return false;
+
+        for (int i = 0; i < MAGIC.length; i ++)
+            if (cell.get(cell.position() + i) != MAGIC[i])
+                return false;
+        return true;
+    }
+
+    private static boolean startsWithMagic(final ByteBuffer srcs[])
+    {
+        int matched = 0;
+        for (ByteBuffer src : srcs)
+            for (int i = src.position(); i < src.limit() && matched < MAGIC.length; i ++)
+                if (src.get(i) != MAGIC[matched ++])
+                    return false;
+
+        return matched == MAGIC.length;
+    }
+
+    private static boolean reserved(final byte key[])
+    {
+        if (key.length < CHUNK.length)
+            return false;
+
+        for (int i = 0; i < CHUNK.length; i ++)
+            if (key[i] != CHUNK[i])
+                return false;
+        return true;
+    }
+
+    private static byte[] cellReference(final byte key[])
+    {
+        return Utils.concatenate(MANIFEST, key);
+    }
+
+    private static Object stripe(final Object stripes[], final byte key[])
+    {
+        return stripes[(Arrays.hashCode(key) & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    private static final class Chunk {
+        private final byte  hash[];
+        private final int   offset;
+        private final int   length;
+
+        private Chunk(final byte hash[], int offset, int length)
+        {
+            this.hash   = hash;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private byte[] key()
+        {
+            return Utils.concatenate(CHUNK, hash);
+        }
+    }
+}
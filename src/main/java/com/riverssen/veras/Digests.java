@@ -0,0 +1,46 @@
+package com.riverssen.veras;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+//// Message digests of the JDK's own providers, one per thread and algorithm.
+//// Looking a digest up costs more than hashing a small input, so they are reused.
+public final class Digests {
+    private static final ThreadLocal<Map<String, MessageDigest>> digests = ThreadLocal.withInitial(HashMap::new);
+
+    private Digests()
+    {
+    }
+
+    //// the calling thread's digest, reset. it must not be handed to another thread.
+    public static MessageDigest get(final String algorithm)
+    {
+        Map<String, MessageDigest> pool = digests.get();
+        MessageDigest digest = pool.get(algorithm);
+        if (digest == null)
+        {
+            try {
+                digest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                ////SHA-256 and SHA-512 are required of every JDK.
+                throw new IllegalArgumentException("no digest '" + algorithm + "'.", e);
+            }
+            pool.put(algorithm, digest);
+        }
+
+        digest.reset();
+        return digest;
+    }
+
+    public static byte[] sha256(final byte data[])
+    {
+        return get("SHA-256").digest(data);
+    }
+
+    public static byte[] sha512(final byte data[])
+    {
+        return get("SHA-512").digest(data);
+    }
+}
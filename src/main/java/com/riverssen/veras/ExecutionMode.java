@@ -0,0 +1,13 @@
+package com.riverssen.veras;
+
+//// How a kernel maps its processes onto host threads.
+public enum ExecutionMode {
+    //// processes are multiplexed over a fixed set of SharedProcess cores.
+    SHARED,
+    //// every process runs on its own thread (a virtual thread on java 21+),
+    //// blocking operations simply block that thread.
+    VIRTUAL,
+    //// every core is stepped on the calling thread by KernelImpl.simulate() in a seeded,
+    //// reproducible order against a virtual clock. There is no thread pool.
+    DETERMINISTIC
+}
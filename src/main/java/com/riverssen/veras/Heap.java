@@ -2,22 +2,29 @@ package com.riverssen.veras;
 
 import com.riverssen.veras.exceptions.MemoryException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
 public class Heap {
+    public static final int                 DEFAULT_SIZE = 1024 * 24;
+
     private int                             maxUsed;
     private int                             used;
     private int                             heap;
     private int                             program;
+    private long                            allocations;
     private final Kernel                    kernel;
     private final Map<Integer, Integer>     available;
     private final Map<Integer, Integer>     addresses;
 
     public Heap(final Kernel kernel) throws MemoryException {
-        this(kernel, 1024 * 24);
+        this(kernel, DEFAULT_SIZE);
     }
 
     public Heap(final Kernel kernel, final int size) throws MemoryException {
@@ -30,6 +37,56 @@ public class Heap {
         available.put(1, sizeOf() + 1);
     }
 
+    //// a heap on a block (and a read-only program) already allocated by the caller.
+    Heap(final Kernel kernel, final int heap, final int program) {
+        this.kernel     = kernel;
+        this.heap       = heap;
+        this.program    = program;
+
+        this.available = new LinkedHashMap<>();
+        this.addresses = new LinkedHashMap<>();
+        available.put(1, sizeOf() + 1);
+    }
+
+    //// restores a heap written by write(), its memory is already in the block.
+    Heap(final Kernel kernel, final DataInputStream in) throws IOException {
+        this.kernel     = kernel;
+        this.heap       = in.readInt();
+        this.program    = in.readInt();
+
+        this.available = new LinkedHashMap<>();
+        this.addresses = new LinkedHashMap<>();
+        for (int i = in.readInt(); i > 0; i --)
+            available.put(in.readInt(), in.readInt());
+        for (int i = in.readInt(); i > 0; i --)
+            addresses.put(in.readInt(), in.readInt());
+        for (Integer size : addresses.values())
+            this.used += size;
+
+        this.maxUsed    = in.readInt();
+        this.allocations= in.readLong();
+    }
+
+    void write(final DataOutputStream out) throws IOException {
+        out.writeInt(heap);
+        out.writeInt(program);
+
+        out.writeInt(available.size());
+        for (Map.Entry<Integer, Integer> entry : available.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+
+        out.writeInt(addresses.size());
+        for (Map.Entry<Integer, Integer> entry : addresses.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+
+        out.writeInt(maxUsed);
+        out.writeLong(allocations);
+    }
+
     public void resize(int size)
     {
         int available = 0;
@@ -78,6 +135,11 @@ public class Heap {
         if (toRemove != null)
             available.remove(toRemove);
 
+        used        += size;
+        maxUsed     = Math.max(maxUsed, used);
+        allocations ++;
+        kernel.getAccounting().allocated(size);
+
         return pointer;
     }
 
@@ -138,6 +200,7 @@ public class Heap {
     public void free(int ptr) {
         int size = addresses.get(ptr);
         addresses.remove(ptr);
+        used -= size;
 
         available.put(ptr, ptr + size);
         combine();
@@ -192,11 +255,42 @@ public class Heap {
         return program;
     }
 
+    //// address of the heap in the memory block.
+    int getAddress()
+    {
+        return heap;
+    }
+
+    //// points the heap at a copy of its block (and of its read-only program).
+    void relocate(int heap, int program)
+    {
+        this.heap       = heap;
+        if (this.program != 0)
+            this.program = program;
+    }
+
     public int sizeOf()
     {
         return kernel.getMemoryBlock().sizeof(heap);
     }
 
+    //// bytes currently allocated from the heap.
+    public int getUsed()
+    {
+        return used;
+    }
+
+    //// the most bytes ever allocated from the heap at once.
+    public int getMaxUsed()
+    {
+        return maxUsed;
+    }
+
+    public long getAllocations()
+    {
+        return allocations;
+    }
+
     public void setByte(int address, byte b) throws IndexOutOfBoundsException{
         if (overflow(address))
             return;
@@ -274,6 +368,29 @@ public class Heap {
     public void setArray(int addr, byte array[]) {
     }
 
+    //// copies as much of the buffer as fits into the heap from the address.
+    //// returns the number of bytes copied.
+    public int load(int address, ByteBuffer src) {
+        if (address <= 0 || overflow(address))
+            return 0;
+
+        int length = Math.min(src.remaining(), sizeOf() - fixAddress(address));
+        ByteBuffer part = src.duplicate();
+        part.limit(part.position() + length);
+        kernel.getMemoryBlock().setBuffer(fixAddress(address) + heap, part);
+        src.position(src.position() + length);
+
+        return length;
+    }
+
+    //// a read-only view of up to length bytes of the heap from the address.
+    public ByteBuffer view(int address, int length) {
+        if (address <= 0 || overflow(address))
+            return ByteBuffer.allocate(0);
+
+        return kernel.getMemoryBlock().getBuffer(fixAddress(address) + heap, Math.min(length, sizeOf() - fixAddress(address)));
+    }
+
     public byte[] getArray(int padd) throws IndexOutOfBoundsException {
         int len = sizeof(padd);
         byte a[]= new byte[len];
@@ -4,6 +4,11 @@ import com.riverssen.veras.exceptions.ExecutionException;
 import com.riverssen.veras.exceptions.KernelNotFoundException;
 import com.riverssen.veras.exceptions.MemoryException;
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 ////////////////////////////////////////////////////////////////
 //////////////////////////VERAS OS KERNEL///////////////////////
 ////////////////////////////////////////////////////////////////
@@ -16,7 +21,31 @@ public abstract class Kernel {
     ///// returns null and throws an exception if the operation is unsuccessful.
     public abstract Process generateProcess(final Process process) throws MemoryException;
     public Process  generateProcess() throws MemoryException { return generateProcess(null); }
+    ///// waits up to timeout (forever if negative) until the kernel admits a new process.
+    ///// returns a new process, or null if the timeout elapsed first.
+    ///// throws exception if the process cannot be created once admitted.
+    public abstract Process generateProcess(final Process process, long timeout, TimeUnit unit) throws MemoryException, InterruptedException;
+    public Process  awaitProcess(final Process process) throws MemoryException, InterruptedException { return generateProcess(process, -1, TimeUnit.NANOSECONDS); }
+    ///// queues the program to run in a new process once the kernel admits it.
+    ///// returns a future completing with the running process.
+    ///// the future fails if the pending spawn queue is full or the process cannot be created.
+    public abstract CompletableFuture<Process> submitProcess(final Process parent, final byte program[]);
     public abstract void executeProcess(final Process process);
+    ///// creates, loads and schedules one process per descriptor in a single operation.
+    ///// returns the processes, in the order of the descriptors.
+    ///// throws exception (creating nothing) if they are not admitted or do not all fit.
+    public abstract Process[] spawnProcesses(final Collection<ProcessDescriptor> descriptors) throws MemoryException;
+    ///// creates count processes that share one program image and entry point.
+    ///// every member starts with its index on the stack, all are placed on cores in one decision.
+    ///// throws exception (creating nothing) if they are not admitted or cannot be created.
+    public abstract ProcessGroup spawnGroup(final Process parent, int program, int entry, int count, int priority) throws MemoryException;
+    ///// records one more process running a program image it does not own.
+    ///// the image outlives its owner until every such process has released it.
+    public abstract void retainProgram(int program);
+    ///// releases a halted process's use of a program image.
+    ///// frees the image once its owner and every process sharing it have released it.
+    ///// throws exception if the image cannot be freed.
+    public abstract void releaseProgram(int program, boolean owner) throws MemoryException;
     ///// forces the process to halt
     ///// frees the processID
     ///// throws exception and blocks the Shared block if operation is unsuccessful
@@ -25,6 +54,13 @@ public abstract class Kernel {
     ///// frees the processID(s)
     ///// throws exception and blocks the Shared block if operation is unsuccessful
     public abstract void haltProcessRecursive(final int process);
+    ///// halts the process itself, not whichever process holds its pid now.
+    ///// a process that is not (or no longer) in this kernel's table is left alone.
+    public abstract void haltProcessRecursive(final Process process);
+    ///// fetches the exit future of a live process.
+    ///// the future completes with the exit code once the process halts.
+    ///// returns null if no live process has that id.
+    public abstract CompletableFuture<Long> joinProcess(final int process);
     ///// fetches the internal memory block.
     ///// returns the memory block.
     ///// throws exception if operation is unsuccessful.
@@ -37,6 +73,13 @@ public abstract class Kernel {
     ///// frees memory, threads, and their children.
     ///// throws exception if operation is unsuccessful.
     public abstract void haltProcesses();
+    ///// writes memory, allocator, processes and the storage index to a single image file.
+    ///// execution is paused while the image is written and resumes afterwards.
+    ///// throws exception if the image cannot be written.
+    public abstract void snapshot(final FileService image) throws IOException;
+    ///// fetches the kernel wide counters of instructions, core time and allocations.
+    ///// returns the accounting of the kernel.
+    public abstract Accounting getAccounting();
     public abstract int executeProgram(Process process, Heap heap, Stack stack, int program, int steps) throws ExecutionException, ExecutionException;
     public abstract boolean getKeepAlive();
 }
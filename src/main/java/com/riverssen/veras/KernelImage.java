@@ -0,0 +1,129 @@
+package com.riverssen.veras;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+//// On-disk kernel image written by Kernel.snapshot() and read by KernelImpl.restore().
+////
+//// | header | metadata | padding | memory |
+////
+//// The metadata (allocator, process table, channels, storage index, clock) is a
+//// DataOutputStream record, the memory block starts on a page boundary so a restore
+//// can map it copy-on-write and let the OS fault pages in as they are touched.
+final class KernelImage {
+    static final long           MAGIC       = 0x5645524153494D47L; // "VERASIMG"
+    static final int            VERSION     = 4;
+    static final int            PAGE_SIZE   = 4096;
+    private static final int    HEADER_SIZE = 8 + 4 + 4 + 8 + 4;
+
+    private final DataInputStream   metadata;
+    private final ByteBuffer        memory;
+
+    private KernelImage(final DataInputStream metadata, final ByteBuffer memory)
+    {
+        this.metadata   = metadata;
+        this.memory     = memory;
+    }
+
+    DataInputStream getMetadata()
+    {
+        return metadata;
+    }
+
+    //// the memory block, privately mapped: guest writes never reach the image.
+    ByteBuffer getMemory()
+    {
+        return memory;
+    }
+
+    //// writes the image next to the target and moves it in place,
+    //// a crash never leaves a half written image behind.
+    static void write(final FileService image, final byte metadata[], final ByteBuffer memory) throws IOException
+    {
+        long memoryOffset   = align(HEADER_SIZE + metadata.length);
+        File target         = image.file();
+        File temporary      = new File(target.getPath() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(metadata.length);
+            header.putLong(memoryOffset);
+            header.putInt(memory.remaining());
+            header.flip();
+
+            writeFully(channel, header, 0);
+            writeFully(channel, ByteBuffer.wrap(metadata), HEADER_SIZE);
+            writeFully(channel, memory, memoryOffset);
+            channel.force(true);
+        }
+
+        Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //// reads the metadata and maps the memory, no memory page is read here.
+    static KernelImage read(final FileService image) throws IOException
+    {
+        //// a private mapping needs a channel opened for writing, nothing is written.
+        try (RandomAccessFile file = new RandomAccessFile(image.file(), "rw"))
+        {
+            FileChannel channel = file.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            header.flip();
+
+            if (header.getLong() != MAGIC)
+                throw new IOException("'" + image.file() + "' is not a kernel image.");
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException("unsupported kernel image version '" + version + "'.");
+
+            int metadataLength  = header.getInt();
+            long memoryOffset   = header.getLong();
+            int memorySize      = header.getInt();
+
+            if (memoryOffset + memorySize > channel.size())
+                throw new IOException("kernel image '" + image.file() + "' is truncated.");
+
+            ByteBuffer metadata = ByteBuffer.allocate(metadataLength);
+            readFully(channel, metadata, HEADER_SIZE);
+
+            ByteBuffer memory   = channel.map(FileChannel.MapMode.PRIVATE, memoryOffset, memorySize);
+
+            return new KernelImage(new DataInputStream(new ByteArrayInputStream(metadata.array())), memory);
+        }
+    }
+
+    private static long align(long offset)
+    {
+        return (offset + PAGE_SIZE - 1) & -PAGE_SIZE;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("kernel image is truncated.");
+            position += read;
+        }
+    }
+}
@@ -5,24 +5,143 @@ import com.riverssen.veras.exceptions.KernelNotFoundException;
 import com.riverssen.veras.exceptions.MemoryException;
 import com.riverssen.veras.exceptions.ProcessException;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.Executor;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 //// Kernel implementation
 //// This implementation does not allow floating point arithmetic
 //// A rational-float (rfp_t) is in the todo list.
 public class KernelImpl extends Kernel {
-    private final MemoryBlock           memoryBlock;
+    private final MemoryBlockImpl       memoryBlock;
     private final StorageBlock          storageBlock;
+    private final WriteAheadLog         writeAheadLog;
+    private final CompressedStorageBlock compression;
+    private final DedupStorageBlock     deduplication;
+    private final PageCache             pageCache;
     private final SharedProcess         processes[];
     private final AtomicBoolean         keepAlive;
-    private final Executor              threadPool;
-    private final Map<Integer, Process> processMap;
+    private final SchedulerPool         scheduler;
+    private final Accounting            accounting;
+    private volatile ProcessQuota       defaultQuota;
+    private final Admission             admission;
+    private final boolean               ownsScheduler;
+    private final AtomicInteger          nextCore;
+    private final ProcessTable          processTable;
+    private final ExecutionMode         mode;
+    private final ExecutorService       processThreads;
+    private final ExecutorService       storageThreads;
+    private final int                   maxProcesses;
+    private final int                   budget;
+    private final Map<Integer, Channel> channels;
+    private final AtomicInteger         channelIDs;
+    private final Map<Integer, ProcessGroup> groups;
+    private final AtomicInteger         groupIDs;
+    private final Map<Integer, Integer> programUsers;
+    private final Set<Integer>          orphanedPrograms;
+    private final TimerService          timers;
+    private final Random                schedulingRandom;
+    private volatile ClusterNode        cluster;
+    private long                        cycles;
+    private long                        cycleRemainder;
+
+    ///// virtual clock rate of ExecutionMode.DETERMINISTIC.
+    public static final int             CYCLES_PER_MILLISECOND = 1000;
+    ///// kernel clock milliseconds between two page cache write-backs.
+    public static final long            WRITE_BACK_INTERVAL = 1000;
+    ///// threads running the asynchronous storage opcodes.
+    public static final int             STORAGE_THREADS = 4;
 
     public KernelImpl(FileService entry, int ram, long storage, int maxProcesses) throws KernelNotFoundException {
-        super(entry, ram, storage, maxProcesses);
+        this(entry, ram, storage, maxProcesses, ExecutionMode.SHARED);
+    }
+
+    public KernelImpl(FileService entry, int ram, long storage, int maxProcesses, ExecutionMode mode) throws KernelNotFoundException {
+        this(entry, ram, storage, maxProcesses, mode, 0);
+    }
+
+    ///// the seed drives every scheduling decision of ExecutionMode.DETERMINISTIC,
+    ///// identical seeds and inputs give identical interleavings and cycle counts.
+    public KernelImpl(FileService entry, int ram, long storage, int maxProcesses, ExecutionMode mode, long seed) throws KernelNotFoundException {
+        this(entry, ram, storage, maxProcesses, mode, seed, StorageEngine.CELLS);
+    }
+
+    public KernelImpl(FileService entry, int ram, long storage, int maxProcesses, ExecutionMode mode, long seed, StorageEngine engine) throws KernelNotFoundException {
+        this(entry, new MemoryBlockImpl(ram), openStorage(entry, storage, engine), new ProcessTable(Math.min(maxProcesses, ProcessTable.MAX_CAPACITY)), maxProcesses, mode, seed, 0, null, SchedulerPool.DEFAULT_SHARES);
+    }
+
+    ///// a tenant kernel (ExecutionMode.SHARED) dispatched by a scheduler pool shared with
+    ///// other kernels, it gets CPU in proportion to its shares.
+    ///// memory, storage and processes stay private to the kernel.
+    public KernelImpl(FileService entry, int ram, long storage, int maxProcesses, SchedulerPool scheduler, int shares) throws KernelNotFoundException {
+        this(entry, new MemoryBlockImpl(ram), openStorage(entry, storage, StorageEngine.CELLS), new ProcessTable(Math.min(maxProcesses, ProcessTable.MAX_CAPACITY)), maxProcesses, ExecutionMode.SHARED, 0, 0, scheduler, shares);
+    }
+
+    ///// cells and their index live in the storage directory of the entry.
+    private static StorageBlock openStorage(FileService entry, long storage, StorageEngine engine) throws KernelNotFoundException {
+        try {
+            if (engine == StorageEngine.LOG)
+                return new LogStorageBlock(entry.newFile("storage"), storage);
+            return new StorageBlockImpl(entry.newFile("storage"), storage);
+        } catch (IOException e) {
+            throw new KernelNotFoundException("storage could not be opened: " + e.getMessage());
+        }
+    }
+
+    private static FileService storageDirectory(StorageBlock engine) {
+        return engine instanceof LogStorageBlock ? ((LogStorageBlock) engine).getDirectory() : ((StorageBlockImpl) engine).getDirectory();
+    }
+
+    ///// the log lives beside the engine's files, what a crash left in it is replayed now.
+    private static WriteAheadLog openWriteAheadLog(StorageBlock engine) throws KernelNotFoundException {
+        try {
+            return new WriteAheadLog(engine, storageDirectory(engine).newFile(WriteAheadLog.FILE).file());
+        } catch (IOException e) {
+            throw new KernelNotFoundException("write-ahead log could not be replayed: " + e.getMessage());
+        }
+    }
+
+    ///// chunks are deduplicated above the page cache, identical chunks are cached once.
+    private static DedupStorageBlock openDeduplication(StorageBlock engine, PageCache pageCache) throws KernelNotFoundException {
+        try {
+            return new DedupStorageBlock(pageCache, storageDirectory(engine).newFile(DedupStorageBlock.INDEX).file());
+        } catch (IOException e) {
+            throw new KernelNotFoundException("deduplication index could not be opened: " + e.getMessage());
+        }
+    }
+
+    ///// storage threads are daemons, they are started on the first asynchronous opcode.
+    private static ExecutorService newStorageThreads() {
+        final AtomicInteger count = new AtomicInteger(0);
+
+        return Executors.newFixedThreadPool(STORAGE_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "veras-storage-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private KernelImpl(FileService entry, MemoryBlockImpl memoryBlock, StorageBlock storageBlock, ProcessTable processTable, int maxProcesses, ExecutionMode mode, long seed, long clock, SchedulerPool scheduler, int shares) throws KernelNotFoundException {
+        super(entry, memoryBlock.size(), storageBlock.size(), maxProcesses);
 
 //        FileService kernel  = entry.newFile("kernel.vs");
 //        if (!kernel.exists())
@@ -30,16 +149,36 @@ public class KernelImpl extends Kernel {
 
         final int CORE_COUNT = 8;
 
-        this.memoryBlock    = new MemoryBlockImpl(ram);
-        this.storageBlock   = new StorageBlockImpl(storage);
+        this.memoryBlock    = memoryBlock;
+        this.storageBlock   = storageBlock;
+        this.writeAheadLog  = openWriteAheadLog(storageBlock);
+        this.compression    = new CompressedStorageBlock(writeAheadLog);
+        this.pageCache      = new PageCache(compression, PageCache.DEFAULT_CAPACITY, this::scheduleWriteBack);
+        this.deduplication  = openDeduplication(storageBlock, pageCache);
         this.processes      = new SharedProcess[CORE_COUNT];
         this.keepAlive      = new AtomicBoolean(true);
-        this.threadPool     = Executors.newFixedThreadPool(8);
-        this.processMap     = Collections.synchronizedMap(new HashMap<>());
+        this.nextCore       = new AtomicInteger(0);
+        this.accounting     = new Accounting();
+        this.defaultQuota   = ProcessQuota.NONE;
+        this.admission      = new Admission(this);
+        this.processTable   = processTable;
+        this.mode           = mode;
+        this.maxProcesses   = maxProcesses;
+        this.budget         = maxProcesses / CORE_COUNT;
+        this.channels       = new ConcurrentHashMap<>();
+        this.channelIDs     = new AtomicInteger(1);
+        this.groups         = new ConcurrentHashMap<>();
+        this.groupIDs       = new AtomicInteger(1);
+        this.programUsers   = new HashMap<>();
+        this.orphanedPrograms = new HashSet<>();
+        this.timers         = new TimerService(mode == ExecutionMode.DETERMINISTIC, clock);
+        this.schedulingRandom = new Random(seed);
 
         for (int i = 0; i < CORE_COUNT; i ++)
             processes[i] = new SharedProcess(this);
 
+        timers.start();
+
         ///1
         processes[0].setPriority(maxProcesses / CORE_COUNT);
         ///0.9921875
@@ -54,25 +193,282 @@ public class KernelImpl extends Kernel {
         processes[6].setPriority(maxProcesses / CORE_COUNT);
         processes[7].setPriority(maxProcesses / CORE_COUNT);
 
-        for (int i = 0; i < CORE_COUNT; i ++)
-            threadPool.execute(processes[i]);
+        ////VIRTUAL: each process gets its own thread, the cores are left idle.
+        ////DETERMINISTIC: the cores are stepped by simulate() on the calling thread.
+        ////SHARED: the cores are dispatched by a scheduler pool, a private one unless shared.
+        this.storageThreads = newStorageThreads();
+        this.processThreads = mode == ExecutionMode.VIRTUAL ? ProcessThreads.newExecutor(Runtime.getRuntime().availableProcessors()) : null;
+        this.ownsScheduler  = mode == ExecutionMode.SHARED && scheduler == null;
+        this.scheduler      = ownsScheduler ? new SchedulerPool(CORE_COUNT) : mode == ExecutionMode.SHARED ? scheduler : null;
+
+        if (this.scheduler != null)
+        {
+            for (int i = 0; i < CORE_COUNT; i ++)
+                processes[i].setWakeup(this.scheduler::signal);
+            this.scheduler.register(this, shares);
+        }
     }
 
+    ///// creates a process if the admission control lets it in right now.
+    ///// throws exception (creating nothing) if a limit is hit.
     @Override
     public Process generateProcess(final Process parentProcess) throws MemoryException {
-        int pID = processMap.size();
-        if (processMap.size() > 65535)
+        return admission.admit(parentProcess);
+    }
+
+    @Override
+    public Process generateProcess(final Process parentProcess, long timeout, TimeUnit unit) throws MemoryException, InterruptedException {
+        return admission.admit(parentProcess, timeout, unit);
+    }
+
+    @Override
+    public CompletableFuture<Process> submitProcess(final Process parentProcess, final byte program[]) {
+        return admission.submit(parentProcess, program);
+    }
+
+    ///// pids are reserved with one table operation, every heap, stack and program is
+    ///// carved out in one allocator pass and the batch is placed on the cores with one
+    ///// load balancing decision.
+    @Override
+    public Process[] spawnProcesses(final Collection<ProcessDescriptor> descriptors) throws MemoryException {
+        ProcessDescriptor batch[] = descriptors.toArray(new ProcessDescriptor[0]);
+        int count = batch.length;
+        if (count == 0)
+            return new Process[0];
+
+        ////heap, value stack, frame table and program of every process.
+        int sizes[] = new int[count * 4];
+        long bytes  = 0;
+        for (int i = 0; i < count; i ++)
+        {
+            sizes[i * 4]        = Heap.DEFAULT_SIZE;
+            sizes[i * 4 + 1]    = Stack.DEFAULT_SIZE;
+            sizes[i * 4 + 2]    = Stack.FRAME_TABLE_SIZE;
+            sizes[i * 4 + 3]    = batch[i].getProgram().length;
+            bytes              += Admission.FOOTPRINT + sizes[i * 4 + 3];
+        }
+
+        admission.admit(count, bytes);
+
+        int pIDs[] = new int[count];
+        int blocks[];
+        try {
+            if (!processTable.allocate(pIDs))
+                throw new MemoryException("too many processes created.");
+
+            try {
+                blocks = memoryBlock.mallocAll(sizes);
+            } catch (MemoryException e) {
+                for (int pID : pIDs)
+                    processTable.abandon(pID);
+                throw e;
+            }
+        } finally {
+            admission.created(count, bytes);
+        }
+
+        Process processes[] = new Process[count];
+        ProcessQuota quota  = defaultQuota;
+        for (int i = 0; i < count; i ++)
+        {
+            int program = blocks[i * 4 + 3];
+            memoryBlock.setArray(program, batch[i].getProgram(), 0, sizes[i * 4 + 3]);
+
+            Process process = new Process(this, pIDs[i], new Heap(this, blocks[i * 4], program), new Stack(this, blocks[i * 4 + 1], blocks[i * 4 + 2]));
+            process.setQuota(quota);
+            process.setPriority(batch[i].getPriority());
+            process.setSchedulingClass(batch[i].getSchedulingClass());
+            try {
+                process.setProgramImage(program);
+            } catch (ProcessException e) {
+                ////a fresh process has no program yet.
+            }
+
+            processTable.install(pIDs[i], process);
+            processes[i] = process;
+        }
+
+        executeProcesses(processes);
+        return processes;
+    }
+
+    ///// limits on host created processes and process groups, processes spawned one by one
+    ///// by programs are not held back but count towards the limits.
+    public void setAdmissionControl(final AdmissionControl control) {
+        admission.setControl(control == null ? AdmissionControl.NONE : control);
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admission.getControl();
+    }
+
+    ///// spawns submitted and not admitted yet.
+    public int getPendingSpawns() {
+        return admission.getPending();
+    }
+
+    ///// processes created and not halted yet.
+    public int getLiveProcesses() {
+        return processTable.reserved();
+    }
+
+    int getMaxLiveProcesses() {
+        return processTable.capacity();
+    }
+
+    ///// bytes processes may still allocate before the memory quota is hit.
+    public long getMemoryHeadroom() {
+        return memoryBlock.getQuota() - memoryBlock.getAllocated();
+    }
+
+    ///// creates a process without admission control.
+    Process createProcess(final Process parentProcess) throws MemoryException {
+        int pID = processTable.allocate();
+        if (pID < 0)
             throw new MemoryException("too many processes created.");
-        Process process = new Process(this,  pID);
-        processMap.put(pID, process);
 
+        Process process;
+        try {
+            process = new Process(this,  pID);
+        } catch (MemoryException e) {
+            processTable.abandon(pID);
+            throw e;
+        }
+        processTable.install(pID, process);
+
+        ////children inherit the quota of their parent.
+        process.setQuota(parentProcess != null ? parentProcess.getQuota() : defaultQuota);
         if (parentProcess != null)
-            parentProcess.addChild(pID);
+            parentProcess.addChild(process);
         return process;
     }
 
+    ////a group is admitted as a whole, like a spawnProcesses batch.
+    @Override
+    public ProcessGroup spawnGroup(final Process parentProcess, int program, int entry, int count, int priority) throws MemoryException {
+        ////count comes from a guest, nothing is allocated for it before it is known to fit.
+        if (count <= 0 || count > processTable.capacity())
+            throw new MemoryException("cannot spawn a group of '" + count + "' processes.");
+
+        long bytes = count * Admission.FOOTPRINT;
+        admission.admit(count, bytes);
+
+        int pIDs[] = new int[count];
+        Process members[] = new Process[count];
+        try {
+            if (!processTable.allocate(pIDs))
+                throw new MemoryException("too many processes created.");
+
+            try {
+                for (int i = 0; i < count; i ++)
+                {
+                    members[i] = new Process(this, pIDs[i]);
+                    members[i].setQuota(parentProcess != null ? parentProcess.getQuota() : defaultQuota);
+                    members[i].setPriority(priority);
+                    members[i].setProgram(program, entry);
+                    members[i].getStack().push(i);
+                }
+            } catch (MemoryException | ProcessException e) {
+                for (int i = 0; i < count; i ++)
+                {
+                    if (members[i] != null)
+                        members[i].halt();
+                    processTable.abandon(pIDs[i]);
+                }
+                throw new MemoryException("could not spawn group: " + e.getMessage());
+            }
+        } finally {
+            admission.created(count, bytes);
+        }
+
+        for (int i = 0; i < count; i ++)
+        {
+            processTable.install(pIDs[i], members[i]);
+            if (parentProcess != null)
+                parentProcess.addChild(members[i]);
+        }
+
+        final ProcessGroup group = new ProcessGroup(groupIDs.getAndIncrement(), members);
+        trackGroup(parentProcess, group);
+        executeProcesses(members);
+
+        return group;
+    }
+
+    ////a group stays joinable by id until its members and the parent that could still join
+    ////it have all halted, the host keeps the ProcessGroup spawnGroup returned instead.
+    private void trackGroup(final Process parentProcess, final ProcessGroup group) {
+        groups.put(group.getGroupID(), group);
+
+        CompletableFuture<?> joinable = parentProcess == null ? group.getExitFuture()
+                : CompletableFuture.allOf(group.getExitFuture(), parentProcess.getExitFuture());
+        joinable.whenComplete((v, error) -> groups.remove(group.getGroupID(), group));
+    }
+
+    ////programUsers counts the processes running an image they do not own, an image whose
+    ////owner halted first is kept in orphanedPrograms until the last of them halts.
+    @Override
+    public void retainProgram(int program) {
+        synchronized (programUsers) {
+            programUsers.merge(program, 1, Integer::sum);
+        }
+    }
+
+    @Override
+    public void releaseProgram(int program, boolean owner) throws MemoryException {
+        synchronized (programUsers) {
+            if (owner)
+            {
+                if (programUsers.containsKey(program))
+                {
+                    orphanedPrograms.add(program);
+                    return;
+                }
+            }
+            else
+            {
+                ////an image the host handed out (spawnGroup, setProgram) is never freed here.
+                Integer users = programUsers.get(program);
+                if (users == null)
+                    return;
+                if (users > 1)
+                {
+                    programUsers.put(program, users - 1);
+                    return;
+                }
+                programUsers.remove(program);
+                if (!orphanedPrograms.remove(program))
+                    return;
+            }
+        }
+
+        memoryBlock.delete(program);
+    }
+
+    public ProcessGroup getGroup(int groupID) {
+        return groups.get(groupID);
+    }
+
+    public Process getProcess(int pID) {
+        return processTable.get(pID);
+    }
+
     @Override
     public void executeProcess(Process process) {
+        if (mode == ExecutionMode.VIRTUAL)
+        {
+            ////a process keeps its queued mark while its thread runs, it never gets a second one.
+            if (process.markQueued())
+                processThreads.execute(new DedicatedProcess(this, process, budget));
+            return;
+        }
+
+        if (mode == ExecutionMode.DETERMINISTIC)
+        {
+            executeProcesses(new Process[] { process });
+            return;
+        }
+
         Queue<SharedProcess> processes = new PriorityQueue<>();
         for (int p = 0; p < this.processes.length; p++)
             if (this.processes[p].awake())
@@ -81,33 +477,164 @@ public class KernelImpl extends Kernel {
         processes.poll().executeProcess(process);
     }
 
+    ///// places a batch of processes on the cores in one decision.
+    ///// the core loads are sampled once and every process goes to the least loaded core.
+    public void executeProcesses(final Process batch[]) {
+        if (mode == ExecutionMode.VIRTUAL)
+        {
+            for (Process process : batch)
+                executeProcess(process);
+            return;
+        }
+
+        int load[] = new int[processes.length];
+        for (int p = 0; p < processes.length; p++)
+            load[p] = processes[p].awake() ? processes[p].getActiveProcesses() : Integer.MAX_VALUE;
+
+        for (Process process : batch)
+        {
+            int core = 0;
+            int ties = 1;
+            for (int p = 1; p < load.length; p++)
+            {
+                if (load[p] < load[core])
+                {
+                    core = p;
+                    ties = 1;
+                }
+                ////ties are broken by the seeded generator, uniformly over the tied cores.
+                else if (mode == ExecutionMode.DETERMINISTIC && load[p] == load[core] && schedulingRandom.nextInt(++ ties) == 0)
+                    core = p;
+            }
+
+            load[core] ++;
+            processes[core].executeProcess(process);
+        }
+    }
+
     @Override
     public void haltProcess(Process process) {
         process.halt();
         for (SharedProcess sharedProcess : processes)
             sharedProcess.haltProcess(process);
 
-        processMap.remove(process.getProcessID());
+        processTable.release(process.getProcessID(), process);
+        admission.released();
     }
 
     @Override
     public void haltProcessRecursive(final int pID) {
-        final Process process = processMap.get(pID);
+        final Process process = processTable.get(pID);
+        if (process != null)
+            haltProcessRecursive(process);
+    }
+
+    @Override
+    public void haltProcessRecursive(final Process process) {
+        if (process.getKernel() != this || processTable.get(process.getProcessID()) != process)
+            return;
+
         process.haltAll();
         for (SharedProcess sharedProcess : processes)
             sharedProcess.haltProcess(process);
 
-        processMap.remove(pID);
+        processTable.release(process.getProcessID(), process);
+        admission.released();
     }
 
     @Override
-    public MemoryBlock getMemoryBlock() {
+    public CompletableFuture<Long> joinProcess(final int pID) {
+        final Process process = processTable.get(pID);
+        if (process == null)
+            return null;
+
+        return process.getExitFuture();
+    }
+
+    ///// halts a process with the given exit code, children keep running.
+    public void exitProcess(final Process process, long exitCode) {
+        process.setExitCode(exitCode);
+        process.hang();
+        haltProcess(process);
+    }
+
+    @Override
+    public MemoryBlockImpl getMemoryBlock() {
         return memoryBlock;
     }
 
+    ///// storage as processes see it, through deduplication and the page cache.
     @Override
     public StorageBlock getStorageBlock() {
-        return storageBlock;
+        return deduplication;
+    }
+
+    public PageCache getPageCache() {
+        return pageCache;
+    }
+
+    ///// empties the page cache and resizes it, its memory is not taken from the kernel's ram.
+    public void setPageCacheCapacity(long capacity) throws IOException {
+        pageCache.setCapacity(capacity);
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    ///// durable storage: a cell write returns once it is in the write-ahead log on disk,
+    ///// the page cache writes through. otherwise writes are durable after syncStorage().
+    public void setDurableStorage(boolean durable) throws IOException {
+        if (durable)
+        {
+            pageCache.setWriteThrough(true);
+            writeAheadLog.setLogging(true);
+            deduplication.setDurable(true);
+        }
+        else
+        {
+            deduplication.setDurable(false);
+            writeAheadLog.setLogging(false);
+            pageCache.setWriteThrough(false);
+        }
+    }
+
+    public boolean isDurableStorage() {
+        return writeAheadLog.isLogging();
+    }
+
+    public CompressedStorageBlock getCompression() {
+        return compression;
+    }
+
+    public DedupStorageBlock getDeduplication() {
+        return deduplication;
+    }
+
+    ///// large cells are stored as content-addressed chunks, each distinct chunk once.
+    public void setStorageDeduplication(boolean deduplicating) {
+        deduplication.setDeduplicating(deduplicating);
+    }
+
+    ///// cells are compressed below the page cache, so cached pages stay plain and the
+    ///// write-ahead log and the engine write the compressed bytes.
+    public void setStorageCompression(boolean compressing) {
+        compression.setCompressing(compressing);
+    }
+
+    ///// a dirty page reaches the storage engine within WRITE_BACK_INTERVAL.
+    ///// armed when the page cache gets dirty, an idle kernel has no timer running.
+    private void scheduleWriteBack() {
+        timers.scheduleAfter(WRITE_BACK_INTERVAL, () -> {
+            if (!keepAlive.get())
+                return;
+
+            try {
+                pageCache.flush();
+            } catch (IOException e) {
+                scheduleWriteBack();
+            }
+        });
     }
 
     @Override
@@ -116,6 +643,723 @@ public class KernelImpl extends Kernel {
             sharedProcess.halt();
 
         keepAlive.set(false);
+        timers.stop();
+        admission.close();
+
+        ////writes already issued by processes are finished before the cache is flushed.
+        storageThreads.shutdown();
+        try {
+            storageThreads.awaitTermination(WRITE_BACK_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            pageCache.flush();
+        } catch (IOException e) {
+        }
+        deduplication.close();
+
+        try {
+            writeAheadLog.close();
+        } catch (IOException e) {
+            ////replayed on the next start.
+        }
+
+        if (storageBlock instanceof LogStorageBlock)
+        {
+            try {
+                ((LogStorageBlock) storageBlock).close();
+            } catch (IOException e) {
+                ////replayed from the last checkpoint on the next start.
+            }
+        }
+
+        if (processThreads != null)
+            processThreads.shutdownNow();
+
+        if (scheduler != null)
+        {
+            scheduler.unregister(this);
+            if (ownsScheduler)
+                scheduler.shutdown();
+        }
+
+        if (cluster != null)
+            cluster.stop();
+    }
+
+    ///// writes the kernel to an image restore() can resume from.
+    ///// every core is paused between two quanta while the image is written, the host
+    ///// must not touch processes or channels meanwhile (ExecutionMode.DETERMINISTIC is
+    ///// only paused between two step() calls anyway).
+    ///// processes blocked on a channel, a join or a timer are resumed by retrying the
+    ///// blocking instruction. process groups are written as their member pids.
+    @Override
+    public void snapshot(final FileService image) throws IOException {
+        if (mode == ExecutionMode.VIRTUAL)
+            throw new IllegalStateException("snapshot() cannot pause processes running on their own threads.");
+
+        for (SharedProcess sharedProcess : processes)
+            sharedProcess.pause();
+
+        try {
+            ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+            writeMetadata(new DataOutputStream(metadata));
+
+            KernelImage.write(image, metadata.toByteArray(), memoryBlock.contents());
+        } finally {
+            if (keepAlive.get())
+                for (SharedProcess sharedProcess : processes)
+                    sharedProcess.wake();
+        }
+    }
+
+    private void writeMetadata(final DataOutputStream out) throws IOException {
+        out.writeInt(maxProcesses);
+        out.writeLong(timers.now());
+        out.writeLong(cycles);
+        out.writeLong(cycleRemainder);
+
+        memoryBlock.write(out);
+        pageCache.flush();
+        if (storageBlock instanceof LogStorageBlock)
+        {
+            out.writeByte(StorageEngine.LOG.ordinal());
+            ((LogStorageBlock) storageBlock).write(out);
+        }
+        else
+        {
+            out.writeByte(StorageEngine.CELLS.ordinal());
+            ((StorageBlockImpl) storageBlock).write(out);
+        }
+        processTable.write(out);
+
+        ////halted processes stay reachable through parents, joiners and groups.
+        Map<Integer, Process> known = new LinkedHashMap<>();
+        for (Process process : processTable.processes())
+            known.put(process.getProcessID(), process);
+        for (Process process : new ArrayList<>(known.values()))
+        {
+            for (Process child : process.getChildren())
+                known.putIfAbsent(child.getProcessID(), child);
+            if (process.getJoining() != null)
+                known.putIfAbsent(process.getJoining().getProcessID(), process.getJoining());
+        }
+        for (ProcessGroup group : groups.values())
+            for (int i = 0; i < group.size(); i ++)
+                known.putIfAbsent(group.getMember(i).getProcessID(), group.getMember(i));
+
+        out.writeInt(known.size());
+        for (Process process : known.values())
+            process.write(out);
+
+        for (Process process : known.values())
+        {
+            Process[] children          = process.getChildren();
+            Process joining             = process.getJoining();
+            TimingWheel.Timer waitTimer = process.getWaitTimer();
+
+            out.writeInt(joining == null ? -1 : joining.getProcessID());
+            out.writeBoolean(waitTimer != null);
+            if (waitTimer != null)
+                out.writeLong(waitTimer.getDeadline());
+            out.writeInt(children.length);
+            for (Process child : children)
+                out.writeInt(child.getProcessID());
+        }
+
+        out.writeInt(channelIDs.get());
+        out.writeInt(channels.size());
+        for (Channel channel : channels.values())
+            channel.write(out);
+
+        out.writeInt(groupIDs.get());
+        out.writeInt(groups.size());
+        for (ProcessGroup group : groups.values())
+        {
+            out.writeInt(group.getGroupID());
+            out.writeInt(group.size());
+            for (int i = 0; i < group.size(); i ++)
+                out.writeInt(group.getMember(i).getProcessID());
+        }
+
+        synchronized (programUsers) {
+            out.writeInt(programUsers.size());
+            for (Map.Entry<Integer, Integer> users : programUsers.entrySet())
+            {
+                out.writeInt(users.getKey());
+                out.writeInt(users.getValue());
+                out.writeBoolean(orphanedPrograms.contains(users.getKey()));
+            }
+        }
+
+        out.flush();
+    }
+
+    ///// resumes a kernel from an image written by snapshot().
+    ///// the memory block is mapped copy-on-write from the image, pages are read when
+    ///// first touched and guest writes never reach the image. programs are not reloaded,
+    ///// bootloaders are not run again, processes keep their pids and program counters.
+    ///// the execution mode may differ from the one the image was taken in.
+    public static KernelImpl restore(FileService image, FileService entry, ExecutionMode mode, long seed) throws IOException, KernelNotFoundException {
+        KernelImage kernelImage = KernelImage.read(image);
+        DataInputStream in      = kernelImage.getMetadata();
+
+        int maxProcesses        = in.readInt();
+        long clock              = in.readLong();
+        long cycles             = in.readLong();
+        long cycleRemainder     = in.readLong();
+
+        MemoryBlockImpl memoryBlock     = new MemoryBlockImpl(kernelImage.getMemory(), in);
+        StorageBlock storageBlock       = in.readByte() == StorageEngine.LOG.ordinal() ? new LogStorageBlock(in) : new StorageBlockImpl(in);
+        ProcessTable processTable       = new ProcessTable(in);
+
+        KernelImpl kernel = new KernelImpl(entry, memoryBlock, storageBlock, processTable, maxProcesses, mode, seed, clock, null, SchedulerPool.DEFAULT_SHARES);
+        kernel.cycles           = cycles;
+        kernel.cycleRemainder   = cycleRemainder;
+        kernel.restoreMetadata(in);
+
+        return kernel;
+    }
+
+    private void restoreMetadata(final DataInputStream in) throws IOException {
+        Map<Integer, Process> known = new LinkedHashMap<>();
+        for (int i = in.readInt(); i > 0; i --)
+        {
+            Process process = Process.read(this, in);
+            known.put(process.getProcessID(), process);
+            if (!process.halted())
+                processTable.install(process.getProcessID(), process);
+        }
+        processTable.rebuildFreeList();
+
+        for (Process process : known.values())
+        {
+            int joining = in.readInt();
+            if (joining >= 0)
+                process.setJoining(known.get(joining));
+            if (in.readBoolean())
+                process.setWaitTimer(timers.schedule(in.readLong(), process::expire));
+            for (int i = in.readInt(); i > 0; i --)
+                process.addChild(known.get(in.readInt()));
+        }
+
+        channelIDs.set(in.readInt());
+        for (int i = in.readInt(); i > 0; i --)
+        {
+            Channel channel = Channel.read(in);
+            channels.put(channel.getId(), channel);
+            Process owner   = known.get(channel.getOwner());
+            if (owner != null)
+                owner.getExitFuture().whenComplete((code, error) -> closeChannel(channel.getId()));
+        }
+
+        groupIDs.set(in.readInt());
+        for (int i = in.readInt(); i > 0; i --)
+        {
+            int groupID         = in.readInt();
+            Process members[]   = new Process[in.readInt()];
+            for (int m = 0; m < members.length; m ++)
+                members[m] = known.get(in.readInt());
+
+            Process parent      = null;
+            for (Process candidate : known.values())
+                if (members.length > 0 && candidate.getChild(members[0].getProcessID()) == members[0])
+                    parent = candidate;
+
+            trackGroup(parent, new ProcessGroup(groupID, members));
+        }
+
+        for (int i = in.readInt(); i > 0; i --)
+        {
+            int program = in.readInt();
+            programUsers.put(program, in.readInt());
+            if (in.readBoolean())
+                orphanedPrograms.add(program);
+        }
+
+        List<Process> runnable = new ArrayList<>();
+        for (Process process : known.values())
+        {
+            if (process.halted())
+                continue;
+
+            wakeBlocked(process);
+            runnable.add(process);
+        }
+
+        executeProcesses(runnable.toArray(new Process[0]));
+    }
+
+    ///// a process brought in from an image or another kernel lost its waiter
+    ///// registrations, if it is hung on a blocking instruction it retries it.
+    private void wakeBlocked(final Process process) {
+        if (!process.awake() && process.getProgram() != 0 && isBlocking(memoryBlock.getByte(process.getProgram() + process.getProgramIndex())))
+            process.wake();
+    }
+
+    private static boolean isBlocking(int instruction) {
+        switch (instruction) {
+            case OP_CHSEND:
+            case OP_CHRECV:
+            case OP_CHSENDN:
+            case OP_CHRECVN:
+            case OP_CHRECVT:
+            case OP_JOIN:
+            case OP_JOINT:
+            case OP_JOINN:
+            case OP_SLEEP:
+            case OP_SLEEPUNTIL:
+            case OP_ALDCELL:
+            case OP_ASTCELL:
+            case OP_AFLUSH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    ///// moves a running process to another kernel in this JVM.
+    ///// its pages are pre-copied while it keeps running, it is only frozen for the
+    ///// last round. returns the process on the target, the source pid stays reserved and
+    ///// its exit future completes once the moved process exits, then the pid is released.
+    ///// throws exception (leaving the process running here) if the move fails.
+    ///// channel ids are local to a kernel, a process should not be moved while it uses one.
+    public Process migrate(final Process process, final KernelImpl target) throws IOException, ProcessException {
+        ProcessCheckpoint checkpoint    = new ProcessCheckpoint(this, process);
+        ProcessImport processImport     = new ProcessImport(target, pID -> {
+            Process child = process.getChild(pID);
+            if (child == null && process.getJoining() != null && process.getJoining().getProcessID() == pID)
+                child = process.getJoining();
+            return child != null ? child : getProcess(pID);
+        });
+
+        try {
+            for (int round = 0; round < ProcessCheckpoint.MAX_PRECOPY_ROUNDS; round ++)
+            {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                long sent = checkpoint.precopy(new DataOutputStream(buffer));
+                processImport.read(new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+
+                if (sent <= ProcessCheckpoint.STOP_COPY_BYTES)
+                    break;
+            }
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            checkpoint.commit(new DataOutputStream(buffer));
+            processImport.read(new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+        } catch (IOException | ProcessException e) {
+            checkpoint.abort();
+            processImport.abort();
+            throw e;
+        }
+
+        checkpoint.finish(processImport.getProcess().getExitFuture());
+        return processImport.getProcess();
+    }
+
+    ///// moves a running process to the kernel behind a MigrationServer.
+    ///// returns the pid of the process on the remote kernel, see migrate(Process, KernelImpl).
+    ///// running children cannot be reached from another JVM, such a move is refused.
+    public int migrate(final Process process, final String host, int port) throws IOException, ProcessException {
+        final Socket socket = new Socket(host, port);
+        ProcessCheckpoint checkpoint = new ProcessCheckpoint(this, process);
+
+        int processID;
+        try {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out    = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            final DataInputStream in= new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            for (int round = 0; round < ProcessCheckpoint.MAX_PRECOPY_ROUNDS; round ++)
+                if (checkpoint.precopy(out) <= ProcessCheckpoint.STOP_COPY_BYTES)
+                    break;
+
+            checkpoint.commit(out);
+
+            processID = in.readInt();
+            if (processID < 0)
+                throw new IOException("migration refused: " + in.readUTF());
+
+            CompletableFuture<Long> exit = new CompletableFuture<>();
+            Thread watcher = new Thread(() -> {
+                try {
+                    exit.complete(in.readLong());
+                } catch (IOException e) {
+                    exit.complete(-1L);
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }, "veras-migration-" + Long.toHexString(processID));
+            watcher.setDaemon(true);
+            watcher.start();
+
+            checkpoint.finish(exit);
+        } catch (IOException | ProcessException e) {
+            checkpoint.abort();
+            socket.close();
+            throw e;
+        }
+
+        return processID;
+    }
+
+    ///// dispatches one quantum on the first core (from a rotating start) that has a
+    ///// runnable process and is not being dispatched by another thread.
+    ///// returns the instructions retired, or -1 if nothing ran.
+    long dispatch() {
+        int start = nextCore.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < processes.length; i ++)
+        {
+            SharedProcess core = processes[(start + i) % processes.length];
+            if (!core.hasRunnable())
+                continue;
+
+            long retired = core.tryRunOnce();
+            if (retired >= 0)
+                return retired;
+        }
+        return -1;
+    }
+
+    boolean hasRunnable() {
+        if (!keepAlive.get())
+            return false;
+
+        for (SharedProcess core : processes)
+            if (core.hasRunnable())
+                return true;
+        return false;
+    }
+
+    ///// caps the bytes processes of this kernel may allocate, at most the kernel's ram.
+    public void setMemoryQuota(long quota) {
+        memoryBlock.setQuota(Math.min(quota, memoryBlock.size()));
+    }
+
+    public long getMemoryQuota() {
+        return memoryBlock.getQuota();
+    }
+
+    @Override
+    public Accounting getAccounting() {
+        return accounting;
+    }
+
+    ///// the quota of processes created without a parent, children inherit their parent's.
+    public void setDefaultQuota(ProcessQuota quota) {
+        this.defaultQuota = quota == null ? ProcessQuota.NONE : quota;
+    }
+
+    public ProcessQuota getDefaultQuota() {
+        return defaultQuota;
+    }
+
+    public SchedulerPool getScheduler() {
+        return scheduler;
+    }
+
+    ///// makes this kernel a cluster node listening on the address (port 0 picks one).
+    ///// processes executed with OP_PRCE may then run on less loaded peers,
+    ///// peers are added with getCluster().connect(address).
+    public ClusterNode joinCluster(int nodeID, InetSocketAddress address) throws IOException {
+        if (cluster != null)
+            throw new IllegalStateException("kernel already joined a cluster.");
+
+        ClusterNode node = new ClusterNode(this, nodeID, address);
+        node.start();
+        this.cluster = node;
+        return node;
+    }
+
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    ///// number of processes that have a program and are not hung.
+    public int getLoad() {
+        int load = 0;
+        for (Process process : processTable.processes())
+            load += process.isIdle() ? 0 : 1;
+        return load;
+    }
+
+    ///// reserves a pid for a process built outside generateProcess().
+    int allocateProcessID() throws MemoryException {
+        int pID = processTable.allocate();
+        if (pID < 0)
+            throw new MemoryException("too many processes created.");
+        return pID;
+    }
+
+    ///// installs and schedules a process imported from another kernel.
+    void adoptProcess(final Process process) {
+        processTable.install(process.getProcessID(), process);
+        wakeBlocked(process);
+        executeProcess(process);
+    }
+
+    ///// drops a process that was moved to another kernel.
+    void detachProcess(final Process process) {
+        for (SharedProcess sharedProcess : processes)
+            sharedProcess.haltProcess(process);
+
+        process.detach();
+        ////the process stays in the table as a proxy for the moved one, its pid remains
+        ////joinable and is not handed out again until the moved process exits.
+        process.getExitFuture().whenComplete((code, error) -> {
+            if (processTable.release(process.getProcessID(), process))
+                admission.released();
+        });
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return mode;
+    }
+
+    ///// dispatch latencies of one scheduling class, aggregated over every core.
+    public LatencyHistogram getLatencyHistogram(SchedulingClass schedulingClass) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (SharedProcess sharedProcess : processes)
+            histogram.merge(sharedProcess.getLatencies(schedulingClass));
+
+        return histogram;
+    }
+
+    ///// runs one deterministic round on the calling thread (ExecutionMode.DETERMINISTIC).
+    ///// every core dispatches one quantum, in an order drawn from the seeded generator,
+    ///// then the virtual clock advances by the instructions retired.
+    ///// when nothing is runnable the clock skips ahead to the next armed timer.
+    ///// returns the instructions retired, or -1 once nothing is runnable and no timer is armed.
+    public long step() {
+        if (mode != ExecutionMode.DETERMINISTIC)
+            throw new IllegalStateException("step() requires ExecutionMode.DETERMINISTIC.");
+
+        int order[] = new int[processes.length];
+        for (int p = 0; p < order.length; p++)
+            order[p] = p;
+        for (int p = order.length - 1; p > 0; p--)
+        {
+            int swap        = schedulingRandom.nextInt(p + 1);
+            int core        = order[p];
+            order[p]        = order[swap];
+            order[swap]     = core;
+        }
+
+        boolean ran     = false;
+        long retired    = 0;
+        for (int p : order)
+        {
+            long instructions = processes[p].runOnce();
+            if (instructions >= 0)
+            {
+                ran      = true;
+                retired += instructions;
+            }
+        }
+
+        if (!ran)
+        {
+            if (timers.pending() == 0)
+                return -1;
+
+            ////nothing can run before the next timer fires, skip the idle ticks.
+            long next = timers.nextDeadline();
+            timers.advanceTo(next == Long.MAX_VALUE ? timers.now() : Math.max(next, timers.now() + 1));
+            return 0;
+        }
+
+        cycles          += retired;
+        cycleRemainder  += retired;
+        timers.advanceTo(timers.now() + cycleRemainder / CYCLES_PER_MILLISECOND);
+        cycleRemainder  %= CYCLES_PER_MILLISECOND;
+
+        return retired;
+    }
+
+    ///// steps the kernel until nothing is left to run or maxRounds rounds elapsed.
+    ///// returns the instructions retired.
+    public long simulate(long maxRounds) {
+        long retired = 0;
+        for (long round = 0; round < maxRounds; round++)
+        {
+            long instructions = step();
+            if (instructions < 0)
+                break;
+            retired += instructions;
+        }
+
+        return retired;
+    }
+
+    ///// instructions retired by simulate() since boot.
+    public long getCycles() {
+        return cycles;
+    }
+
+    public TimerService getTimerService() {
+        return timers;
+    }
+
+    ///// hangs the process until the kernel clock reaches the deadline.
+    ///// returns true once the deadline passed, false if the instruction has to be retried.
+    private boolean sleepUntil(final Process process, long deadline) {
+        if (process.getWaitTimer() == null) {
+            if (deadline <= timers.now())
+                return true;
+
+            process.setWaitTimer(timers.schedule(deadline, process::expire));
+        }
+
+        if (process.timedOut()) {
+            process.clearWaitTimer();
+            return true;
+        }
+
+        process.hang();
+        ////the timer may have fired before we hung.
+        if (process.timedOut())
+            process.wake();
+        return false;
+    }
+
+    ///// opens a new inter-process channel.
+    ///// returns the channel, its id is how guests refer to it.
+    public Channel openChannel(int kind, int capacity) {
+        Channel channel = Channel.create(channelIDs.getAndIncrement(), kind, capacity);
+        channels.put(channel.getId(), channel);
+        return channel;
+    }
+
+    ///// opens a channel on behalf of a process.
+    ///// the channel is closed and dropped once the process halts.
+    public Channel openChannel(final Process owner, int kind, int capacity) {
+        Channel channel = openChannel(kind, capacity);
+        channel.setOwner(owner.getProcessID());
+        owner.getExitFuture().whenComplete((code, error) -> closeChannel(channel.getId()));
+        return channel;
+    }
+
+    public Channel getChannel(int channelID) {
+        return channels.get(channelID);
+    }
+
+    ///// closes the channel and wakes every process waiting on it.
+    public void closeChannel(int channelID) {
+        Channel channel = channels.remove(channelID);
+        if (channel != null)
+            channel.close();
+    }
+
+    //// up to count bytes of the cell from the offset, null if there is no such cell.
+    private ByteBuffer readCell(final byte key[], long offset, int count) throws IOException {
+        ByteBuffer cell = deduplication.mapCell(key);
+        if (cell == null)
+            return null;
+
+        cell.position((int) Math.min(offset, cell.limit()));
+        cell.limit((int) Math.min(cell.limit(), (long) cell.position() + count));
+        return cell;
+    }
+
+    //// replaces the cell's contents, the cell is created if it does not exist.
+    private boolean writeCell(final byte key[], final ByteBuffer data) throws IOException {
+        deduplication.createBlock(key);
+        return deduplication.writeCell(key, new ByteBuffer[] { data });
+    }
+
+    ///// writes dirty cached pages to the storage engine and makes them durable.
+    public void syncStorage() throws IOException {
+        deduplication.sync();
+    }
+
+    //// runs a storage operation of the process on a storage thread.
+    //// ExecutionMode.DETERMINISTIC runs it right away, completions must not race the clock.
+    private CompletableFuture<Object> submitStorage(final Process process, final Callable<Object> operation) {
+        CompletableFuture<Object> io = new CompletableFuture<>();
+        Runnable task = () -> {
+            try {
+                io.complete(operation.call());
+            } catch (Exception e) {
+                io.completeExceptionally(e);
+            }
+        };
+
+        process.setPendingIO(io);
+        if (mode == ExecutionMode.DETERMINISTIC) {
+            task.run();
+            return io;
+        }
+
+        try {
+            storageThreads.execute(task);
+        } catch (RejectedExecutionException e) {
+            io.completeExceptionally(new IOException("kernel halted."));
+        }
+        return io;
+    }
+
+    //// hangs the process until its storage operation completes, the core runs other processes meanwhile.
+    private static void awaitStorage(final Process process, final CompletableFuture<?> io) {
+        process.hang();
+        io.whenComplete((result, error) -> process.wake());
+    }
+
+    //// takes the result of the process's completed storage operation.
+    private static Object storageResult(final Process process, final CompletableFuture<?> io, final String operation) throws ExecutionException {
+        process.setPendingIO(null);
+        try {
+            return io.join();
+        } catch (CompletionException e) {
+            throw new ExecutionException("could not " + operation + ": " + e.getCause().getMessage());
+        }
+    }
+
+    //// the key of a cell opcode, read from the heap.
+    private static byte[] cellKey(final Heap heap, int length, int pointer) throws ExecutionException {
+        if (length <= 0)
+            throw new ExecutionException("invalid cell key.");
+
+        ByteBuffer view = heap.view(pointer, length);
+        if (view.remaining() != length)
+            throw new ExecutionException("cell key outside of the heap.");
+
+        byte key[] = new byte[length];
+        view.get(key);
+        return key;
+    }
+
+    private Channel channel(int channelID) throws ExecutionException {
+        Channel channel = channels.get(channelID);
+        if (channel == null)
+            throw new ExecutionException("no channel by id '" + Long.toHexString(channelID) + "'.");
+        return channel;
+    }
+
+    ////the side of an SPSC channel another process uses is refused.
+    private Channel sender(int channelID, final Process process) throws ExecutionException {
+        Channel channel = channel(channelID);
+        if (!channel.bindSender(process.getProcessID()))
+            throw new ExecutionException("channel '" + Long.toHexString(channelID) + "' has another sender.");
+        return channel;
+    }
+
+    private Channel receiver(int channelID, final Process process) throws ExecutionException {
+        Channel channel = channel(channelID);
+        if (!channel.bindReceiver(process.getProcessID()))
+            throw new ExecutionException("channel '" + Long.toHexString(channelID) + "' has another receiver.");
+        return channel;
+    }
+
+    ////a batch can never move more words than the heap holds.
+    private static int wordCount(final Heap heap, long count) throws ExecutionException {
+        if (count < 0 || count > heap.sizeOf() / 8)
+            throw new ExecutionException("word count '" + count + "' does not fit the heap.");
+        return (int) count;
     }
 
     public static final byte
@@ -161,6 +1405,74 @@ public class KernelImpl extends Kernel {
             OP_DREF         = 31,
             OP_AREF         = 32,
             OP_CALL         = 33,
+            //open a channel
+            //pop the kind (0 spsc, 1 mpsc, 2 mpmc) and the capacity, push the channel id.
+            //the capacity is at most Channel.MAX_CAPACITY, the channel is closed once the process halts.
+            //each side of an spsc channel belongs to the first process to use it, others get an error.
+            OP_CHOPEN       = 34,
+            //pop the channel id and a word, send the word.
+            //hangs the process while the channel is full, pushes 1 if sent or 0 if the channel is closed.
+            OP_CHSEND       = 35,
+            //pop the channel id, receive a word.
+            //hangs the process while the channel is empty, pushes the word and 1, or 0 and 0 if the channel is closed.
+            OP_CHRECV       = 36,
+            //pop the channel id, a word count and a heap pointer, send up to count words from the heap.
+            //hangs the process while the channel is full, pushes the number of words sent.
+            OP_CHSENDN      = 37,
+            //pop the channel id, a word count and a heap pointer, receive up to count words into the heap.
+            //hangs the process while the channel is empty, pushes the number of words received.
+            OP_CHRECVN      = 38,
+            //pop the channel id and close it.
+            OP_CHCLOSE      = 39,
+            //wait for a child process to halt
+            //peek the processID, hangs the process until the child halted.
+            //then pops the processID and pushes the child's exit code.
+            OP_JOIN         = 40,
+            //pop the exit code and halt the process, children keep running.
+            OP_EXIT         = 41,
+            //spawn a group of processes
+            //read the priority and the entry offset (into this program), pop the count.
+            //every member starts at the entry with its index on the stack, push the group id.
+            //the group is admitted as a whole, a count over the process table capacity is an error.
+            OP_PROCN        = 42,
+            //wait for a group
+            //peek the group id, hangs the process until every member halted.
+            //then pops the group id and pushes the sum of the members' exit codes.
+            OP_JOINN        = 43,
+            //push the kernel clock (milliseconds since boot).
+            OP_TIME         = 44,
+            //pop a duration in milliseconds, the process leaves its core until it elapsed.
+            OP_SLEEP        = 45,
+            //pop a kernel clock deadline, the process leaves its core until it is reached.
+            OP_SLEEPUNTIL   = 46,
+            //join with a timeout
+            //pop the timeout in milliseconds, peek the processID.
+            //then pops the processID and pushes the exit code and 1, or 0 and 0 if the timeout elapsed first.
+            OP_JOINT        = 47,
+            //receive with a timeout
+            //pop the timeout in milliseconds and the channel id.
+            //pushes the word and 1, or 0 and 0 if the timeout elapsed first or the channel is closed.
+            OP_CHRECVT      = 48,
+            //pop a scheduling class (0 realtime, 1 interactive, 2 batch) and move the process into it.
+            //a process can only move to its own or a less urgent class.
+            OP_SCLASS       = 49,
+            //load a cell into the heap
+            //pop the key length, the key pointer, the offset into the cell, the byte count and a heap pointer.
+            //copies up to count bytes of the cell from the offset to the heap, pushes the bytes copied or -1 if there is no such cell.
+            OP_LDCELL       = 50,
+            //store a cell from the heap
+            //pop the key length, the key pointer, the byte count and a heap pointer, the cell is created if it does not exist.
+            //replaces the cell's contents with count bytes of the heap, pushes 1 or 0 if the cell is in use.
+            OP_STCELL       = 51,
+            //OP_LDCELL on a storage thread
+            //the process leaves its core until the cell was read, then it is queued again.
+            OP_ALDCELL      = 52,
+            //OP_STCELL on a storage thread
+            //the heap bytes are taken when it is issued, the process leaves its core until the cell was written.
+            OP_ASTCELL      = 53,
+            //write dirty cached cells to the storage engine and make them durable, push 1.
+            //the process leaves its core until the storage was flushed.
+            OP_AFLUSH       = 54,
 
             OP_HALT         = 127;
 
@@ -171,7 +1483,8 @@ public class KernelImpl extends Kernel {
         int len = block.sizeof(process.getProgram());
         int max = process.getProgram() + len;
 
-        for (int i = 0; (i < steps) && (program < max); i ++)
+        int i = 0;
+        for (; (i < steps) && (program < max) && process.awake(); i ++)
         {
             int instruction = block.getByte(program ++);
 
@@ -196,7 +1509,7 @@ public class KernelImpl extends Kernel {
 
                     program += length;
                     try {
-                        Process p = generateProcess();
+                        Process p = createProcess(process);
                         p.setPriority(priority);
                         p.setName(name);
 
@@ -209,14 +1522,13 @@ public class KernelImpl extends Kernel {
                     int proID = (int) stack.pop();
                     int procFunProgram = block.getInt(program);
                     program += 4;
-                    final Process procfun = processMap.get(proID);
+                    final Process procfun = processTable.get(proID);
 
                     if (procfun == null)
                         throw new ExecutionException("could not convert to process by id '" + Long.toHexString(proID) + "'.");
 
                     try {
-                        procfun.setProgram(process.getProgram() + procFunProgram);
-//                        procfun.setOffset(procFunProgram);
+                        procfun.setProgram(process.getProgram(), procFunProgram);
                     } catch (ProcessException e) {
                         throw new ExecutionException("could not set process func by id '" + Long.toHexString(proID) + "'.");
                     }
@@ -224,7 +1536,7 @@ public class KernelImpl extends Kernel {
                 case OP_PRCE:
                     int processID = (int) stack.pop();
 
-                    final Process eProcess = processMap.get(processID);
+                    final Process eProcess = processTable.get(processID);
                     if (eProcess == null)
                         throw new ExecutionException("could not execute by process id '" + Long.toHexString(processID) + "'.");
 
@@ -239,7 +1551,9 @@ public class KernelImpl extends Kernel {
 //                        throw new ExecutionException("could not execute by process id '" + Long.toHexString(processID) + "'.");
 //                    }
 
-                    executeProcess(eProcess);
+                    ClusterNode cluster = this.cluster;
+                    if (cluster == null || !cluster.place(eProcess))
+                        executeProcess(eProcess);
                     break;
                 case OP_ADD:
                     stack.push(stack.pop() + stack.pop());
@@ -336,10 +1650,397 @@ public class KernelImpl extends Kernel {
                     System.out.println("call func: " + fadd + " of type: " + typ);
 
                     break;
+                case OP_CHOPEN: {
+                    int kind        = (int) stack.pop();
+                    int capacity    = (int) stack.pop();
+                    try {
+                        stack.push(openChannel(process, kind, capacity).getId());
+                    } catch (IllegalArgumentException e) {
+                        throw new ExecutionException(e.getMessage());
+                    }
+                    break;
+                }
+                case OP_CHSEND: {
+                    Channel channel = sender((int) stack.pop(), process);
+                    long word       = stack.pop();
+
+                    boolean sent    = channel.offer(word);
+
+                    if (sent || channel.isClosed()) {
+                        stack.push(sent ? 1 : 0);
+                        break;
+                    }
+
+                    ////full, retry the instruction once woken.
+                    stack.push(word);
+                    stack.push(channel.getId());
+                    channel.awaitSend(process);
+                    program --;
+                    break;
+                }
+                case OP_CHRECV: {
+                    Channel channel = receiver((int) stack.pop(), process);
+                    long word[]     = new long[1];
+
+                    if (channel.poll(word, 0)) {
+                        stack.push(word[0]);
+                        stack.push(1);
+                        break;
+                    }
+
+                    if (channel.isClosed()) {
+                        stack.push(0);
+                        stack.push(0);
+                        break;
+                    }
+
+                    stack.push(channel.getId());
+                    channel.awaitReceive(process);
+                    program --;
+                    break;
+                }
+                case OP_CHSENDN: {
+                    Channel channel = sender((int) stack.pop(), process);
+                    int count       = wordCount(heap, stack.pop());
+                    int pointer     = (int) stack.pop();
+                    long words[]    = new long[count];
+
+                    for (int w = 0; w < count; w ++)
+                        words[w] = heap.getLong(pointer + w * 8);
+
+                    int sent = channel.offer(words, 0, count);
+                    if (sent > 0 || count == 0 || channel.isClosed()) {
+                        stack.push(sent);
+                        break;
+                    }
+
+                    stack.push(pointer);
+                    stack.push(count);
+                    stack.push(channel.getId());
+                    channel.awaitSend(process);
+                    program --;
+                    break;
+                }
+                case OP_CHRECVN: {
+                    Channel channel = receiver((int) stack.pop(), process);
+                    int count       = wordCount(heap, stack.pop());
+                    int pointer     = (int) stack.pop();
+                    long words[]    = new long[count];
+
+                    int received = channel.poll(words, 0, count);
+                    if (received > 0 || count == 0 || channel.isClosed()) {
+                        for (int w = 0; w < received; w ++)
+                            heap.setLong(pointer + w * 8, words[w]);
+                        stack.push(received);
+                        break;
+                    }
+
+                    stack.push(pointer);
+                    stack.push(count);
+                    stack.push(channel.getId());
+                    channel.awaitReceive(process);
+                    program --;
+                    break;
+                }
+                case OP_CHCLOSE:
+                    closeChannel((int) stack.pop());
+                    break;
+                case OP_JOIN: {
+                    int childID     = (int) stack.peek();
+                    Process child   = process.getChild(childID);
+                    if (child == null && process.getJoining() != null && process.getJoining().getProcessID() == childID)
+                        child = process.getJoining();
+                    if (child == null)
+                        child = processTable.get(childID);
+                    if (child == null)
+                        throw new ExecutionException("could not join process by id '" + Long.toHexString(childID) + "'.");
+
+                    CompletableFuture<Long> exit = child.getExitFuture();
+                    if (exit.isDone()) {
+                        stack.pop();
+                        stack.push(exit.getNow(-1L));
+                        process.reapChild(childID);
+                        process.setJoining(null);
+                        break;
+                    }
+
+                    ////hang until the child halts, then retry the instruction.
+                    process.setJoining(child);
+                    process.hang();
+                    exit.whenComplete((code, error) -> process.wake());
+                    program --;
+                    break;
+                }
+                case OP_EXIT:
+                    exitProcess(process, stack.pop());
+                    break;
+                case OP_PROCN: {
+                    int groupPriority   = block.getInt(program);
+                    int groupEntry      = block.getInt(program + 4);
+                    program += 8;
+                    int count           = (int) stack.pop();
+
+                    try {
+                        stack.push(spawnGroup(process, process.getProgram(), groupEntry, count, groupPriority).getGroupID());
+                    } catch (MemoryException e) {
+                        throw new ExecutionException("could not spawn group: " + e.getMessage());
+                    }
+                    break;
+                }
+                case OP_SCLASS: {
+                    int schedulingClass = (int) stack.pop();
+                    if (schedulingClass < 0 || schedulingClass >= SchedulingClass.values().length)
+                        throw new ExecutionException("unknown scheduling class '" + schedulingClass + "'.");
+                    ////only the host promotes (Process.setSchedulingClass), a guest can only give way.
+                    if (schedulingClass < process.getSchedulingClass().ordinal())
+                        throw new ExecutionException("a process cannot promote itself to scheduling class '" + SchedulingClass.values()[schedulingClass] + "'.");
+
+                    process.setSchedulingClass(SchedulingClass.values()[schedulingClass]);
+                    break;
+                }
+                case OP_LDCELL: {
+                    byte key[]  = cellKey(heap, (int) stack.pop(), (int) stack.pop());
+                    long offset = stack.pop();
+                    int count   = (int) stack.pop();
+                    int pointer = (int) stack.pop();
+                    if (offset < 0 || count < 0)
+                        throw new ExecutionException("invalid cell range.");
+
+                    try {
+                        ByteBuffer cell = readCell(key, offset, count);
+                        stack.push(cell == null ? -1 : heap.load(pointer, cell));
+                    } catch (IOException e) {
+                        throw new ExecutionException("could not load cell: " + e.getMessage());
+                    }
+                    break;
+                }
+                case OP_STCELL: {
+                    byte key[]  = cellKey(heap, (int) stack.pop(), (int) stack.pop());
+                    int count   = (int) stack.pop();
+                    int pointer = (int) stack.pop();
+                    if (count < 0)
+                        throw new ExecutionException("invalid cell range.");
+
+                    try {
+                        stack.push(writeCell(key, heap.view(pointer, count)) ? 1 : 0);
+                    } catch (IOException | UncheckedIOException e) {
+                        throw new ExecutionException("could not store cell: " + e.getMessage());
+                    }
+                    break;
+                }
+                case OP_ALDCELL: {
+                    int keyLength   = (int) stack.pop();
+                    int keyPointer  = (int) stack.pop();
+                    long offset     = stack.pop();
+                    int count       = (int) stack.pop();
+                    int pointer     = (int) stack.pop();
+
+                    CompletableFuture<?> io = process.getPendingIO();
+                    if (io == null) {
+                        byte key[] = cellKey(heap, keyLength, keyPointer);
+                        if (offset < 0 || count < 0)
+                            throw new ExecutionException("invalid cell range.");
+
+                        ////never read more than the heap has room for at the pointer.
+                        int room = heap.view(pointer, count).remaining();
+
+                        ////read on a storage thread into a buffer of its own, copied to the heap on this core.
+                        io = submitStorage(process, () -> {
+                            ByteBuffer cell = readCell(key, offset, room);
+                            if (cell == null)
+                                return null;
+
+                            ByteBuffer copy = ByteBuffer.allocate(cell.remaining());
+                            copy.put(cell);
+                            copy.flip();
+                            return copy;
+                        });
+                    }
+
+                    if (!io.isDone()) {
+                        ////the operands stay on the stack, a restored process issues the read again.
+                        stack.push(pointer);
+                        stack.push(count);
+                        stack.push(offset);
+                        stack.push(keyPointer);
+                        stack.push(keyLength);
+                        awaitStorage(process, io);
+                        program --;
+                        break;
+                    }
+
+                    ByteBuffer cell = (ByteBuffer) storageResult(process, io, "load cell");
+                    stack.push(cell == null ? -1 : heap.load(pointer, cell));
+                    break;
+                }
+                case OP_ASTCELL: {
+                    int keyLength   = (int) stack.pop();
+                    int keyPointer  = (int) stack.pop();
+                    int count       = (int) stack.pop();
+                    int pointer     = (int) stack.pop();
+
+                    CompletableFuture<?> io = process.getPendingIO();
+                    if (io == null) {
+                        byte key[] = cellKey(heap, keyLength, keyPointer);
+                        if (count < 0)
+                            throw new ExecutionException("invalid cell range.");
+
+                        ////the heap bytes are taken now, the process may change them while it waits.
+                        ByteBuffer view = heap.view(pointer, count);
+                        ByteBuffer data = ByteBuffer.allocate(view.remaining());
+                        data.put(view);
+                        data.flip();
+                        io = submitStorage(process, () -> writeCell(key, data));
+                    }
+
+                    if (!io.isDone()) {
+                        stack.push(pointer);
+                        stack.push(count);
+                        stack.push(keyPointer);
+                        stack.push(keyLength);
+                        awaitStorage(process, io);
+                        program --;
+                        break;
+                    }
+
+                    stack.push((Boolean) storageResult(process, io, "store cell") ? 1 : 0);
+                    break;
+                }
+                case OP_AFLUSH: {
+                    CompletableFuture<?> io = process.getPendingIO();
+                    if (io == null)
+                        io = submitStorage(process, () -> {
+                            syncStorage();
+                            return null;
+                        });
+
+                    if (!io.isDone()) {
+                        awaitStorage(process, io);
+                        program --;
+                        break;
+                    }
+
+                    storageResult(process, io, "flush storage");
+                    stack.push(1);
+                    break;
+                }
+                case OP_TIME:
+                    stack.push(timers.now());
+                    break;
+                case OP_SLEEP:
+                case OP_SLEEPUNTIL: {
+                    long deadline = 0;
+                    if (process.getWaitTimer() == null) {
+                        long argument = stack.pop();
+                        deadline = instruction == OP_SLEEP ? timers.now() + argument : argument;
+                    }
+
+                    if (!sleepUntil(process, deadline))
+                        program --;
+                    break;
+                }
+                case OP_JOINT: {
+                    if (process.getWaitTimer() == null) {
+                        long timeout = stack.pop();
+                        process.setWaitTimer(timers.scheduleAfter(timeout, process::expire));
+                    }
+
+                    int childID     = (int) stack.peek();
+                    Process child   = process.getChild(childID);
+                    if (child == null && process.getJoining() != null && process.getJoining().getProcessID() == childID)
+                        child = process.getJoining();
+                    if (child == null)
+                        child = processTable.get(childID);
+                    if (child == null) {
+                        process.clearWaitTimer();
+                        throw new ExecutionException("could not join process by id '" + Long.toHexString(childID) + "'.");
+                    }
+
+                    CompletableFuture<Long> exit = child.getExitFuture();
+                    if (exit.isDone() || process.timedOut()) {
+                        boolean joined = exit.isDone();
+                        process.clearWaitTimer();
+                        process.setJoining(null);
+                        stack.pop();
+                        stack.push(joined ? exit.getNow(-1L) : 0);
+                        stack.push(joined ? 1 : 0);
+                        if (joined)
+                            process.reapChild(childID);
+                        break;
+                    }
+
+                    process.setJoining(child);
+                    process.hang();
+                    exit.whenComplete((code, error) -> process.wake());
+                    if (process.timedOut())
+                        process.wake();
+                    program --;
+                    break;
+                }
+                case OP_CHRECVT: {
+                    if (process.getWaitTimer() == null) {
+                        long timeout = stack.pop();
+                        process.setWaitTimer(timers.scheduleAfter(timeout, process::expire));
+                    }
+
+                    Channel channel = receiver((int) stack.pop(), process);
+                    long word[]     = new long[1];
+
+                    if (channel.poll(word, 0)) {
+                        process.clearWaitTimer();
+                        stack.push(word[0]);
+                        stack.push(1);
+                        break;
+                    }
+
+                    if (channel.isClosed() || process.timedOut()) {
+                        process.clearWaitTimer();
+                        channel.cancelReceive(process);
+                        stack.push(0);
+                        stack.push(0);
+                        break;
+                    }
+
+                    stack.push(channel.getId());
+                    channel.awaitReceive(process);
+                    if (process.timedOut())
+                        process.wake();
+                    program --;
+                    break;
+                }
+                case OP_JOINN: {
+                    int groupID         = (int) stack.peek();
+                    ProcessGroup group  = groups.get(groupID);
+                    if (group == null)
+                        throw new ExecutionException("could not join group by id '" + Long.toHexString(groupID) + "'.");
+
+                    CompletableFuture<Long> exit = group.getExitFuture();
+                    if (exit.isDone()) {
+                        stack.pop();
+                        stack.push(exit.getNow(-1L));
+                        groups.remove(groupID);
+                        for (int m = 0; m < group.size(); m ++)
+                            process.reapChild(group.getMember(m).getProcessID());
+                        break;
+                    }
+
+                    process.hang();
+                    exit.whenComplete((code, error) -> process.wake());
+                    program --;
+                    break;
+                }
             }
         }
 
-        if (program >= max) {
+        process.retire(i);
+
+        if (program >= max && !process.halted()) {
+            ////ran off the end of the program without a frame to return to.
+            if (stack.depth() == 0) {
+                exitProcess(process, stack.size() > 0 ? stack.peek() : 0);
+                return program;
+            }
+
             try {
                 stack.popstack();
             } catch (MemoryException e) {
@@ -0,0 +1,85 @@
+package com.riverssen.veras;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//// Log2 histogram of dispatch latencies in nanoseconds.
+//// Written by one SharedProcess thread, read (and merged) by anyone.
+public class LatencyHistogram {
+    private static final int    BUCKETS = 64;
+
+    private final AtomicLongArray   buckets;
+    private final AtomicLong        count;
+    private final AtomicLong        total;
+    private final AtomicLong        max;
+
+    public LatencyHistogram()
+    {
+        this.buckets    = new AtomicLongArray(BUCKETS);
+        this.count      = new AtomicLong(0);
+        this.total      = new AtomicLong(0);
+        this.max        = new AtomicLong(0);
+    }
+
+    //// single writer, lazySet is enough.
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+            nanos = 0;
+
+        int bucket = BUCKETS - Long.numberOfLeadingZeros(nanos);
+        buckets.lazySet(bucket, buckets.get(bucket) + 1);
+        count.lazySet(count.get() + 1);
+        total.lazySet(total.get() + nanos);
+        if (nanos > max.get())
+            max.lazySet(nanos);
+    }
+
+    public void merge(LatencyHistogram other)
+    {
+        for (int i = 0; i < BUCKETS; i ++)
+            buckets.addAndGet(i, other.buckets.get(i));
+        count.addAndGet(other.count.get());
+        total.addAndGet(other.total.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public long getMean()
+    {
+        long count = getCount();
+        return count == 0 ? 0 : total.get() / count;
+    }
+
+    //// upper bound of the bucket holding the given percentile (0-100).
+    public long getPercentile(double percentile)
+    {
+        long count  = getCount();
+        long target = (long) Math.ceil(count * percentile / 100.0);
+        long seen   = 0;
+
+        for (int i = 0; i < BUCKETS; i ++)
+        {
+            seen += buckets.get(i);
+            if (seen >= target && seen > 0)
+                return i == 0 ? 0 : Math.min((1L << i) - 1, getMax());
+        }
+
+        return getMax();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount() + " mean=" + getMean() + "ns p50=" + getPercentile(50) + "ns p99=" + getPercentile(99) + "ns max=" + getMax() + "ns";
+    }
+}
@@ -0,0 +1,821 @@
+package com.riverssen.veras;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+////// Log-structured storage engine.
+//////
+////// Cell writes are appended as records to large segment files instead of one file per
+////// cell. A record is | key length | value length (-1 deletes) | crc | key | value |.
+////// The StorageIndex (log.index) maps a key to the segment, offset and length of its
+////// latest record. A daemon thread compacts sealed segments that are mostly garbage by
+////// copying their live records to the end of the log, then deletes them.
+//////
+////// log.checkpoint names the position up to which the index is known to be on disk,
+////// on startup the records after it are replayed (a torn record at the end of the log
+////// is cut off), so recovery only reads what was written since the last checkpoint.
+//////
+////// A cell is written in memory and appended when its stream is closed, readers read an
+////// immutable record, so cells are always reachable.
+//////
+////// Like the index, the segments, the active segment and the compactor of a directory are
+////// shared by every LogStorageBlock on it in this JVM, the last one closed stops them.
+public class LogStorageBlock implements StorageBlock {
+    public static final String      INDEX               = "log.index";
+    public static final String      CHECKPOINT          = "log.checkpoint";
+    public static final long        SEGMENT_SIZE        = 64L * 1024 * 1024;
+    //// sealed segments with less live data than this are compacted.
+    public static final double      COMPACT_RATIO       = 0.5;
+    private static final long       COMPACT_INTERVAL    = TimeUnit.SECONDS.toNanos(1);
+    private static final int        HEADER_SIZE         = 12;
+    private static final int        TOMBSTONE           = -1;
+    private static final Map<String, Shared> open       = new HashMap<>();
+
+    private final FileService                       directory;
+    private final StorageIndex                      index;
+    private final Shared                            shared;
+    private final ConcurrentMap<Integer, Segment>   segments;
+    private final ReentrantLock                     append;
+    private final ReentrantLock                     compaction;
+    private final AtomicBoolean                     running;
+    private final AtomicLong                        compactions;
+    private final long                              size;
+    private final long                              segmentSize;
+    private boolean                                 closed;
+
+    public LogStorageBlock(FileService directory, long size) throws IOException
+    {
+        this(directory, size, SEGMENT_SIZE);
+    }
+
+    //// a directory already open in this JVM keeps the segment size it was opened with.
+    public LogStorageBlock(FileService directory, long size, long segmentSize) throws IOException
+    {
+        String path         = directory.file().getCanonicalPath();
+
+        this.directory      = directory;
+        this.index          = StorageIndex.open(directory.newFile(INDEX).file());
+        this.size           = size;
+
+        synchronized (open) {
+            Shared shared       = open.computeIfAbsent(path, key -> new Shared(key, segmentSize));
+            this.shared         = shared;
+            this.segments       = shared.segments;
+            this.append         = shared.append;
+            this.compaction     = shared.compaction;
+            this.running        = shared.running;
+            this.compactions    = shared.compactions;
+            this.segmentSize    = shared.segmentSize;
+
+            if (shared.handles ++ > 0)
+                return;
+
+            try {
+                recover();
+            } catch (IOException e) {
+                open.remove(path);
+                throw e;
+            }
+
+            shared.compactor    = new Thread(this::compactLoop, "veras-compactor");
+            shared.compactor.setDaemon(true);
+            shared.compactor.start();
+        }
+    }
+
+    //// reopens the storage written by write().
+    LogStorageBlock(DataInputStream in) throws IOException
+    {
+        this(new FileService(in.readUTF()), in.readLong(), in.readLong());
+    }
+
+    //// the log is not part of a kernel image, only where it lives.
+    void write(DataOutputStream out) throws IOException
+    {
+        checkpoint();
+        out.writeUTF(directory.file().getPath());
+        out.writeLong(size);
+        out.writeLong(segmentSize);
+    }
+
+    public long size()
+    {
+        return size;
+    }
+
+    public FileService getDirectory()
+    {
+        return directory;
+    }
+
+    public StorageIndex getIndex()
+    {
+        return index;
+    }
+
+    public int getSegments()
+    {
+        return segments.size();
+    }
+
+    public long getCompactions()
+    {
+        return compactions.get();
+    }
+
+    //// bytes of the segments on disk.
+    public long getDiskBytes()
+    {
+        long bytes = 0;
+        for (Segment segment : segments.values())
+            bytes += segment.length;
+        return bytes;
+    }
+
+    //// bytes of the records the index points to.
+    public long getLiveBytes()
+    {
+        long bytes = 0;
+        for (Segment segment : segments.values())
+            bytes += segment.live.get();
+        return bytes;
+    }
+
+    @Override
+    public boolean createBlock(byte[] key) {
+        try {
+            append.lock();
+            try {
+                if (index.contains(key))
+                    return false;
+                put(key, new ByteBuffer[0]);
+                return true;
+            } finally {
+                append.unlock();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean blockExists(byte[] key) {
+        return index.contains(key);
+    }
+
+    @Override
+    public boolean deleteBlock(byte[] key) throws IOException {
+        append.lock();
+        try {
+            long location[] = new long[2];
+            if (!index.get(key, location))
+                return false;
+
+            appendRecord(key, null);
+            index.remove(key);
+            release(location, key.length);
+            return true;
+        } finally {
+            append.unlock();
+        }
+    }
+
+    @Override
+    public CellInputStream openInputStream(byte[] key) throws IOException {
+        long location[] = new long[2];
+        Segment segment = locate(key, location);
+        if (segment == null)
+            return null;
+
+        long start = location[1] + HEADER_SIZE + key.length;
+        return new CellInputStream(new RecordInputStream(segment, start, start + lengthOf(location)));
+    }
+
+    @Override
+    public CellOutputStream openOutputStream(byte[] key) throws IOException {
+        if (!index.contains(key))
+            return null;
+
+        return new CellOutputStream(new ByteArrayOutputStream() {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed)
+                    return;
+                closed = true;
+
+                append.lock();
+                try {
+                    ////deleted while it was written.
+                    if (index.contains(key))
+                        put(key, new ByteBuffer[] { ByteBuffer.wrap(buf, 0, count) });
+                } finally {
+                    append.unlock();
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean reachable(byte[] key) {
+        return true;
+    }
+
+    @Override
+    public ByteBuffer mapCell(byte[] key) throws IOException {
+        long location[] = new long[2];
+        Segment segment = locate(key, location);
+        if (segment == null)
+            return null;
+
+        try {
+            long start  = location[1] + HEADER_SIZE + key.length;
+            int length  = lengthOf(location);
+            ////a mapping stays valid after its segment is closed.
+            if (length >= StorageBlockImpl.MAP_THRESHOLD)
+                return segment.channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            if (!Record.readFully(segment.channel, buffer, start))
+                throw new IOException("cell is cut short.");
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        } finally {
+            segment.release();
+        }
+    }
+
+    @Override
+    public boolean writeCell(byte[] key, ByteBuffer srcs[]) throws IOException {
+        append.lock();
+        try {
+            if (!index.contains(key))
+                return false;
+
+            put(key, srcs);
+            return true;
+        } finally {
+            append.unlock();
+        }
+    }
+
+    //// the segment holding the latest record of the key, retained, and its location.
+    //// returns null if there is no such key.
+    private Segment locate(final byte key[], final long location[]) throws IOException
+    {
+        long previous = -1;
+        while (index.get(key, location))
+        {
+            Segment segment = segments.get(segmentOf(location));
+            if (segment != null && segment.retain())
+                return segment;
+
+            ////compacted away meanwhile, unless the index still points at it.
+            if (location[1] == previous)
+                throw new IOException("segment " + segmentOf(location) + " is missing.");
+            previous = location[1];
+        }
+
+        return null;
+    }
+
+    //// writes the index to disk and records how much of the log it covers.
+    public void checkpoint() throws IOException
+    {
+        long segment, offset;
+        append.lock();
+        try {
+            if (!shared.dirty)
+                return;
+            shared.dirty    = false;
+            segment         = shared.active.id;
+            offset          = shared.active.length;
+            index.force();
+        } finally {
+            append.unlock();
+        }
+
+        File target     = directory.newFile(CHECKPOINT).file();
+        File temporary  = new File(target.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temporary, "rw"))
+        {
+            out.setLength(0);
+            out.writeLong(segment);
+            out.writeLong(offset);
+            out.getFD().sync();
+        }
+        Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //// forces every segment, then checkpoints.
+    @Override
+    public void sync() throws IOException
+    {
+        for (Segment segment : segments.values())
+        {
+            if (!segment.retain())
+                continue;
+
+            try {
+                segment.channel.force(false);
+            } finally {
+                segment.release();
+            }
+        }
+
+        checkpoint();
+    }
+
+    //// checkpoints the index, the last LogStorageBlock of the directory also stops the
+    //// compactor and closes the segments.
+    public void close() throws IOException
+    {
+        synchronized (open) {
+            if (closed)
+                return;
+            closed = true;
+
+            if (-- shared.handles > 0)
+            {
+                checkpoint();
+                return;
+            }
+            open.remove(shared.path);
+
+            running.set(false);
+            LockSupport.unpark(shared.compactor);
+            try {
+                shared.compactor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            checkpoint();
+            for (Segment segment : segments.values())
+                segment.release();
+        }
+    }
+
+    //// compacts every sealed segment below COMPACT_RATIO.
+    //// returns the number of segments compacted.
+    public int compact() throws IOException
+    {
+        compaction.lock();
+        try {
+            List<Segment> candidates = new ArrayList<>();
+            for (Segment segment : segments.values())
+                if (segment != shared.active && segment.live.get() < segment.length * COMPACT_RATIO)
+                    candidates.add(segment);
+
+            candidates.sort((a, b) -> Integer.compare(a.id, b.id));
+            for (Segment segment : candidates)
+                compact(segment);
+
+            if (!candidates.isEmpty())
+            {
+                ////the copies must be covered by a checkpoint before their originals go.
+                shared.dirty = true;
+                checkpoint();
+                for (Segment segment : candidates)
+                    retire(segment);
+            }
+
+            return candidates.size();
+        } finally {
+            compaction.unlock();
+        }
+    }
+
+    private void compactLoop()
+    {
+        while (running.get())
+        {
+            LockSupport.parkNanos(this, COMPACT_INTERVAL);
+            if (!running.get())
+                return;
+
+            try {
+                compact();
+                checkpoint();
+            } catch (IOException e) {
+                ////retried on the next round.
+            }
+        }
+    }
+
+    //// copies the records of the segment the index still points to to the end of the log.
+    private void compact(final Segment segment) throws IOException
+    {
+        boolean older = false;
+        for (Integer id : segments.keySet())
+            older |= id < segment.id;
+
+        long offset = 0;
+        long location[] = new long[2];
+        while (offset < segment.length)
+        {
+            Record record = Record.read(segment.channel, offset);
+            if (record == null)
+                break;
+
+            append.lock();
+            try {
+                if (record.value == null)
+                {
+                    ////a delete is only needed while an older segment may still hold the key.
+                    if (older && !index.contains(record.key))
+                        appendRecord(record.key, null);
+                }
+                else if (index.get(record.key, location) && segmentOf(location) == segment.id && location[1] == offset)
+                    put(record.key, new ByteBuffer[] { ByteBuffer.wrap(record.value) });
+            } finally {
+                append.unlock();
+            }
+
+            offset += record.size();
+        }
+
+        compactions.incrementAndGet();
+    }
+
+    //// drops a compacted segment, open readers keep it until they close.
+    private void retire(final Segment segment)
+    {
+        segments.remove(segment.id);
+        segment.obsolete = true;
+        segment.release();
+    }
+
+    //// appends a record and points the index at it, append lock held.
+    private void put(final byte key[], final ByteBuffer values[]) throws IOException
+    {
+        long previous[] = new long[2];
+        boolean replaced = index.get(key, previous);
+
+        long location[] = appendRecord(key, values);
+        index.put(key, location[0], location[1]);
+        segments.get(segmentOf(location)).live.addAndGet(HEADER_SIZE + key.length + lengthOf(location));
+
+        if (replaced)
+            release(previous, key.length);
+    }
+
+    private void release(final long location[], int keyLength)
+    {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment != null)
+            segment.live.addAndGet(-(HEADER_SIZE + keyLength + lengthOf(location)));
+    }
+
+    //// appends to the active segment, rolling over to a new one when it is full.
+    //// the record is written in one gather write of its header, key and values, null
+    //// values delete the key. returns the index values of the record. append lock held.
+    private long[] appendRecord(final byte key[], final ByteBuffer values[]) throws IOException
+    {
+        long length = 0;
+        CRC32 crc = new CRC32();
+        crc.update(key, 0, key.length);
+        if (values != null)
+        {
+            for (ByteBuffer value : values)
+            {
+                length += value.remaining();
+                crc.update(value.duplicate());
+            }
+            if (length > Integer.MAX_VALUE - HEADER_SIZE - key.length)
+                throw new IOException("cell is too large.");
+        }
+
+        long total = HEADER_SIZE + key.length + length;
+        Segment active = shared.active;
+        if (active.length > 0 && active.length + total > segmentSize)
+            active = shared.active = open(active.id + 1);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(key.length);
+        header.putInt(values == null ? TOMBSTONE : (int) length);
+        header.putInt((int) crc.getValue());
+        header.flip();
+
+        ByteBuffer buffers[] = new ByteBuffer[2 + (values == null ? 0 : values.length)];
+        buffers[0] = header;
+        buffers[1] = ByteBuffer.wrap(key);
+        if (values != null)
+            System.arraycopy(values, 0, buffers, 2, values.length);
+
+        long offset     = active.length;
+        long written    = 0;
+        active.channel.position(offset);
+        while (written < total)
+            written += active.channel.write(buffers);
+        active.length += total;
+        shared.dirty = true;
+
+        return new long[] { ((long) active.id << 32) | (length & 0xFFFFFFFFL), offset };
+    }
+
+    private static int segmentOf(final long location[])
+    {
+        return (int) (location[0] >>> 32);
+    }
+
+    private static int lengthOf(final long location[])
+    {
+        return (int) location[0];
+    }
+
+    private Segment open(int id) throws IOException
+    {
+        Segment segment = new Segment(id, directory.newFile(String.format("segment-%08d.log", id)).file());
+        segments.put(id, segment);
+        return segment;
+    }
+
+    //// opens the segments, replays the log after the checkpoint and counts live bytes.
+    private void recover() throws IOException
+    {
+        File files[] = directory.file().listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        int ids[] = new int[files == null ? 0 : files.length];
+        for (int i = 0; i < ids.length; i ++)
+            ids[i] = Integer.parseInt(files[i].getName().substring(8, 16));
+        Arrays.sort(ids);
+
+        for (int id : ids)
+            open(id);
+
+        long checkpointSegment = ids.length == 0 ? 0 : ids[0];
+        long checkpointOffset  = 0;
+        File checkpoint = directory.newFile(CHECKPOINT).file();
+        if (checkpoint.exists() && index.size() > 0)
+        {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(checkpoint.toPath())))
+            {
+                checkpointSegment   = in.readLong();
+                checkpointOffset    = in.readLong();
+            }
+        }
+
+        for (int id : ids)
+        {
+            if (id < checkpointSegment)
+                continue;
+
+            Segment segment = segments.get(id);
+            long offset     = id == checkpointSegment ? checkpointOffset : 0;
+            while (offset < segment.length)
+            {
+                Record record = Record.read(segment.channel, offset);
+                if (record == null)
+                {
+                    ////a torn write at the end of the log.
+                    segment.channel.truncate(offset);
+                    segment.length = offset;
+                    break;
+                }
+
+                if (record.value == null)
+                    index.remove(record.key);
+                else
+                    index.put(record.key, ((long) id << 32) | (record.value.length & 0xFFFFFFFFL), offset);
+                offset += record.size();
+            }
+        }
+
+        ////the index may have reached disk ahead of the checkpoint, entries pointing past
+        ////the end of a (truncated) segment name records that no longer exist.
+        List<byte[]> lost = new ArrayList<>();
+        index.forEach((key, value0, value1) -> {
+            Segment segment = segments.get((int) (value0 >>> 32));
+            if (segment == null || value1 + HEADER_SIZE + key.length + (int) value0 > segment.length)
+                lost.add(key);
+            else
+                segment.live.addAndGet(HEADER_SIZE + key.length + (int) value0);
+        });
+        for (byte key[] : lost)
+            index.remove(key);
+
+        shared.active = ids.length == 0 ? open(0) : segments.get(ids[ids.length - 1]);
+        shared.dirty  = true;
+    }
+
+    //// the state of a log directory, shared by every LogStorageBlock on it.
+    private static final class Shared {
+        private final String                            path;
+        private final long                              segmentSize;
+        private final ConcurrentMap<Integer, Segment>   segments;
+        private final ReentrantLock                     append;
+        private final ReentrantLock                     compaction;
+        private final AtomicBoolean                     running;
+        private final AtomicLong                        compactions;
+        private volatile Segment                        active;
+        private volatile boolean                        dirty;
+        private Thread                                  compactor;
+        private int                                     handles;
+
+        private Shared(final String path, long segmentSize)
+        {
+            this.path           = path;
+            this.segmentSize    = segmentSize;
+            this.segments       = new ConcurrentHashMap<>();
+            this.append         = new ReentrantLock();
+            this.compaction     = new ReentrantLock();
+            this.running        = new AtomicBoolean(true);
+            this.compactions    = new AtomicLong(0);
+        }
+    }
+
+    private static final class Record {
+        private final byte  key[];
+        private final byte  value[];
+
+        private Record(final byte key[], final byte value[])
+        {
+            this.key    = key;
+            this.value  = value;
+        }
+
+        private int size()
+        {
+            return HEADER_SIZE + key.length + (value == null ? 0 : value.length);
+        }
+
+        //// returns null if there is no whole, intact record at the offset.
+        private static Record read(final FileChannel channel, long offset) throws IOException
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (!readFully(channel, header, offset))
+                return null;
+            header.flip();
+
+            int keyLength   = header.getInt();
+            int valueLength = header.getInt();
+            int checksum    = header.getInt();
+            if (keyLength < 0 || valueLength < TOMBSTONE || offset + HEADER_SIZE + keyLength + Math.max(0, valueLength) > channel.size())
+                return null;
+
+            ByteBuffer key      = ByteBuffer.allocate(keyLength);
+            ByteBuffer value    = valueLength == TOMBSTONE ? null : ByteBuffer.allocate(valueLength);
+            if (!readFully(channel, key, offset + HEADER_SIZE) || (value != null && !readFully(channel, value, offset + HEADER_SIZE + keyLength)))
+                return null;
+
+            CRC32 crc = new CRC32();
+            crc.update(key.array(), 0, keyLength);
+            if (value != null)
+                crc.update(value.array(), 0, valueLength);
+            if ((int) crc.getValue() != checksum)
+                return null;
+
+            return new Record(key.array(), value == null ? null : value.array());
+        }
+
+        private static boolean readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                int read = channel.read(buffer, position);
+                if (read < 0)
+                    return false;
+                position += read;
+            }
+            return true;
+        }
+    }
+
+    //// one segment file, closed once it is obsolete and the last reader let go.
+    private static final class Segment {
+        private final int           id;
+        private final File          file;
+        private final FileChannel   channel;
+        private final AtomicLong    live;
+        private final AtomicInteger references;
+        private volatile long       length;
+        private volatile boolean    obsolete;
+
+        private Segment(int id, final File file) throws IOException
+        {
+            this.id         = id;
+            this.file       = file;
+            this.channel    = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.live       = new AtomicLong(0);
+            this.references = new AtomicInteger(1);
+            this.length     = channel.size();
+        }
+
+        private boolean retain()
+        {
+            while (true)
+            {
+                int references = this.references.get();
+                if (references == 0)
+                    return false;
+                if (this.references.compareAndSet(references, references + 1))
+                    return true;
+            }
+        }
+
+        private void release()
+        {
+            if (references.decrementAndGet() != 0)
+                return;
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            if (obsolete)
+                file.delete();
+        }
+    }
+
+    //// reads one record's value, holds on to its segment until closed.
+    private static final class RecordInputStream extends InputStream {
+        private final Segment       segment;
+        private final ByteBuffer    buffer;
+        private final long          end;
+        private long                position;
+        private boolean             closed;
+
+        private RecordInputStream(final Segment segment, long start, long end)
+        {
+            this.segment    = segment;
+            this.buffer     = ByteBuffer.allocate(8192);
+            this.position   = start;
+            this.end        = end;
+            buffer.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (!fill())
+                return -1;
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte dst[], int offset, int length) throws IOException
+        {
+            if (length == 0)
+                return 0;
+            if (!fill())
+                return -1;
+
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(dst, offset, read);
+            return read;
+        }
+
+        private boolean fill() throws IOException
+        {
+            if (buffer.hasRemaining())
+                return true;
+            if (position >= end || closed)
+                return false;
+
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = segment.channel.read(buffer, position);
+            buffer.flip();
+            if (read <= 0)
+                return false;
+
+            position += read;
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+            if (closed)
+                return;
+            closed = true;
+            segment.release();
+        }
+    }
+}
@@ -2,6 +2,8 @@ package com.riverssen.veras;
 
 import com.riverssen.veras.exceptions.MemoryException;
 
+import java.nio.ByteBuffer;
+
 public interface MemoryBlock {
     int malloc(int size) throws MemoryException;
     int calloc(int size, int length) throws MemoryException, IndexOutOfBoundsException;
@@ -24,5 +26,10 @@ public interface MemoryBlock {
     long getLong(int address) throws IndexOutOfBoundsException;
     int sizeof(int address);
 
+    void setArray(int address, byte array[], int offset, int length);
     byte[] getArray(int length, int address);
+    //// copies the remaining bytes of the buffer to the address in one transfer.
+    void setBuffer(int address, ByteBuffer src) throws IndexOutOfBoundsException;
+    //// a read-only view of length bytes at the address, nothing is copied.
+    ByteBuffer getBuffer(int address, int length) throws IndexOutOfBoundsException;
 }
\ No newline at end of file
@@ -2,24 +2,128 @@ package com.riverssen.veras;
 
 import com.riverssen.veras.exceptions.MemoryException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+
+//// The allocator is shared by every core, mutations are serialized on the block
+//// while sizeof() (on the interpreter's hot path) reads the address map lock-free.
+//// Memory is a big-endian ByteBuffer, a heap buffer at boot or a private mapping of
+//// a kernel image once restored (pages are then loaded on first touch).
+//// Every store stamps its page with the current write epoch, so a checkpoint can
+//// find the pages written since its previous round.
 public class MemoryBlockImpl implements MemoryBlock {
-    private final byte                      heapBuffer[];
+    public static final int                 PAGE_SHIFT  = 12;
+    public static final int                 PAGE_SIZE   = 1 << PAGE_SHIFT;
+
+    private final ByteBuffer                heapBuffer;
     private final Map<Integer, Integer>     available;
     private final Map<Integer, Integer>     addresses;
+    private final int                       pageEpochs[];
+    private volatile int                    epoch;
+    private long                            allocated;
+    private long                            quota;
 
     public MemoryBlockImpl(final int size) {
-        this.heapBuffer = new byte[size];
+        this.heapBuffer = ByteBuffer.allocate(size);
         this.available = new LinkedHashMap<>();
-        this.addresses = new LinkedHashMap<>();
+        this.addresses = new ConcurrentHashMap<>();
+        this.pageEpochs = new int[(size + PAGE_SIZE - 1) >>> PAGE_SHIFT];
+        this.epoch = 1;
+        this.quota = size;
         available.put(1, size);
     }
 
-    public int malloc(int size) throws MemoryException {
+    //// restores a block over memory read back from a kernel image.
+    MemoryBlockImpl(final ByteBuffer memory, final DataInputStream in) throws IOException {
+        this.heapBuffer = memory;
+        this.available = new LinkedHashMap<>();
+        this.addresses = new ConcurrentHashMap<>();
+        this.pageEpochs = new int[(memory.capacity() + PAGE_SIZE - 1) >>> PAGE_SHIFT];
+        this.epoch = 1;
+
+        for (int i = in.readInt(); i > 0; i --)
+            available.put(in.readInt(), in.readInt());
+        for (int i = in.readInt(); i > 0; i --)
+            addresses.put(in.readInt(), in.readInt());
+
+        this.quota = memory.capacity();
+        for (Integer size : addresses.values())
+            allocated += size;
+    }
+
+    //// bytes currently handed out by malloc.
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    //// malloc fails once the allocated bytes would exceed the quota.
+    public synchronized void setQuota(long quota) {
+        this.quota = quota;
+    }
+
+    public synchronized long getQuota() {
+        return quota;
+    }
+
+    public int size() {
+        return heapBuffer.capacity();
+    }
+
+    //// writes the allocator state, the free list keeps its first-fit order.
+    synchronized void write(final DataOutputStream out) throws IOException {
+        out.writeInt(available.size());
+        for (Map.Entry<Integer, Integer> entry : available.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+
+        out.writeInt(addresses.size());
+        for (Map.Entry<Integer, Integer> entry : addresses.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    //// starts a new write epoch.
+    //// returns the epoch stores are stamped with from now on.
+    public synchronized int nextEpoch() {
+        return ++ epoch;
+    }
+
+    //// true if a page overlapping [address, address + length) was written during
+    //// the given epoch or a later one.
+    public boolean writtenSince(int address, int length, int since) {
+        for (int page = address >>> PAGE_SHIFT; page <= (address + length - 1) >>> PAGE_SHIFT; page ++)
+            if (pageEpochs[page] >= since)
+                return true;
+
+        return false;
+    }
+
+    private void touch(int address, int length) {
+        int epoch = this.epoch;
+        pageEpochs[address >>> PAGE_SHIFT] = epoch;
+        pageEpochs[(address + length - 1) >>> PAGE_SHIFT] = epoch;
+    }
+
+    //// the whole memory, positioned at 0.
+    ByteBuffer contents() {
+        ByteBuffer contents = heapBuffer.duplicate();
+        contents.clear();
+        return contents;
+    }
+
+    public synchronized int malloc(int size) throws MemoryException {
         if (size == 0)
             return 0;
 
+        if (allocated + size > quota)
+            throw new MemoryException("cannot allocate '" + size + "' bytes, the memory quota of '" + quota + "' bytes is exhausted.");
+
         int pointer = 0x0;
         Integer toRemove = null;
 
@@ -30,6 +134,7 @@ public class MemoryBlockImpl implements MemoryBlock {
             if (available_size >= size) {
                 pointer = available;
                 addresses.put(pointer, size);
+                allocated += size;
 
                 if (available_size - size > 0)
                     this.available.put(pointer + size, dst);
@@ -49,6 +154,59 @@ public class MemoryBlockImpl implements MemoryBlock {
         return pointer;
     }
 
+    //// allocates every size in one pass, carved out of a single free block when one is
+    //// big enough. sizes of 0 get address 0.
+    //// throws exception (allocating nothing) if they do not all fit.
+    public synchronized int[] mallocAll(final int sizes[]) throws MemoryException {
+        long total = 0;
+        for (int size : sizes)
+            total += size;
+
+        if (allocated + total > quota)
+            throw new MemoryException("cannot allocate '" + total + "' bytes, the memory quota of '" + quota + "' bytes is exhausted.");
+
+        int pointers[] = new int[sizes.length];
+
+        Integer block = null;
+        for (Integer available : available.keySet()) {
+            if (this.available.get(available) - available >= total) {
+                block = available;
+                break;
+            }
+        }
+
+        if (block == null) {
+            ////too fragmented for one block, first fit every size.
+            try {
+                for (int i = 0; i < sizes.length; i ++)
+                    pointers[i] = malloc(sizes[i]);
+            } catch (MemoryException e) {
+                for (int pointer : pointers)
+                    if (pointer != 0)
+                        free(pointer);
+                throw e;
+            }
+            return pointers;
+        }
+
+        int end     = available.remove(block);
+        int pointer = block;
+        for (int i = 0; i < sizes.length; i ++) {
+            if (sizes[i] == 0)
+                continue;
+
+            pointers[i] = pointer;
+            addresses.put(pointer, sizes[i]);
+            pointer += sizes[i];
+        }
+
+        if (end - pointer > 0)
+            available.put(pointer, end);
+        allocated += total;
+
+        return pointers;
+    }
+
     public int calloc(int size, int length) throws MemoryException, IndexOutOfBoundsException {
         if (length > size)
             throw new MemoryException("calloc(a, b), b is bigger than a.");
@@ -61,13 +219,14 @@ public class MemoryBlockImpl implements MemoryBlock {
         return pointer;
     }
 
-    public int realloc(int uptr, int resize) throws MemoryException, IndexOutOfBoundsException {
+    public synchronized int realloc(int uptr, int resize) throws MemoryException, IndexOutOfBoundsException {
         if (!addresses.containsKey(uptr))
             throw new MemoryException("cannot perform realloc(" + Long.toHexString(uptr) + ", " + resize + ")");
 
         int nPointer = malloc(resize);
 
-        memcpy(nPointer, uptr, addresses.get(uptr));
+        memcpy(nPointer, uptr, Math.min(addresses.get(uptr), resize));
+        free(uptr);
 
         return nPointer;
     }
@@ -84,7 +243,7 @@ public class MemoryBlockImpl implements MemoryBlock {
         }
     }
 
-    public void delete(int uptr) throws MemoryException, IndexOutOfBoundsException {
+    public synchronized void delete(int uptr) throws MemoryException, IndexOutOfBoundsException {
         if (addresses.containsKey(uptr)) {
             free(uptr);
             return;
@@ -115,9 +274,10 @@ public class MemoryBlockImpl implements MemoryBlock {
         }
     }
 
-    public void free(int ptr) {
+    public synchronized void free(int ptr) {
         int size = addresses.get(ptr);
         addresses.remove(ptr);
+        allocated -= size;
 
         available.put(ptr, ptr + size);
         combine();
@@ -157,7 +317,7 @@ public class MemoryBlockImpl implements MemoryBlock {
             available.remove(remove);
     }
 
-    public String getSnapshot() {
+    public synchronized String getSnapshot() {
         String string = "-----------------HEAPBUFFER----------------\n";
         for (Integer available : available.keySet())
             string += "\t" + available + " " + this.available.get(available) + "\n";
@@ -167,57 +327,88 @@ public class MemoryBlockImpl implements MemoryBlock {
 
 
     public void setByte(int address, byte b) throws IndexOutOfBoundsException{
-        heapBuffer[address] = b;
+        heapBuffer.put(address, b);
+        touch(address, 1);
     }
 
     public void setShort(int address, short s) throws IndexOutOfBoundsException {
-        heapBuffer[address]       = (byte) ((s >> 8) & 0xFF);
-        heapBuffer[address + 1]   = (byte) ((s) & 0xFF);
+        heapBuffer.putShort(address, s);
+        touch(address, 2);
     }
 
     public void setInt(int address, int s) throws IndexOutOfBoundsException {
-        heapBuffer[address]       = (byte) ((s >> 24) & 0xFF);
-        heapBuffer[address + 1]   = (byte) ((s >> 16) & 0xFF);
-        heapBuffer[address + 2]   = (byte) ((s >> 8) & 0xFF);
-        heapBuffer[address + 3]   = (byte) ((s) & 0xFF);
+        heapBuffer.putInt(address, s);
+        touch(address, 4);
     }
 
     public void setLong(int address, long s) throws IndexOutOfBoundsException {
-        heapBuffer[address]       = (byte) ((s >> 56) & 0xFF);
-        heapBuffer[address + 1]   = (byte) ((s >> 48) & 0xFF);
-        heapBuffer[address + 2]   = (byte) ((s >> 40) & 0xFF);
-        heapBuffer[address + 3]   = (byte) ((s >> 32) & 0xFF);
-        heapBuffer[address + 4]   = (byte) ((s >> 24) & 0xFF);
-        heapBuffer[address + 5]   = (byte) ((s >> 16) & 0xFF);
-        heapBuffer[address + 6]   = (byte) ((s >> 8) & 0xFF);
-        heapBuffer[address + 7]   = (byte) ((s) & 0xFF);
+        heapBuffer.putLong(address, s);
+        touch(address, 8);
     }
 
     public byte getByte(int address) throws IndexOutOfBoundsException {
-        return heapBuffer[address];
+        return heapBuffer.get(address);
     }
 
     public short getShort(int address) throws IndexOutOfBoundsException {
-        return Utils.makeShort(heapBuffer[address], heapBuffer[address + 1]);
+        return heapBuffer.getShort(address);
     }
 
     public int getInt(int address) throws IndexOutOfBoundsException {
-        return Utils.makeInt(heapBuffer[address], heapBuffer[address + 1], heapBuffer[address + 2], heapBuffer[address + 3]);
+        return heapBuffer.getInt(address);
     }
 
     public long getLong(int address) throws IndexOutOfBoundsException {
-        return Utils.makeLong(heapBuffer[address], heapBuffer[address + 1], heapBuffer[address + 2], heapBuffer[address + 3], heapBuffer[address + 4], heapBuffer[address + 5], heapBuffer[address + 6], heapBuffer[address + 7]);
+        return heapBuffer.getLong(address);
     }
 
     @Override
     public int sizeof(int address) {
-        if (addresses.containsKey(address))
-            return addresses.get(address);
-        return 0;
+        Integer size = addresses.get(address);
+        return size == null ? 0 : size;
+    }
+
+    @Override
+    public void setArray(int address, byte array[], int offset, int length) {
+        if (length == 0)
+            return;
+
+        ByteBuffer view     = heapBuffer.duplicate();
+        view.position(address);
+        view.put(array, offset, length);
+        for (int page = address >>> PAGE_SHIFT; page <= (address + length - 1) >>> PAGE_SHIFT; page ++)
+            pageEpochs[page] = epoch;
+    }
+
+    @Override
+    public void setBuffer(int address, ByteBuffer src) throws IndexOutOfBoundsException {
+        int length = src.remaining();
+        if (length == 0)
+            return;
+
+        ByteBuffer view     = heapBuffer.duplicate();
+        view.position(address);
+        view.put(src);
+        for (int page = address >>> PAGE_SHIFT; page <= (address + length - 1) >>> PAGE_SHIFT; page ++)
+            pageEpochs[page] = epoch;
+    }
+
+    @Override
+    public ByteBuffer getBuffer(int address, int length) throws IndexOutOfBoundsException {
+        ByteBuffer view     = heapBuffer.asReadOnlyBuffer();
+        view.limit(address + length);
+        view.position(address);
+
+        return view.slice();
     }
 
     @Override
     public byte[] getArray(int length, int address) {
-        return Arrays.copyOfRange(heapBuffer, address, address + length);
+        byte array[]        = new byte[length];
+        ByteBuffer view     = heapBuffer.duplicate();
+        view.position(address);
+        view.get(array);
+
+        return array;
     }
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+package com.riverssen.veras;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//// Accepts processes moved by KernelImpl.migrate(process, host, port) and runs them on
+//// a local kernel.
+//// The sender streams checkpoint rounds, the server answers with the new pid (or -1
+//// and a reason) and, once the process exits, with its exit code.
+public class MigrationServer implements Runnable {
+    private final KernelImpl    kernel;
+    private final ServerSocket  server;
+    private final AtomicBoolean running;
+    private Thread              thread;
+
+    //// listens on the loopback interface, port 0 picks a free port.
+    public MigrationServer(final KernelImpl kernel, int port) throws IOException
+    {
+        this(kernel, InetAddress.getLoopbackAddress(), port);
+    }
+
+    public MigrationServer(final KernelImpl kernel, InetAddress address, int port) throws IOException
+    {
+        this.kernel     = kernel;
+        this.server     = new ServerSocket(port, 50, address);
+        this.running    = new AtomicBoolean(false);
+    }
+
+    public int getPort()
+    {
+        return server.getLocalPort();
+    }
+
+    public void start()
+    {
+        if (!running.compareAndSet(false, true))
+            return;
+
+        thread = new Thread(this, "veras-migration-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop()
+    {
+        running.set(false);
+        try {
+            server.close();
+        } catch (IOException e) {
+        }
+    }
+
+    public void run()
+    {
+        while (running.get())
+        {
+            try {
+                final Socket socket = server.accept();
+                Thread connection = new Thread(() -> receive(socket), "veras-migration-" + socket.getPort());
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                if (running.get())
+                    continue;
+                return;
+            }
+        }
+    }
+
+    private void receive(final Socket socket)
+    {
+        ProcessImport processImport = new ProcessImport(kernel, null);
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in          = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out  = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            try {
+                while (!processImport.read(in));
+            } catch (IOException e) {
+                processImport.abort();
+                out.writeInt(-1);
+                out.writeUTF(String.valueOf(e.getMessage()));
+                out.flush();
+                socket.close();
+                return;
+            }
+
+            out.writeInt(processImport.getProcess().getProcessID());
+            out.flush();
+
+            processImport.getProcess().getExitFuture().whenComplete((code, error) -> {
+                try {
+                    out.writeLong(code == null ? -1L : code);
+                    out.flush();
+                } catch (IOException e) {
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                    }
+                }
+            });
+        } catch (IOException e) {
+            processImport.abort();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.riverssen.veras;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//// Multi producer, multi consumer bounded queue (vyukov).
+//// Every cell carries a sequence number, producers and consumers claim positions by CAS
+//// and hand the cell over by publishing the next sequence.
+public class MpmcChannel extends Channel {
+    protected final long            buffer[];
+    protected final AtomicLongArray sequence;
+    protected final int             mask;
+    protected final AtomicLong      head;
+    protected final AtomicLong      tail;
+
+    public MpmcChannel(final int id, final int capacity)
+    {
+        super(id);
+        this.buffer     = new long[capacityOf(capacity)];
+        this.sequence   = new AtomicLongArray(buffer.length);
+        this.mask       = buffer.length - 1;
+        this.head       = new AtomicLong(0);
+        this.tail       = new AtomicLong(0);
+
+        for (int i = 0; i < buffer.length; i ++)
+            sequence.set(i, i);
+    }
+
+    @Override
+    public int getKind()
+    {
+        return MPMC;
+    }
+
+    @Override
+    public int capacity()
+    {
+        return buffer.length;
+    }
+
+    @Override
+    protected boolean enqueue(long value)
+    {
+        while (true)
+        {
+            long t      = tail.get();
+            int cell    = (int) t & mask;
+            long delta  = sequence.get(cell) - t;
+
+            if (delta == 0)
+            {
+                if (tail.compareAndSet(t, t + 1))
+                {
+                    buffer[cell] = value;
+                    sequence.set(cell, t + 1);
+                    return true;
+                }
+            }
+            else if (delta < 0)
+                return false;
+        }
+    }
+
+    @Override
+    protected boolean dequeue(long dst[], int index)
+    {
+        while (true)
+        {
+            long h      = head.get();
+            int cell    = (int) h & mask;
+            long delta  = sequence.get(cell) - (h + 1);
+
+            if (delta == 0)
+            {
+                if (head.compareAndSet(h, h + 1))
+                {
+                    dst[index] = buffer[cell];
+                    sequence.set(cell, h + buffer.length);
+                    return true;
+                }
+            }
+            else if (delta < 0)
+                return false;
+        }
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return head.get() >= tail.get();
+    }
+
+    @Override
+    public boolean isFull()
+    {
+        return tail.get() - head.get() >= buffer.length;
+    }
+}
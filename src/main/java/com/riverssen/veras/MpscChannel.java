@@ -0,0 +1,31 @@
+package com.riverssen.veras;
+
+//// Multi producer, single consumer variant of MpmcChannel.
+//// Only the producers contend, the consumer advances the head without a CAS.
+public class MpscChannel extends MpmcChannel {
+    public MpscChannel(final int id, final int capacity)
+    {
+        super(id, capacity);
+    }
+
+    @Override
+    public int getKind()
+    {
+        return MPSC;
+    }
+
+    @Override
+    protected boolean dequeue(long dst[], int index)
+    {
+        long h      = head.get();
+        int cell    = (int) h & mask;
+
+        if (sequence.get(cell) != h + 1)
+            return false;
+
+        dst[index] = buffer[cell];
+        sequence.set(cell, h + buffer.length);
+        head.set(h + 1);
+        return true;
+    }
+}
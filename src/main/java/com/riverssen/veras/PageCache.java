@@ -0,0 +1,733 @@
+package com.riverssen.veras;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+////// Kernel page cache in front of a storage engine.
+//////
+////// Cells are cached in PAGE_SIZE pages held in one direct buffer, its capacity is set
+////// apart from guest memory. A page is replaced by CLOCK: the hand clears the reference
+////// bit of a used page and takes the first page found unreferenced and unpinned.
+////// Readers pin the pages of a cell until their stream is closed.
+//////
+////// Writes are cached too (write-back): the pages of a written cell stay dirty until
+////// the cell is written to the engine in one gather write, when one of its pages is
+////// replaced or on flush(). The pages of a dirty cell are always all cached.
+////// Cells larger than a quarter of the cache are written and read around it.
+//////
+////// Written through, a write goes to the engine before it returns (outside the cache, so
+////// writers do not wait for each other) and the cell's cached pages are dropped.
+public class PageCache implements StorageBlock {
+    public static final int         PAGE_SIZE           = 4096;
+    public static final long        DEFAULT_CAPACITY    = 16L * 1024 * 1024;
+
+    private volatile StorageBlock   backing;
+    private final Runnable          dirtied;
+    private final ReentrantLock     lock;
+    private final Map<String, Entry> entries;
+    private final LongAdder         hits;
+    private final LongAdder         misses;
+    private final LongAdder         evictions;
+    private final LongAdder         writeBacks;
+    private long                    capacity;
+    private int                     frames;
+    ////made on first use, a kernel that never touches storage does not pay for it.
+    private ByteBuffer              pages[];
+    private Entry                   owners[];
+    private int                     ownerPages[];
+    private boolean                 referenced[];
+    private int                     pins[];
+    private int                     free[];
+    private int                     freeCount;
+    private int                     hand;
+    ////changes on every write, delete and resize, a miss read outside the lock is
+    ////only cached if nothing changed meanwhile.
+    private long                    modifications;
+    private int                     generation;
+    private int                     dirtyCells;
+    private boolean                 writeThrough;
+
+    public PageCache(final StorageBlock backing, long capacity)
+    {
+        this(backing, capacity, null);
+    }
+
+    //// dirtied runs whenever the first cell becomes dirty in a clean cache.
+    public PageCache(final StorageBlock backing, long capacity, final Runnable dirtied)
+    {
+        this.backing    = backing;
+        this.dirtied    = dirtied;
+        this.lock       = new ReentrantLock();
+        this.entries    = new HashMap<>();
+        this.hits       = new LongAdder();
+        this.misses     = new LongAdder();
+        this.evictions  = new LongAdder();
+        this.writeBacks = new LongAdder();
+
+        resize(capacity);
+    }
+
+    public StorageBlock getBacking()
+    {
+        return backing;
+    }
+
+    //// puts another engine under the cache, dirty pages are written back to the old one
+    //// and the cache is emptied first. used to slow down or fail the engine of a running kernel.
+    public void setBacking(StorageBlock backing) throws IOException
+    {
+        lock.lock();
+        try {
+            flush();
+            resize(capacity);
+            this.backing = backing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCapacity()
+    {
+        lock.lock();
+        try {
+            return capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //// writes back every dirty page and empties the cache.
+    //// pages pinned by open streams stay valid until they are closed.
+    public void setCapacity(long capacity) throws IOException
+    {
+        lock.lock();
+        try {
+            flush();
+            resize(capacity);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isWriteThrough()
+    {
+        lock.lock();
+        try {
+            return writeThrough;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //// writes back every dirty page before writes go through.
+    public void setWriteThrough(boolean writeThrough) throws IOException
+    {
+        lock.lock();
+        try {
+            flush();
+            this.writeThrough = writeThrough;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //// pages read from the cache.
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    //// pages read from the storage engine.
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    //// dirty cells written to the storage engine.
+    public long getWriteBacks()
+    {
+        return writeBacks.sum();
+    }
+
+    public int getCachedPages()
+    {
+        lock.lock();
+        try {
+            return pages == null ? 0 : frames - freeCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //// writes every dirty cell to the storage engine.
+    public void flush() throws IOException
+    {
+        lock.lock();
+        try {
+            for (Entry entry : new ArrayList<>(entries.values()))
+                if (entry.dirty)
+                    writeBack(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        flush();
+        backing.sync();
+    }
+
+    @Override
+    public long size() {
+        return backing.size();
+    }
+
+    @Override
+    public boolean createBlock(byte[] key) {
+        return backing.createBlock(key);
+    }
+
+    @Override
+    public boolean blockExists(byte[] key) {
+        return backing.blockExists(key);
+    }
+
+    @Override
+    public boolean deleteBlock(byte[] key) throws IOException {
+        String name = Base16.encode(key);
+        lock.lock();
+        try {
+            invalidate(name);
+            if (!writeThrough)
+                return backing.deleteBlock(key);
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            return backing.deleteBlock(key);
+        } finally {
+            lock.lock();
+            try {
+                invalidate(name);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public CellInputStream openInputStream(byte[] key) throws IOException {
+        Pinned pinned = pin(key);
+        if (pinned == null)
+            return null;
+
+        return new CellInputStream(new PinnedInputStream(pinned));
+    }
+
+    @Override
+    public CellOutputStream openOutputStream(byte[] key) throws IOException {
+        if (!backing.blockExists(key))
+            return null;
+
+        return new CellOutputStream(new ByteArrayOutputStream() {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed)
+                    return;
+                closed = true;
+
+                writeCell(key, new ByteBuffer[] { ByteBuffer.wrap(buf, 0, count) });
+            }
+        });
+    }
+
+    @Override
+    public boolean reachable(byte[] key) {
+        return backing.reachable(key);
+    }
+
+    @Override
+    public ByteBuffer mapCell(byte[] key) throws IOException {
+        Pinned pinned = pin(key);
+        if (pinned == null)
+            return null;
+        if (pinned.frames == null)
+            return pinned.buffers[0];
+
+        try {
+            ByteBuffer contents = ByteBuffer.allocate(pinned.length);
+            for (ByteBuffer buffer : pinned.buffers)
+                contents.put(buffer.duplicate());
+            contents.flip();
+            return contents.asReadOnlyBuffer();
+        } finally {
+            unpin(pinned);
+        }
+    }
+
+    @Override
+    public boolean writeCell(byte[] key, ByteBuffer srcs[]) throws IOException {
+        long length = 0;
+        for (ByteBuffer src : srcs)
+            length += src.remaining();
+
+        String name = Base16.encode(key);
+        lock.lock();
+        try {
+            if (!backing.blockExists(key))
+                return false;
+
+            invalidate(name);
+            if (!writeThrough)
+            {
+                if (length > capacity / 4 || !cache(name, key, (int) length, srcs))
+                    return backing.writeCell(key, srcs);
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        ////a miss that read the old contents meanwhile is dropped again.
+        try {
+            return backing.writeCell(key, srcs);
+        } finally {
+            lock.lock();
+            try {
+                invalidate(name);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //// drops the cached pages of a cell about to change. lock held.
+    private void invalidate(final String name)
+    {
+        modifications ++;
+        Entry entry = entries.remove(name);
+        if (entry != null)
+            drop(entry);
+    }
+
+    //// copies the buffers into new dirty pages of the cell.
+    //// returns false (and caches nothing) if there are not enough free pages. lock held.
+    private boolean cache(final String name, final byte key[], int length, final ByteBuffer srcs[]) throws IOException
+    {
+        Entry entry = new Entry(name, key, length);
+        for (int page = 0; page < entry.frames.length; page ++)
+        {
+            int frame = allocate();
+            if (frame < 0)
+            {
+                for (int filled : entry.frames)
+                    if (filled >= 0)
+                        pins[filled] --;
+                drop(entry);
+                return false;
+            }
+
+            ////pinned until the cell is complete, so filling it cannot replace its own pages.
+            install(entry, page, frame);
+            pins[frame] ++;
+        }
+
+        int source = 0;
+        for (int page = 0; page < entry.frames.length; page ++)
+        {
+            ByteBuffer target = pages[entry.frames[page]].duplicate();
+            target.limit(entry.pageLength(page));
+            while (target.hasRemaining())
+            {
+                ByteBuffer src = srcs[source].duplicate();
+                if (!src.hasRemaining())
+                {
+                    source ++;
+                    continue;
+                }
+
+                int copied = Math.min(src.remaining(), target.remaining());
+                src.limit(src.position() + copied);
+                target.put(src);
+                srcs[source].position(srcs[source].position() + copied);
+            }
+        }
+
+        for (int frame : entry.frames)
+            pins[frame] --;
+
+        entry.dirty = true;
+        entries.put(name, entry);
+        if (dirtyCells ++ == 0 && dirtied != null)
+            dirtied.run();
+        return true;
+    }
+
+    //// pins every page of the cell, reading the missing ones from the storage engine.
+    //// returns null if there is no such cell, or a detached copy if the cache is full.
+    private Pinned pin(final byte key[]) throws IOException
+    {
+        String name = Base16.encode(key);
+        while (true)
+        {
+            long seen, limit;
+            lock.lock();
+            try {
+                Entry entry = entries.get(name);
+                if (entry != null && entry.resident == entry.frames.length)
+                {
+                    hits.add(entry.frames.length);
+                    return pin(entry);
+                }
+                seen    = modifications;
+                limit   = capacity / 4;
+            } finally {
+                lock.unlock();
+            }
+
+            ////the engine is read without holding the cache.
+            ByteBuffer contents = backing.mapCell(key);
+            if (contents == null)
+                return null;
+            if (contents.remaining() > limit)
+            {
+                misses.add((contents.remaining() + PAGE_SIZE - 1) / PAGE_SIZE);
+                return new Pinned(contents);
+            }
+
+            lock.lock();
+            try {
+                if (seen != modifications)
+                    continue;
+
+                Entry entry = entries.get(name);
+                if (entry == null)
+                {
+                    entry = new Entry(name, key, contents.remaining());
+                    entries.put(name, entry);
+                }
+
+                ////pages still cached stay pinned while the others are read in.
+                for (int frame : entry.frames)
+                    if (frame >= 0)
+                        pins[frame] ++;
+
+                int read = 0;
+                for (int page = 0; page < entry.frames.length; page ++)
+                {
+                    if (entry.frames[page] >= 0)
+                        continue;
+
+                    int frame = allocate();
+                    if (frame < 0)
+                    {
+                        for (int cached : entry.frames)
+                            if (cached >= 0)
+                                unpin(cached);
+                        misses.add(entry.frames.length);
+                        return new Pinned(contents);
+                    }
+
+                    ByteBuffer source = contents.duplicate();
+                    source.position(contents.position() + page * PAGE_SIZE);
+                    source.limit(source.position() + entry.pageLength(page));
+                    ByteBuffer target = pages[frame].duplicate();
+                    target.put(source);
+
+                    install(entry, page, frame);
+                    pins[frame] ++;
+                    read ++;
+                }
+
+                misses.add(read);
+                hits.add(entry.frames.length - read);
+                for (int frame : entry.frames)
+                    unpin(frame);
+                return pin(entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //// pins the pages of a cell that is wholly cached. lock held.
+    private Pinned pin(final Entry entry)
+    {
+        ByteBuffer buffers[] = new ByteBuffer[entry.frames.length];
+        for (int page = 0; page < entry.frames.length; page ++)
+        {
+            int frame           = entry.frames[page];
+            pins[frame]         ++;
+            referenced[frame]   = true;
+            buffers[page]       = pages[frame].duplicate();
+            buffers[page].limit(entry.pageLength(page));
+        }
+
+        return new Pinned(buffers, entry.frames.clone(), entry.length, generation);
+    }
+
+    private void unpin(final Pinned pinned)
+    {
+        lock.lock();
+        try {
+            ////pages of a cache that was resized meanwhile are not reused.
+            if (pinned.generation != generation)
+                return;
+
+            for (int frame : pinned.frames)
+                unpin(frame);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //// lock held.
+    private void unpin(int frame)
+    {
+        if (-- pins[frame] == 0 && owners[frame] == null)
+            free[freeCount ++] = frame;
+    }
+
+    //// lock held.
+    private void install(final Entry entry, int page, int frame)
+    {
+        entry.frames[page]  = frame;
+        entry.resident      ++;
+        owners[frame]       = entry;
+        ownerPages[frame]   = page;
+        referenced[frame]   = true;
+    }
+
+    //// frees the pages of a cell that is replaced or deleted, pinned pages are freed
+    //// once their readers let go. lock held.
+    private void drop(final Entry entry)
+    {
+        for (int page = 0; page < entry.frames.length; page ++)
+        {
+            int frame = entry.frames[page];
+            if (frame < 0)
+                continue;
+
+            entry.frames[page]  = -1;
+            owners[frame]       = null;
+            if (pins[frame] == 0)
+                free[freeCount ++] = frame;
+        }
+
+        entry.resident  = 0;
+        if (entry.dirty)
+            dirtyCells --;
+        entry.dirty     = false;
+    }
+
+    //// a free page, or the page CLOCK replaces. returns -1 if every page is pinned.
+    //// lock held.
+    private int allocate() throws IOException
+    {
+        if (frames == 0)
+            return -1;
+        if (pages == null)
+            allocatePool();
+        if (freeCount > 0)
+            return free[-- freeCount];
+
+        ////the first round may only clear reference bits.
+        for (int step = 0; step < 2 * frames; step ++)
+        {
+            int frame   = hand;
+            hand        = (hand + 1) % frames;
+            if (pins[frame] > 0)
+                continue;
+            if (referenced[frame])
+            {
+                referenced[frame] = false;
+                continue;
+            }
+
+            Entry owner = owners[frame];
+            if (owner.dirty)
+                writeBack(owner);
+
+            owner.frames[ownerPages[frame]] = -1;
+            owners[frame] = null;
+            if (-- owner.resident == 0)
+                entries.remove(owner.name);
+            evictions.increment();
+            return frame;
+        }
+
+        return -1;
+    }
+
+    //// writes all pages of a dirty cell in one gather write. lock held.
+    private void writeBack(final Entry entry) throws IOException
+    {
+        ByteBuffer buffers[] = new ByteBuffer[entry.frames.length];
+        for (int page = 0; page < entry.frames.length; page ++)
+        {
+            buffers[page] = pages[entry.frames[page]].duplicate();
+            buffers[page].limit(entry.pageLength(page));
+        }
+
+        if (!backing.writeCell(entry.key, buffers))
+            throw new IOException("cell '" + entry.name + "' could not be written back.");
+
+        entry.dirty = false;
+        dirtyCells --;
+        writeBacks.increment();
+    }
+
+    //// lock held.
+    private void resize(long capacity)
+    {
+        if (capacity < 0)
+            throw new IllegalArgumentException("invalid page cache capacity.");
+
+        this.capacity   = capacity;
+        this.frames     = (int) Math.min(Integer.MAX_VALUE / PAGE_SIZE, capacity / PAGE_SIZE);
+        this.pages      = null;
+        this.hand       = 0;
+        entries.clear();
+        modifications   ++;
+        generation      ++;
+    }
+
+    //// lock held.
+    private void allocatePool()
+    {
+        ByteBuffer pool = ByteBuffer.allocateDirect(frames * PAGE_SIZE);
+        pages           = new ByteBuffer[frames];
+        owners          = new Entry[frames];
+        ownerPages      = new int[frames];
+        referenced      = new boolean[frames];
+        pins            = new int[frames];
+        free            = new int[frames];
+        freeCount       = frames;
+
+        for (int frame = 0; frame < frames; frame ++)
+        {
+            pool.limit((frame + 1) * PAGE_SIZE);
+            pool.position(frame * PAGE_SIZE);
+            pages[frame]                = pool.slice();
+            free[frames - 1 - frame]    = frame;
+        }
+    }
+
+    private static final class Entry {
+        private final String    name;
+        private final byte      key[];
+        private final int       length;
+        private final int       frames[];
+        private int             resident;
+        private boolean         dirty;
+
+        private Entry(final String name, final byte key[], int length)
+        {
+            this.name   = name;
+            this.key    = key.clone();
+            this.length = length;
+            this.frames = new int[(length + PAGE_SIZE - 1) / PAGE_SIZE];
+            for (int page = 0; page < frames.length; page ++)
+                frames[page] = -1;
+        }
+
+        private int pageLength(int page)
+        {
+            return Math.min(PAGE_SIZE, length - page * PAGE_SIZE);
+        }
+    }
+
+    //// pages of a cell pinned for a reader, or a copy read around the cache.
+    private static final class Pinned {
+        private final ByteBuffer    buffers[];
+        private final int           frames[];
+        private final int           length;
+        private final int           generation;
+
+        private Pinned(final ByteBuffer buffers[], final int frames[], int length, int generation)
+        {
+            this.buffers    = buffers;
+            this.frames     = frames;
+            this.length     = length;
+            this.generation = generation;
+        }
+
+        private Pinned(final ByteBuffer contents)
+        {
+            this(new ByteBuffer[] { contents }, null, contents.remaining(), 0);
+        }
+    }
+
+    //// reads pinned pages, unpins them when closed.
+    private final class PinnedInputStream extends InputStream {
+        private final Pinned    pinned;
+        private final List<ByteBuffer> remaining;
+        private boolean         closed;
+
+        private PinnedInputStream(final Pinned pinned)
+        {
+            this.pinned     = pinned;
+            this.remaining  = new ArrayList<>();
+            for (ByteBuffer buffer : pinned.buffers)
+                remaining.add(buffer.duplicate());
+        }
+
+        @Override
+        public int read()
+        {
+            ByteBuffer buffer = current();
+            return buffer == null ? -1 : buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte dst[], int offset, int length)
+        {
+            if (length == 0)
+                return 0;
+
+            ByteBuffer buffer = current();
+            if (buffer == null)
+                return -1;
+
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(dst, offset, read);
+            return read;
+        }
+
+        private ByteBuffer current()
+        {
+            if (closed)
+                return null;
+            while (!remaining.isEmpty() && !remaining.get(0).hasRemaining())
+                remaining.remove(0);
+            return remaining.isEmpty() ? null : remaining.get(0);
+        }
+
+        @Override
+        public void close()
+        {
+            if (closed)
+                return;
+            closed = true;
+            if (pinned.frames != null)
+                unpin(pinned);
+        }
+    }
+}
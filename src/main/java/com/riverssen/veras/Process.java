@@ -3,41 +3,154 @@ package com.riverssen.veras;
 import com.riverssen.veras.exceptions.MemoryException;
 import com.riverssen.veras.exceptions.ProcessException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class Process implements Comparable<Process> {
     private AtomicInteger   processID;
     private final Kernel    kernel;
     private final Heap      heap;
     private final Stack     stack;
-    private int             program;
+    private volatile int    program;
+    private boolean         ownsProgram;
     private int             index;
     private int             offset;
     private AtomicBoolean   active;
     private AtomicBoolean   halted;
-    private Set<Integer>    subprocesses;
+    private Map<Integer, Process> subprocesses;
     private AtomicInteger   priority;
     private AtomicLong      cycle;
     private byte            name[];
+    private volatile Thread owner;
+    private volatile SharedProcess core;
+    private volatile long   exitCode;
+    private final CompletableFuture<Long> exit;
+    private volatile Process joining;
+    private volatile TimingWheel.Timer waitTimer;
+    private volatile boolean timedOut;
+    private volatile CompletableFuture<?> pendingIO;
+    private volatile SchedulingClass schedulingClass;
+    private final AtomicBoolean queued;
+    private long            enqueuedAt;
+    private volatile long   retired;
+    private volatile long   wallTime;
+    private volatile long   peakBytes;
+    private volatile ProcessQuota quota;
+    private volatile boolean frozen;
+    private volatile boolean running;
 
     public Process(final Kernel kernel, final int processID) throws MemoryException {
+        this(kernel, processID, new Heap(kernel), new Stack(kernel, Stack.DEFAULT_SIZE));
+    }
+
+    //// a process on a heap and stack already allocated by the caller.
+    Process(final Kernel kernel, final int processID, final Heap heap, final Stack stack) {
         this.kernel         = kernel;
         this.processID      = new AtomicInteger(processID);
         this.program        = 0;
-        this.heap           = new Heap(kernel);
-        this.stack          = new Stack(kernel, 1024 * 12);
+        this.heap           = heap;
+        this.stack          = stack;
         this.active         = new AtomicBoolean(true);
-        this.halted         = new AtomicBoolean(true);
+        this.halted         = new AtomicBoolean(false);
         this.offset         = 0;
-        this.subprocesses   = Collections.synchronizedSet(new LinkedHashSet<>());
+        this.subprocesses   = Collections.synchronizedMap(new LinkedHashMap<>());
+        this.exit           = new CompletableFuture<>();
+        this.schedulingClass= SchedulingClass.INTERACTIVE;
+        this.queued         = new AtomicBoolean(false);
         this.priority       = new AtomicInteger(10);
         this.cycle          = new AtomicLong(0);
+        this.quota          = ProcessQuota.NONE;
+    }
+
+    //// writes the process to a kernel image.
+    //// a halted process only keeps its exit code, children and joiners resolve pids
+    //// back to processes so they are linked by the kernel, not here.
+    void write(final DataOutputStream out) throws IOException {
+        out.writeInt(getProcessID());
+        out.writeBoolean(halted());
+        out.writeLong(exitCode);
+        if (halted())
+            return;
+
+        heap.write(out);
+        stack.write(out);
+
+        out.writeInt(name == null ? -1 : name.length);
+        if (name != null)
+            out.write(name);
+        out.writeInt(program);
+        out.writeBoolean(ownsProgram);
+        out.writeInt(index);
+        out.writeInt(offset);
+        out.writeBoolean(active.get());
+        out.writeInt(priority.get());
+        out.writeInt(schedulingClass.ordinal());
+        out.writeLong(cycle.get());
+        out.writeLong(retired);
+        out.writeLong(wallTime);
+        out.writeLong(peakBytes);
+        out.writeLong(quota.getMaxBytes());
+        out.writeLong(quota.getMaxInstructions());
+        out.writeLong(quota.getMaxWallNanos());
+        out.writeInt(quota.getAction().ordinal());
+    }
+
+    //// a process that already halted with the exit code, it owns no memory.
+    static Process exited(final Kernel kernel, final int processID, final long exitCode) {
+        Process process = new Process(kernel, processID, null, null);
+        process.halted.set(true);
+        process.exitCode = exitCode;
+        process.exit.complete(exitCode);
+        return process;
+    }
+
+    //// reads a process written by write(), it is not queued on any core.
+    static Process read(final Kernel kernel, final DataInputStream in) throws IOException {
+        int processID   = in.readInt();
+        boolean halted  = in.readBoolean();
+        long exitCode   = in.readLong();
+
+        if (halted)
+            return exited(kernel, processID, exitCode);
+
+        Process process = new Process(kernel, processID, new Heap(kernel, in), new Stack(kernel, in));
+        process.exitCode        = exitCode;
+
+        int nameLength          = in.readInt();
+        if (nameLength >= 0) {
+            process.name        = new byte[nameLength];
+            in.readFully(process.name);
+        }
+        process.program         = in.readInt();
+        process.ownsProgram     = in.readBoolean();
+        process.index           = in.readInt();
+        process.offset          = in.readInt();
+        process.active.set(in.readBoolean());
+        process.priority.set(in.readInt());
+        process.schedulingClass = constant(SchedulingClass.values(), in.readInt());
+        process.cycle.set(in.readLong());
+        process.retired         = in.readLong();
+        process.wallTime        = in.readLong();
+        process.peakBytes       = in.readLong();
+        process.quota           = new ProcessQuota(in.readLong(), in.readLong(), in.readLong(), constant(ProcessQuota.Action.values(), in.readInt()));
+
+        return process;
+    }
+
+    //// images may come from another machine, an unknown constant is a malformed image.
+    private static <E> E constant(E values[], int ordinal) throws IOException {
+        if (ordinal < 0 || ordinal >= values.length)
+            throw new IOException("unknown constant '" + ordinal + "' in process image.");
+        return values[ordinal];
     }
 
     public void setProgram(byte program[]) throws ProcessException, MemoryException {
@@ -45,16 +158,34 @@ public class Process implements Comparable<Process> {
             throw new ProcessException("process already being used.");
         this.program    = heap.createReadOnly(program);
         this.index      = 0;
+        this.ownsProgram= true;
+        signal();
+    }
+
+    //// runs a program image already copied into the heap's read-only block,
+    //// the image is freed when this process halts.
+    void setProgramImage(int program) throws ProcessException {
+        if (this.program != 0)
+            throw new ProcessException("process already being used.");
+        this.program    = program;
+        this.index      = 0;
+        this.ownsProgram= true;
+        signal();
     }
 
     public void hang()
     {
         active.set(false);
+
+        SharedProcess core = this.core;
+        if (core != null)
+            core.park(this);
     }
 
     public void wake()
     {
         active.set(true);
+        signal();
     }
 
     public boolean awake()
@@ -72,11 +203,75 @@ public class Process implements Comparable<Process> {
         return priority.get();
     }
 
+    //// takes effect the next time the process is queued.
+    public void setSchedulingClass(SchedulingClass schedulingClass)
+    {
+        this.schedulingClass = schedulingClass;
+    }
+
+    public SchedulingClass getSchedulingClass()
+    {
+        return schedulingClass;
+    }
+
     public long getCycle()
     {
         return cycle.get();
     }
 
+    //// instructions executed so far.
+    public long getInstructionsRetired()
+    {
+        return retired;
+    }
+
+    //// only called by the thread currently running the process.
+    protected void retire(int instructions)
+    {
+        retired += instructions;
+    }
+
+    //// nanoseconds the process spent on a core.
+    public long getWallTime()
+    {
+        return wallTime;
+    }
+
+    //// bytes allocated from the heap plus the bytes of values and frames on the stack.
+    public long getLiveBytes()
+    {
+        if (heap == null)
+            return 0;
+        return (long) heap.getUsed() + stack.getUsed();
+    }
+
+    //// the most live bytes seen at a quantum boundary, never less than the heap or stack peak.
+    public long getPeakBytes()
+    {
+        if (heap == null)
+            return peakBytes;
+        return Math.max(peakBytes, Math.max(heap.getMaxUsed(), stack.getMaxUsed()));
+    }
+
+    //// heap allocations and function frames pushed so far.
+    public long getAllocations()
+    {
+        if (heap == null)
+            return 0;
+        return heap.getAllocations() + stack.getAllocations();
+    }
+
+    //// a raised quota does not wake a descheduled process, wake() does.
+    public void setQuota(final ProcessQuota quota)
+    {
+        this.quota = quota == null ? ProcessQuota.NONE : quota;
+    }
+
+    public ProcessQuota getQuota()
+    {
+        return quota;
+    }
+
     public void setName(byte name[])
     {
         this.name = name;
@@ -86,24 +281,47 @@ public class Process implements Comparable<Process> {
         return name;
     }
 
+    public Kernel getKernel() {
+        return kernel;
+    }
+
     public void halt()
     {
         this.halted.set(true);
+        signal();
         if (program != 0) {
             try {
-                kernel.getMemoryBlock().delete(program);
+                kernel.releaseProgram(program, ownsProgram);
                 heap.delete();
                 stack.delete();
             } catch (MemoryException e) {
             }
         }
+        synchronized (subprocesses) {
+            subprocesses.values().removeIf(Process::halted);
+        }
+        exit.complete(exitCode);
     }
 
+    //// children are halted by the kernel that issued their pids, a moved process may
+    //// have children left behind on the kernel it came from.
     public void haltChildren()
     {
-        Iterator<Integer> iterator = subprocesses.iterator();
-        while (iterator.hasNext())
-            kernel.haltProcessRecursive(iterator.next());
+        for (Process child : getChildren())
+            if (!child.halted())
+                child.getKernel().haltProcessRecursive(child);
+    }
+
+    //// sets the value the exit future completes with once the process halts.
+    public void setExitCode(long exitCode)
+    {
+        this.exitCode = exitCode;
+    }
+
+    //// completes with the exit code once the process has halted.
+    public CompletableFuture<Long> getExitFuture()
+    {
+        return exit;
     }
 
     public void haltAll()
@@ -114,7 +332,7 @@ public class Process implements Comparable<Process> {
 
     public boolean isIdle()
     {
-        return  (program == 0 || !active.get());
+        return  (program == 0 || !active.get() || frozen);
     }
 
     public boolean halted()
@@ -127,13 +345,93 @@ public class Process implements Comparable<Process> {
         if (program == 0 || !active.get())
             return;
 
+        running = true;
         try{
+            if (frozen || enforceQuota())
+                return;
+
             catchUp();
-            index = kernel.executeProgram(this, heap, stack, program + index, steps);
+            long start  = System.nanoTime();
+            long before = retired;
+            try {
+                index = kernel.executeProgram(this, heap, stack, program + index, steps) - program;
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                wallTime += elapsed;
+                kernel.getAccounting().quantum(retired - before, elapsed);
+            }
+
+            long live = getLiveBytes();
+            if (live > peakBytes)
+                peakBytes = live;
+            enforceQuota();
         } catch (Exception e)
         {
-            haltAll();
+            setExitCode(-1);
+            kernel.haltProcessRecursive(getProcessID());
+        } finally {
+            running = false;
+        }
+    }
+
+    //// deschedules or kills the process if it is over its quota.
+    private boolean enforceQuota()
+    {
+        ProcessQuota quota = this.quota;
+        if (quota == ProcessQuota.NONE || halted() || !quota.exceeded(this))
+            return false;
+
+        kernel.getAccounting().enforced(quota.getAction());
+        if (quota.getAction() == ProcessQuota.Action.DESCHEDULE)
+            hang();
+        else
+        {
+            setExitCode(-1);
+            kernel.haltProcessRecursive(getProcessID());
+        }
+        return true;
+    }
+
+    //// stops the process at a quantum boundary, returns once the quantum in flight
+    //// (if any) finished. must not be called by the thread running the process.
+    protected void freeze()
+    {
+        frozen = true;
+        while (running)
+            Thread.yield();
+    }
+
+    protected void thaw()
+    {
+        frozen = false;
+        signal();
+    }
+
+    //// frees the memory of a process that was moved to another kernel.
+    //// unlike halt() the exit future is left to whoever tracks the moved process.
+    protected void detach()
+    {
+        this.halted.set(true);
+        signal();
+        try {
+            kernel.releaseProgram(program, ownsProgram);
+            heap.delete();
+            stack.delete();
+        } catch (MemoryException e) {
         }
+        ////nothing is left for a later halt() to free.
+        program = 0;
+    }
+
+    //// renumbers a process read from another kernel and points it at the copies of
+    //// its program, heap, stack and frames in this kernel, the program copy is owned.
+    void relocate(int processID, int program, int heap, int stack, int frameTable, int frames[])
+    {
+        this.processID.set(processID);
+        this.program        = program;
+        this.ownsProgram    = true;
+        this.heap.relocate(heap, program);
+        this.stack.relocate(stack, frameTable, frames);
     }
 
     @Override
@@ -149,8 +447,45 @@ public class Process implements Comparable<Process> {
         cycle.incrementAndGet();
     }
 
-    public void addChild(int pID) {
-        subprocesses.add(pID);
+    public void addChild(Process child) {
+        subprocesses.put(child.getProcessID(), child);
+        child.getExitFuture().whenComplete((code, error) -> exited(child, code == null ? -1L : code));
+    }
+
+    //// a halted child nobody is joining is reduced to its exit code until it is joined,
+    //// once this process halted too nothing can join it and it is reaped.
+    private void exited(final Process child, long exitCode) {
+        int pID = child.getProcessID();
+        if (halted())
+            subprocesses.remove(pID, child);
+        else if (joining != child)
+            subprocesses.replace(pID, child, exited(kernel, pID, exitCode));
+    }
+
+    //// the child stays joinable (even after it halted) until it is reaped.
+    public Process getChild(int pID) {
+        return subprocesses.get(pID);
+    }
+
+    //// every child not reaped yet, halted or not.
+    public Process[] getChildren() {
+        synchronized (subprocesses) {
+            return subprocesses.values().toArray(new Process[0]);
+        }
+    }
+
+    public void reapChild(int pID) {
+        subprocesses.remove(pID);
+    }
+
+    //// the process this process is blocked joining, kept so a non-child stays
+    //// reachable after it halted and its pid was released.
+    public Process getJoining() {
+        return joining;
+    }
+
+    public void setJoining(Process joining) {
+        this.joining = joining;
     }
 
     public int getProcessID() {
@@ -158,10 +493,31 @@ public class Process implements Comparable<Process> {
     }
 
     public void setProgram(int program) throws ProcessException {
+        setProgram(program, 0);
+    }
+
+    //// runs a program image owned by someone else (a parent or the host) starting at
+    //// the entry offset, the image is kept alive until this process halts.
+    public void setProgram(int program, int entry) throws ProcessException {
         if (this.program != 0)
             throw new ProcessException("process already being used.");
         this.program    = program;
-        this.index      = 0;
+        this.index      = entry;
+        kernel.retainProgram(program);
+        signal();
+    }
+
+    //// offset of the next instruction from the start of the program.
+    public int getProgramIndex() {
+        return index;
+    }
+
+    public Heap getHeap() {
+        return heap;
+    }
+
+    public Stack getStack() {
+        return stack;
     }
 
     public int getProgram() {
@@ -179,4 +535,106 @@ public class Process implements Comparable<Process> {
     public int getOffset() {
         return offset;
     }
+
+    //// arms the timer bounding the current sleep or wait.
+    public void setWaitTimer(TimingWheel.Timer timer)
+    {
+        this.timedOut   = false;
+        this.waitTimer  = timer;
+    }
+
+    public TimingWheel.Timer getWaitTimer()
+    {
+        return waitTimer;
+    }
+
+    //// called by the wait timer, wakes the process.
+    public void expire()
+    {
+        this.timedOut = true;
+        wake();
+    }
+
+    public boolean timedOut()
+    {
+        return timedOut;
+    }
+
+    public void clearWaitTimer()
+    {
+        TimingWheel.Timer timer = waitTimer;
+        if (timer != null)
+            timer.cancel();
+
+        this.waitTimer  = null;
+        this.timedOut   = false;
+    }
+
+    //// the storage operation the process is waiting on, null once its result was taken.
+    public void setPendingIO(final CompletableFuture<?> pendingIO)
+    {
+        this.pendingIO = pendingIO;
+    }
+
+    public CompletableFuture<?> getPendingIO()
+    {
+        return pendingIO;
+    }
+
+    //// the SharedProcess this process is multiplexed on.
+    protected void setCore(SharedProcess core)
+    {
+        this.core = core;
+    }
+
+    //// true once the process was handed to a core or a thread.
+    protected boolean isScheduled()
+    {
+        return core != null || owner != null;
+    }
+
+    //// binds the process to the thread running it (ExecutionMode.VIRTUAL).
+    protected void bind(Thread thread)
+    {
+        this.owner = thread;
+    }
+
+    //// parks the bound thread until the process is woken, given a program or halted.
+    protected void park()
+    {
+        if (isIdle() && !halted())
+            LockSupport.park(this);
+    }
+
+    //// marks the process as sitting in a run queue, false if it already is.
+    protected boolean markQueued()
+    {
+        if (!queued.compareAndSet(false, true))
+            return false;
+
+        enqueuedAt = System.nanoTime();
+        return true;
+    }
+
+    protected void clearQueued()
+    {
+        queued.set(false);
+    }
+
+    protected long getEnqueuedAt()
+    {
+        return enqueuedAt;
+    }
+
+    //// lets whoever runs the process know it may have become runnable.
+    private void signal()
+    {
+        SharedProcess core = this.core;
+        if (core != null)
+            core.unpark(this);
+
+        Thread thread = owner;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
 }
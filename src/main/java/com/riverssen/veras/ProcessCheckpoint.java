@@ -0,0 +1,186 @@
+package com.riverssen.veras;
+
+import com.riverssen.veras.exceptions.ProcessException;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+//// Incremental checkpoint of one process, streamed to a ProcessImport.
+////
+//// The process keeps running while precopy() rounds send the pages of its program,
+//// heap, stack, frame table and frames written since the previous round. commit()
+//// freezes it at a quantum boundary and sends what is still dirty together with its
+//// execution state, so the process is only stopped for the last round.
+////
+//// A round is: final flag, regions (id, size, chunks of region relative bytes) and,
+//// in the final round, the frame count, the process record, the remaining wait time,
+//// the joined pid and the children.
+public class ProcessCheckpoint {
+    static final int            PROGRAM             = 0;
+    static final int            HEAP                = 1;
+    static final int            STACK               = 2;
+    static final int            FRAME_TABLE         = 3;
+    static final int            FRAMES              = 4;
+
+    //// pre-copy stops once a round sends no more than this, or after MAX_PRECOPY_ROUNDS.
+    public static final long    STOP_COPY_BYTES     = 64 * 1024;
+    public static final int     MAX_PRECOPY_ROUNDS  = 8;
+
+    private final KernelImpl            kernel;
+    private final Process               process;
+    private final MemoryBlockImpl       memory;
+    private final Map<Integer, int[]>   sent;
+    private int                         epoch;
+    private boolean                     frozen;
+
+    public ProcessCheckpoint(final KernelImpl kernel, final Process process)
+    {
+        this.kernel     = kernel;
+        this.process    = process;
+        this.memory     = kernel.getMemoryBlock();
+        this.sent       = new HashMap<>();
+    }
+
+    //// sends the pages written since the previous round while the process runs.
+    //// returns the number of bytes of memory sent.
+    public long precopy(final DataOutputStream out) throws IOException
+    {
+        return round(out, false);
+    }
+
+    //// freezes the process and sends the final round.
+    //// the process stays frozen until finish() or abort().
+    //// throws exception (thawing the process) if it halted in the meantime.
+    public long commit(final DataOutputStream out) throws IOException, ProcessException
+    {
+        process.freeze();
+        frozen = true;
+
+        if (process.halted())
+        {
+            abort();
+            throw new ProcessException("process '" + Long.toHexString(process.getProcessID()) + "' halted before it could be moved.");
+        }
+
+        try {
+            return round(out, true);
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    //// releases the source process once the target has taken it over.
+    //// its exit future completes with the exit code of the moved process.
+    public void finish(final CompletableFuture<Long> exit)
+    {
+        kernel.detachProcess(process);
+        exit.whenComplete((code, error) -> process.getExitFuture().complete(code == null ? -1L : code));
+    }
+
+    //// lets the process run on the source kernel again.
+    public void abort()
+    {
+        if (frozen)
+            process.thaw();
+        frozen = false;
+    }
+
+    private long round(final DataOutputStream out, boolean last) throws IOException
+    {
+        int since           = epoch;
+        epoch               = memory.nextEpoch();
+
+        Stack stack         = process.getStack();
+        int depth           = stack.depth();
+        List<int[]> regions = new ArrayList<>();
+        regions.add(new int[] { PROGRAM, process.getProgram() });
+        regions.add(new int[] { HEAP, process.getHeap().getAddress() });
+        regions.add(new int[] { STACK, stack.getAddress() });
+        regions.add(new int[] { FRAME_TABLE, stack.getFrameTable() });
+        for (int i = 0; i < depth; i ++)
+            regions.add(new int[] { FRAMES + i, stack.getFrame(i) });
+
+        out.writeBoolean(last);
+        out.writeInt(regions.size());
+
+        long bytes = 0;
+        for (int region[] : regions)
+            bytes += writeRegion(out, region[0], region[1], since);
+
+        if (last)
+            writeState(out, depth);
+
+        out.flush();
+        return bytes;
+    }
+
+    //// a region that moved or changed size is sent whole, otherwise only its dirty pages.
+    private long writeRegion(final DataOutputStream out, int id, int address, int since) throws IOException
+    {
+        ////a running process may move a block while it is read, the final round fixes it up.
+        int size        = address == 0 ? 0 : memory.sizeof(address);
+        int previous[]  = sent.get(id);
+        boolean whole   = previous == null || previous[0] != address || previous[1] != size;
+
+        List<int[]> chunks = new ArrayList<>();
+        int offset = 0;
+        while (offset < size)
+        {
+            int end = Math.min(size, (((address + offset) | (MemoryBlockImpl.PAGE_SIZE - 1)) + 1) - address);
+            if (whole || memory.writtenSince(address + offset, end - offset, since))
+            {
+                int chunk[] = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+                if (chunk != null && chunk[0] + chunk[1] == offset)
+                    chunk[1] += end - offset;
+                else
+                    chunks.add(new int[] { offset, end - offset });
+            }
+            offset = end;
+        }
+
+        out.writeInt(id);
+        out.writeInt(size);
+        out.writeInt(chunks.size());
+
+        long bytes = 0;
+        for (int chunk[] : chunks)
+        {
+            out.writeInt(chunk[0]);
+            out.writeInt(chunk[1]);
+            out.write(memory.getArray(chunk[1], address + chunk[0]));
+            bytes += chunk[1];
+        }
+
+        sent.put(id, new int[] { address, size });
+        return bytes;
+    }
+
+    private void writeState(final DataOutputStream out, int depth) throws IOException
+    {
+        out.writeInt(depth);
+        process.write(out);
+
+        TimingWheel.Timer timer = process.getWaitTimer();
+        out.writeBoolean(timer != null);
+        if (timer != null)
+            out.writeLong(timer.getDeadline() - kernel.getTimerService().now());
+
+        Process joining = process.getJoining();
+        out.writeInt(joining == null ? -1 : joining.getProcessID());
+
+        Process children[] = process.getChildren();
+        out.writeInt(children.length);
+        for (Process child : children)
+        {
+            out.writeInt(child.getProcessID());
+            out.writeBoolean(child.getExitFuture().isDone());
+            out.writeLong(child.getExitFuture().getNow(-1L));
+        }
+    }
+}
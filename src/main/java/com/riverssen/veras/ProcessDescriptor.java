@@ -0,0 +1,43 @@
+package com.riverssen.veras;
+
+//// A process to create in a batch with Kernel.spawnProcesses().
+public final class ProcessDescriptor {
+    private final byte              program[];
+    private final int               priority;
+    private final SchedulingClass   schedulingClass;
+
+    public ProcessDescriptor(final byte program[])
+    {
+        this(program, 10);
+    }
+
+    public ProcessDescriptor(final byte program[], int priority)
+    {
+        this(program, priority, SchedulingClass.INTERACTIVE);
+    }
+
+    public ProcessDescriptor(final byte program[], int priority, final SchedulingClass schedulingClass)
+    {
+        if (program == null || program.length == 0)
+            throw new IllegalArgumentException("a process needs a program.");
+
+        this.program            = program;
+        this.priority           = priority;
+        this.schedulingClass    = schedulingClass;
+    }
+
+    public byte[] getProgram()
+    {
+        return program;
+    }
+
+    public int getPriority()
+    {
+        return priority;
+    }
+
+    public SchedulingClass getSchedulingClass()
+    {
+        return schedulingClass;
+    }
+}
@@ -0,0 +1,54 @@
+package com.riverssen.veras;
+
+import java.util.concurrent.CompletableFuture;
+
+//// A gang of processes spawned by one Kernel.spawnGroup call.
+//// Every member runs the same program image from the same entry point with its
+//// index pushed onto its stack, the group can be joined as a unit.
+public class ProcessGroup {
+    private final int                       groupID;
+    private final Process                   members[];
+    private final CompletableFuture<Long>   exit;
+
+    public ProcessGroup(final int groupID, final Process members[])
+    {
+        this.groupID    = groupID;
+        this.members    = members;
+
+        CompletableFuture<?> exits[] = new CompletableFuture<?>[members.length];
+        for (int i = 0; i < members.length; i ++)
+            exits[i] = members[i].getExitFuture();
+
+        this.exit       = CompletableFuture.allOf(exits).thenApply(v -> sum());
+    }
+
+    public int getGroupID()
+    {
+        return groupID;
+    }
+
+    public int size()
+    {
+        return members.length;
+    }
+
+    public Process getMember(int index)
+    {
+        return members[index];
+    }
+
+    //// completes with the sum of the members' exit codes once every member halted.
+    public CompletableFuture<Long> getExitFuture()
+    {
+        return exit;
+    }
+
+    private long sum()
+    {
+        long sum = 0;
+        for (Process member : members)
+            sum += member.getExitFuture().getNow(0L);
+
+        return sum;
+    }
+}
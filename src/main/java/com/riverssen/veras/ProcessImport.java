@@ -0,0 +1,178 @@
+package com.riverssen.veras;
+
+import com.riverssen.veras.exceptions.MemoryException;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+//// Receiving end of a ProcessCheckpoint.
+//// Every round is applied to copies of the process' blocks in this kernel's memory,
+//// the final round rebuilds the process under a new pid and schedules it.
+public class ProcessImport {
+    private final KernelImpl            kernel;
+    private final MemoryBlock           memory;
+    private final IntFunction<Process>  resolver;
+    private final Map<Integer, int[]>   regions;
+    private Process                     process;
+
+    //// the resolver maps pids of running children (and of a joined process) to their
+    //// Process, null if the sender is not in this JVM.
+    public ProcessImport(final KernelImpl kernel, final IntFunction<Process> resolver)
+    {
+        this.kernel     = kernel;
+        this.memory     = kernel.getMemoryBlock();
+        this.resolver   = resolver;
+        this.regions    = new HashMap<>();
+    }
+
+    //// applies one round.
+    //// returns true once the final round was read, the process is then running here.
+    public boolean read(final DataInputStream in) throws IOException
+    {
+        boolean last = in.readBoolean();
+        for (int i = in.readInt(); i > 0; i --)
+            readRegion(in);
+
+        if (last)
+            readState(in);
+        return last;
+    }
+
+    //// the imported process, null until the final round was read.
+    public Process getProcess()
+    {
+        return process;
+    }
+
+    //// frees the copies of an import that will not complete.
+    public void abort()
+    {
+        for (int region[] : regions.values())
+            free(region[0]);
+        regions.clear();
+    }
+
+    private void readRegion(final DataInputStream in) throws IOException
+    {
+        int id          = in.readInt();
+        int size        = in.readInt();
+        int region[]    = regions.get(id);
+        if (size < 0)
+            throw new IOException("invalid block size '" + size + "'.");
+
+        if (region == null || region[1] != size)
+        {
+            if (region != null)
+                free(region[0]);
+            regions.remove(id);
+
+            if (size > 0)
+            {
+                try {
+                    region = new int[] { memory.malloc(size), size };
+                } catch (MemoryException e) {
+                    throw new IOException("cannot import a block of '" + size + "' bytes: " + e.getMessage());
+                }
+                regions.put(id, region);
+            }
+        }
+
+        ////rounds may come from another machine, a chunk must lie inside its block.
+        for (int i = in.readInt(); i > 0; i --)
+        {
+            int offset      = in.readInt();
+            int length      = in.readInt();
+            if (region == null || offset < 0 || length < 0 || (long) offset + length > size)
+                throw new IOException("chunk of '" + length + "' bytes at '" + offset + "' outside of a block of '" + size + "' bytes.");
+
+            byte chunk[]    = new byte[length];
+            in.readFully(chunk);
+            memory.setArray(region[0] + offset, chunk, 0, length);
+        }
+    }
+
+    private void readState(final DataInputStream in) throws IOException
+    {
+        int depth           = in.readInt();
+        if (depth < 0 || depth > Stack.FRAME_TABLE_SIZE / 4)
+            throw new IOException("invalid call depth '" + depth + "'.");
+
+        Process process     = Process.read(kernel, in);
+        boolean waiting     = in.readBoolean();
+        long remaining      = waiting ? in.readLong() : 0;
+        int joining         = in.readInt();
+
+        int childCount      = in.readInt();
+        if (childCount < 0 || childCount > kernel.getMaxLiveProcesses())
+            throw new IOException("invalid child count '" + childCount + "'.");
+
+        Process children[]  = new Process[childCount];
+        for (int i = 0; i < children.length; i ++)
+        {
+            int childID     = in.readInt();
+            boolean exited  = in.readBoolean();
+            long exitCode   = in.readLong();
+
+            children[i]     = exited ? Process.exited(kernel, childID, exitCode) : resolve(childID);
+            if (children[i] == null)
+                throw new IOException("running child '" + Long.toHexString(childID) + "' cannot be reached from this kernel.");
+        }
+
+        ////frames popped since the previous round.
+        Iterator<Map.Entry<Integer, int[]>> iterator = regions.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            Map.Entry<Integer, int[]> region = iterator.next();
+            if (region.getKey() >= ProcessCheckpoint.FRAMES + depth)
+            {
+                free(region.getValue()[0]);
+                iterator.remove();
+            }
+        }
+
+        int frames[] = new int[depth];
+        for (int i = 0; i < depth; i ++)
+            frames[i] = address(ProcessCheckpoint.FRAMES + i);
+
+        int processID;
+        try {
+            processID = kernel.allocateProcessID();
+        } catch (MemoryException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        process.relocate(processID, address(ProcessCheckpoint.PROGRAM), address(ProcessCheckpoint.HEAP), address(ProcessCheckpoint.STACK), address(ProcessCheckpoint.FRAME_TABLE), frames);
+        if (waiting)
+            process.setWaitTimer(kernel.getTimerService().scheduleAfter(remaining, process::expire));
+        if (joining >= 0)
+            process.setJoining(resolve(joining));
+        for (Process child : children)
+            process.addChild(child);
+
+        this.process = process;
+        kernel.adoptProcess(process);
+    }
+
+    private Process resolve(int processID)
+    {
+        return resolver == null ? null : resolver.apply(processID);
+    }
+
+    private int address(int id)
+    {
+        int region[] = regions.get(id);
+        return region == null ? 0 : region[0];
+    }
+
+    private void free(int address)
+    {
+        try {
+            memory.delete(address);
+        } catch (MemoryException e) {
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.riverssen.veras;
+
+//// Resource limits of a process, checked at every quantum boundary.
+//// A process may overshoot a limit by at most one quantum before it is enforced.
+public final class ProcessQuota {
+    public static final long            UNLIMITED   = Long.MAX_VALUE;
+    public static final ProcessQuota    NONE        = new ProcessQuota(UNLIMITED, UNLIMITED, UNLIMITED, Action.KILL);
+
+    //// what happens to a process over its quota.
+    public enum Action {
+        //// the process is hung, it runs again once it is woken under a raised quota.
+        DESCHEDULE,
+        //// the process (and its children) halts with exit code -1.
+        KILL
+    }
+
+    private final long      maxBytes;
+    private final long      maxInstructions;
+    private final long      maxWallNanos;
+    private final Action    action;
+
+    //// maxBytes: live heap and stack bytes, maxInstructions: instructions retired,
+    //// maxWallNanos: time spent on a core. UNLIMITED disables a limit.
+    public ProcessQuota(long maxBytes, long maxInstructions, long maxWallNanos, final Action action)
+    {
+        if (maxBytes <= 0 || maxInstructions <= 0 || maxWallNanos <= 0)
+            throw new IllegalArgumentException("quota limits must be positive.");
+
+        this.maxBytes           = maxBytes;
+        this.maxInstructions    = maxInstructions;
+        this.maxWallNanos       = maxWallNanos;
+        this.action             = action;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getMaxInstructions()
+    {
+        return maxInstructions;
+    }
+
+    public long getMaxWallNanos()
+    {
+        return maxWallNanos;
+    }
+
+    public Action getAction()
+    {
+        return action;
+    }
+
+    //// true if the process is over any of the limits.
+    public boolean exceeded(final Process process)
+    {
+        return  process.getInstructionsRetired() > maxInstructions ||
+                process.getWallTime() > maxWallNanos ||
+                process.getLiveBytes() > maxBytes;
+    }
+}
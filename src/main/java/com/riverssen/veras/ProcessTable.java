@@ -0,0 +1,263 @@
+package com.riverssen.veras;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+//// Fixed capacity process table indexed by pid.
+////
+//// A pid is (generation << SLOT_BITS) | slot, the generation is bumped every time
+//// a slot is recycled so a stale pid never resolves to the slot's next owner.
+//// Lookups are a single array read (wait-free), free slots are kept on a
+//// lock-free (treiber) stack whose head carries an ABA tag in its upper 32 bits.
+public class ProcessTable {
+    public static final int     SLOT_BITS       = 16;
+    public static final int     MAX_CAPACITY    = 1 << SLOT_BITS;
+    private static final int    SLOT_MASK       = MAX_CAPACITY - 1;
+    private static final int    GENERATION_MASK = 0x7FFF;
+    private static final int    EMPTY           = -1;
+
+    private final AtomicReferenceArray<Process> slots;
+    private final int                           generations[];
+    private final int                           next[];
+    private final AtomicLong                    freeHead;
+    private final AtomicInteger                 reserved;
+
+    public ProcessTable(int capacity)
+    {
+        if (capacity <= 0 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("process table capacity must be in (0, " + MAX_CAPACITY + "].");
+
+        this.slots          = new AtomicReferenceArray<>(capacity);
+        this.generations    = new int[capacity];
+        this.next           = new int[capacity];
+
+        for (int i = 0; i < capacity; i ++)
+            next[i] = i + 1 < capacity ? i + 1 : EMPTY;
+
+        this.freeHead       = new AtomicLong(pack(0, 0));
+        this.reserved       = new AtomicInteger(0);
+    }
+
+    //// restores the slot generations written by write(), the table starts empty.
+    //// processes are then installed under their old pids and rebuildFreeList() is called.
+    ProcessTable(final DataInputStream in) throws IOException
+    {
+        this(in.readInt());
+
+        for (int i = 0; i < generations.length; i ++)
+            generations[i] = in.readInt();
+    }
+
+    //// generations are kept so pids handed out after a restore never repeat old ones.
+    void write(final DataOutputStream out) throws IOException
+    {
+        out.writeInt(generations.length);
+        for (int generation : generations)
+            out.writeInt(generation);
+    }
+
+    //// links every empty slot into the free stack.
+    //// only safe while the table is not shared yet.
+    void rebuildFreeList()
+    {
+        int head = EMPTY;
+        int used = 0;
+        for (int i = slots.length() - 1; i >= 0; i --)
+        {
+            if (slots.get(i) != null)
+            {
+                used ++;
+                continue;
+            }
+
+            next[i] = head;
+            head    = i;
+        }
+
+        freeHead.set(pack(head, tag(freeHead.get()) + 1));
+        reserved.set(used);
+    }
+
+    //// the installed processes, a weakly consistent view.
+    public List<Process> processes()
+    {
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < slots.length(); i ++)
+        {
+            Process process = slots.get(i);
+            if (process != null)
+                processes.add(process);
+        }
+
+        return processes;
+    }
+
+    public int capacity()
+    {
+        return slots.length();
+    }
+
+    //// reserves a slot and returns its pid.
+    //// returns -1 if the table is full.
+    public int allocate()
+    {
+        int slot = pop();
+        if (slot == EMPTY)
+            return -1;
+        reserved.incrementAndGet();
+
+        //// the slot is exclusively ours until it is pushed back.
+        int generation = (generations[slot] + 1) & GENERATION_MASK;
+        generations[slot] = generation;
+
+        return (generation << SLOT_BITS) | slot;
+    }
+
+    //// reserves pids.length slots at once, popped off the free stack with one CAS.
+    //// returns false (reserving nothing) if the table cannot hold them all.
+    public boolean allocate(int pids[])
+    {
+        if (pids.length == 0)
+            return true;
+
+        while (true)
+        {
+            long head   = freeHead.get();
+            int slot    = slot(head);
+            int i       = 0;
+
+            ////the walk is only trusted if the head (and its tag) did not change meanwhile.
+            while (i < pids.length && slot != EMPTY)
+            {
+                pids[i ++]  = slot;
+                slot        = next[slot];
+            }
+
+            if (i < pids.length)
+            {
+                if (freeHead.get() == head)
+                    return false;
+                continue;
+            }
+
+            if (freeHead.compareAndSet(head, pack(slot, tag(head) + 1)))
+                break;
+        }
+
+        for (int i = 0; i < pids.length; i ++)
+        {
+            int slot        = pids[i];
+            int generation  = (generations[slot] + 1) & GENERATION_MASK;
+            generations[slot] = generation;
+            pids[i]         = (generation << SLOT_BITS) | slot;
+        }
+
+        reserved.addAndGet(pids.length);
+        return true;
+    }
+
+    //// publishes a process under a pid previously returned by allocate().
+    public void install(int pid, Process process)
+    {
+        slots.set(pid & SLOT_MASK, process);
+    }
+
+    //// wait-free lookup.
+    //// returns null if the pid is free or belongs to an older generation.
+    public Process get(int pid)
+    {
+        if (pid < 0)
+            return null;
+
+        int slot = pid & SLOT_MASK;
+        if (slot >= slots.length())
+            return null;
+
+        Process process = slots.get(slot);
+        if (process == null || process.getProcessID() != pid)
+            return null;
+
+        return process;
+    }
+
+    //// removes the process and recycles its slot.
+    //// returns false if the pid was already released.
+    public boolean release(int pid, Process process)
+    {
+        if (!slots.compareAndSet(pid & SLOT_MASK, process, null))
+            return false;
+
+        push(pid & SLOT_MASK);
+        reserved.decrementAndGet();
+        return true;
+    }
+
+    //// returns an allocated pid whose process could not be constructed.
+    public void abandon(int pid)
+    {
+        push(pid & SLOT_MASK);
+        reserved.decrementAndGet();
+    }
+
+    //// pids currently allocated, constant time unlike size().
+    public int reserved()
+    {
+        return reserved.get();
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (int i = 0; i < slots.length(); i ++)
+            size += slots.get(i) == null ? 0 : 1;
+
+        return size;
+    }
+
+    private int pop()
+    {
+        while (true)
+        {
+            long head   = freeHead.get();
+            int slot    = slot(head);
+            if (slot == EMPTY)
+                return EMPTY;
+
+            if (freeHead.compareAndSet(head, pack(next[slot], tag(head) + 1)))
+                return slot;
+        }
+    }
+
+    private void push(int slot)
+    {
+        while (true)
+        {
+            long head   = freeHead.get();
+            next[slot]  = slot(head);
+
+            if (freeHead.compareAndSet(head, pack(slot, tag(head) + 1)))
+                return;
+        }
+    }
+
+    private static long pack(int slot, int tag)
+    {
+        return ((long) tag << 32) | (slot & 0xFFFFFFFFL);
+    }
+
+    private static int slot(long head)
+    {
+        return (int) head;
+    }
+
+    private static int tag(long head)
+    {
+        return (int) (head >>> 32);
+    }
+}
@@ -0,0 +1,27 @@
+package com.riverssen.veras;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//// Thread factory for ExecutionMode.VIRTUAL.
+//// This is the java 8 fallback, it hands out daemon platform threads.
+//// The multi-release jar replaces it with a virtual thread version on java 21+
+//// (see src/main/java21).
+public class ProcessThreads {
+    public static boolean isVirtual()
+    {
+        return false;
+    }
+
+    public static ExecutorService newExecutor(final int carriers)
+    {
+        final AtomicInteger count = new AtomicInteger(0);
+
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "veras-process-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
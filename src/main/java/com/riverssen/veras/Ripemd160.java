@@ -0,0 +1,104 @@
+package com.riverssen.veras;
+
+//// RIPEMD-160, which the JDK does not provide.
+public final class Ripemd160 {
+    public static final int     DIGEST_SIZE = 20;
+
+    private static final int    R[] = {
+             0,  1,  2,  3,  4,  5,  6,  7,  8,  9, 10, 11, 12, 13, 14, 15,
+             7,  4, 13,  1, 10,  6, 15,  3, 12,  0,  9,  5,  2, 14, 11,  8,
+             3, 10, 14,  4,  9, 15,  8,  1,  2,  7,  0,  6, 13, 11,  5, 12,
+             1,  9, 11, 10,  0,  8, 12,  4, 13,  3,  7, 15, 14,  5,  6,  2,
+             4,  0,  5,  9,  7, 12,  2, 10, 14,  1,  3,  8, 11,  6, 15, 13 };
+    private static final int    RP[] = {
+             5, 14,  7,  0,  9,  2, 11,  4, 13,  6, 15,  8,  1, 10,  3, 12,
+             6, 11,  3,  7,  0, 13,  5, 10, 14, 15,  8, 12,  4,  9,  1,  2,
+            15,  5,  1,  3,  7, 14,  6,  9, 11,  8, 12,  2, 10,  0,  4, 13,
+             8,  6,  4,  1,  3, 11, 15,  0,  5, 12,  2, 13,  9,  7, 10, 14,
+            12, 15, 10,  4,  1,  5,  8,  7,  6,  2, 13, 14,  0,  3,  9, 11 };
+    private static final int    S[] = {
+            11, 14, 15, 12,  5,  8,  7,  9, 11, 13, 14, 15,  6,  7,  9,  8,
+             7,  6,  8, 13, 11,  9,  7, 15,  7, 12, 15,  9, 11,  7, 13, 12,
+            11, 13,  6,  7, 14,  9, 13, 15, 14,  8, 13,  6,  5, 12,  7,  5,
+            11, 12, 14, 15, 14, 15,  9,  8,  9, 14,  5,  6,  8,  6,  5, 12,
+             9, 15,  5, 11,  6,  8, 13, 12,  5, 12, 13, 14, 11,  8,  5,  6 };
+    private static final int    SP[] = {
+             8,  9,  9, 11, 13, 15, 15,  5,  7,  7,  8, 11, 14, 14, 12,  6,
+             9, 13, 15,  7, 12,  8,  9, 11,  7,  7, 12,  7,  6, 15, 13, 11,
+             9,  7, 15, 11,  8,  6,  6, 14, 12, 13,  5, 14, 13, 13,  7,  5,
+            15,  5,  8, 11, 14, 14,  6, 14,  6,  9, 12,  9, 12,  5, 15,  8,
+             8,  5, 12,  9, 12,  5, 14,  6,  8, 13,  6,  5, 15, 13, 11, 11 };
+    private static final int    K[]     = { 0x00000000, 0x5A827999, 0x6ED9EBA1, 0x8F1BBCDC, 0xA953FD4E };
+    private static final int    KP[]    = { 0x50A28BE6, 0x5C4DD124, 0x6D703EF3, 0x7A6D76E9, 0x00000000 };
+
+    private Ripemd160()
+    {
+    }
+
+    public static byte[] digest(final byte data[])
+    {
+        int h[] = { 0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0 };
+
+        ////padded as MD4: a one bit, zeros, and the bit length little endian.
+        int blocks  = (data.length + 8) / 64 + 1;
+        byte padded[] = new byte[blocks * 64];
+        System.arraycopy(data, 0, padded, 0, data.length);
+        padded[data.length] = (byte) 0x80;
+        long bits = (long) data.length * 8;
+        for (int i = 0; i < 8; i ++)
+            padded[padded.length - 8 + i] = (byte) (bits >>> (8 * i));
+
+        int x[] = new int[16];
+        for (int block = 0; block < blocks; block ++)
+        {
+            for (int i = 0; i < 16; i ++)
+            {
+                int offset = block * 64 + i * 4;
+                x[i] = (padded[offset] & 0xFF) | (padded[offset + 1] & 0xFF) << 8 | (padded[offset + 2] & 0xFF) << 16 | (padded[offset + 3] & 0xFF) << 24;
+            }
+
+            compress(h, x);
+        }
+
+        byte digest[] = new byte[DIGEST_SIZE];
+        for (int i = 0; i < DIGEST_SIZE; i ++)
+            digest[i] = (byte) (h[i / 4] >>> (8 * (i % 4)));
+        return digest;
+    }
+
+    private static void compress(final int h[], final int x[])
+    {
+        int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4];
+        int ap = a, bp = b, cp = c, dp = d, ep = e;
+
+        for (int j = 0; j < 80; j ++)
+        {
+            int round   = j / 16;
+            int t       = Integer.rotateLeft(a + f(j, b, c, d) + x[R[j]] + K[round], S[j]) + e;
+            a = e; e = d; d = Integer.rotateLeft(c, 10); c = b; b = t;
+
+            t           = Integer.rotateLeft(ap + f(79 - j, bp, cp, dp) + x[RP[j]] + KP[round], SP[j]) + ep;
+            ap = ep; ep = dp; dp = Integer.rotateLeft(cp, 10); cp = bp; bp = t;
+        }
+
+        int t   = h[1] + c + dp;
+        h[1]    = h[2] + d + ep;
+        h[2]    = h[3] + e + ap;
+        h[3]    = h[4] + a + bp;
+        h[4]    = h[0] + b + cp;
+        h[0]    = t;
+    }
+
+    private static int f(int j, int x, int y, int z)
+    {
+        if (j < 16)
+            return x ^ y ^ z;
+        if (j < 32)
+            return (x & y) | (~x & z);
+        if (j < 48)
+            return (x | ~y) ^ z;
+        if (j < 64)
+            return (x & z) | (y & ~z);
+        return x ^ (y | ~z);
+    }
+}
@@ -0,0 +1,188 @@
+package com.riverssen.veras;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+//// Worker threads shared by any number of kernels (tenants).
+////
+//// Every worker repeatedly picks the tenant with the lowest pass among those with a
+//// runnable process and dispatches one quantum on one of its cores. A tenant's pass
+//// grows by the instructions it retired divided by its shares (stride scheduling),
+//// so busy tenants split the CPU in proportion to their shares and an idle tenant
+//// costs nothing. Workers park when no tenant has work and are unparked when a
+//// process becomes runnable.
+public class SchedulerPool {
+    public static final int         DEFAULT_SHARES  = 100;
+    private static final long       STRIDE          = 1L << 20;
+    private static final long       IDLE_PARK       = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final List<Tenant>      tenants;
+    private final Queue<Thread>     idle;
+    private final Thread            workers[];
+    private final AtomicBoolean     running;
+    private long                    virtualTime;
+
+    public SchedulerPool(int threads)
+    {
+        this.tenants    = new CopyOnWriteArrayList<>();
+        this.idle       = new ConcurrentLinkedQueue<>();
+        this.workers    = new Thread[threads];
+        this.running    = new AtomicBoolean(true);
+
+        for (int i = 0; i < threads; i ++)
+        {
+            workers[i] = new Thread(this::work, "veras-scheduler-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public SchedulerPool()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getThreads()
+    {
+        return workers.length;
+    }
+
+    public int getTenants()
+    {
+        return tenants.size();
+    }
+
+    //// adds a kernel, it is dispatched in proportion to its shares.
+    public synchronized void register(final KernelImpl kernel, int shares)
+    {
+        if (shares <= 0)
+            throw new IllegalArgumentException("shares must be positive.");
+
+        tenants.add(new Tenant(kernel, shares, virtualTime));
+        signal();
+    }
+
+    public void unregister(final KernelImpl kernel)
+    {
+        for (Tenant tenant : tenants)
+            if (tenant.kernel == kernel)
+                tenants.remove(tenant);
+    }
+
+    //// stops the workers and waits for them to exit.
+    public void shutdown()
+    {
+        running.set(false);
+        for (Thread worker : workers)
+            LockSupport.unpark(worker);
+
+        for (Thread worker : workers)
+        {
+            if (worker == Thread.currentThread())
+                continue;
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public boolean isShutdown()
+    {
+        return !running.get();
+    }
+
+    //// a process became runnable, wakes one parked worker.
+    public void signal()
+    {
+        Thread worker = idle.poll();
+        if (worker != null)
+            LockSupport.unpark(worker);
+    }
+
+    private void work()
+    {
+        while (running.get())
+        {
+            Tenant tenant = next();
+            if (tenant != null)
+            {
+                long retired = tenant.kernel.dispatch();
+                charge(tenant, retired < 0 ? 0 : retired);
+                ////its runnable cores are all taken by other workers.
+                if (retired < 0)
+                    Thread.yield();
+                continue;
+            }
+
+            ////register before the last check so a signal in between is not lost.
+            Thread self = Thread.currentThread();
+            idle.add(self);
+            if (hasWork() || !running.get())
+            {
+                idle.remove(self);
+                continue;
+            }
+
+            LockSupport.parkNanos(this, IDLE_PARK);
+            idle.remove(self);
+        }
+    }
+
+    private boolean hasWork()
+    {
+        for (Tenant tenant : tenants)
+            if (tenant.kernel.hasRunnable())
+                return true;
+        return false;
+    }
+
+    private synchronized Tenant next()
+    {
+        Tenant next = null;
+        for (Tenant tenant : tenants)
+        {
+            if (!tenant.kernel.hasRunnable())
+                continue;
+
+            ////a tenant coming back from idle does not get to spend the time it missed.
+            if (tenant.pass < virtualTime)
+                tenant.pass = virtualTime;
+            if (next == null || tenant.pass < next.pass)
+                next = tenant;
+        }
+
+        ////charged up front, so concurrent workers spread over the tenants.
+        if (next != null)
+        {
+            virtualTime = next.pass;
+            next.pass  += STRIDE / next.shares;
+        }
+        return next;
+    }
+
+    private synchronized void charge(final Tenant tenant, long retired)
+    {
+        tenant.pass += retired * STRIDE / tenant.shares;
+    }
+
+    private static final class Tenant {
+        private final KernelImpl    kernel;
+        private final int           shares;
+        private long                pass;
+
+        private Tenant(final KernelImpl kernel, int shares, long pass)
+        {
+            this.kernel = kernel;
+            this.shares = shares;
+            this.pass   = pass;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.riverssen.veras;
+
+//// Latency class of a process.
+//// Each SharedProcess keeps one run queue per class and always dispatches the most
+//// urgent non-empty queue, so a runnable REALTIME process waits at most one quantum
+//// of whatever is running. The quantum of a class is a percentage of the core budget.
+public enum SchedulingClass {
+    REALTIME(2),
+    INTERACTIVE(10),
+    BATCH(50);
+
+    private final int quantum;
+
+    SchedulingClass(int quantum)
+    {
+        this.quantum = quantum;
+    }
+
+    //// instructions per dispatch for a process of the given priority (10 is the default).
+    public int quantum(int budget, int priority)
+    {
+        return (int) Math.max(1, ((long) budget * quantum * priority) / 1000);
+    }
+}
@@ -1,21 +1,57 @@
 package com.riverssen.veras;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
+//// A scheduler core, multiplexes its processes on one thread.
+////
+//// Runnable processes wait in one run queue per SchedulingClass. Every dispatch takes
+//// the head of the most urgent non-empty queue and runs it for its class quantum,
+//// REALTIME is served strictly first, BATCH gets one quantum after every
+//// INTERACTIVE_BURST interactive quanta so it is never starved. Hung processes are
+//// parked and only re-enter a run queue when they are woken.
 public class SharedProcess implements Runnable, Comparable<SharedProcess> {
-    private final Kernel        kernel;
-    private AtomicInteger       priority;
-    private final Set<Process>  processes;
-    private AtomicBoolean       active;
+    private static final SchedulingClass    CLASSES[]           = SchedulingClass.values();
+    private static final int                INTERACTIVE_BURST   = 4;
+
+    private final Kernel                kernel;
+    private AtomicInteger               priority;
+    private final Set<Process>          processes;
+    private final Set<Process>          parked;
+    private final Queue<Process>        runQueues[];
+    private final LatencyHistogram      latencies[];
+    private AtomicBoolean               active;
+    private final ReentrantLock         dispatch;
+    private volatile Runnable           wakeup;
+    private int                         burst;
 
     public SharedProcess(final Kernel kernel)
     {
         this.kernel     = kernel;
         this.priority   = new AtomicInteger(8);
         this.active     = new AtomicBoolean(true);
-        this.processes  = Collections.synchronizedSet(new LinkedHashSet<>());
+        this.dispatch   = new ReentrantLock();
+        this.processes  = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        this.parked     = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        this.runQueues  = newRunQueues();
+        this.latencies  = new LatencyHistogram[CLASSES.length];
+
+        for (int i = 0; i < CLASSES.length; i ++)
+            latencies[i] = new LatencyHistogram();
+    }
+
+    ////generic arrays cannot be created, every element is a Queue<Process>.
+    @SuppressWarnings("unchecked")
+    private static Queue<Process>[] newRunQueues()
+    {
+        Queue<Process> runQueues[] = (Queue<Process>[]) new Queue<?>[CLASSES.length];
+        for (int i = 0; i < runQueues.length; i ++)
+            runQueues[i] = new ConcurrentLinkedQueue<>();
+        return runQueues;
     }
 
     protected void setPriority(int priority)
@@ -33,6 +69,49 @@ public class SharedProcess implements Runnable, Comparable<SharedProcess> {
         active.set(true);
     }
 
+    //// stops dispatching, returns once the quantum in flight (if any) finished.
+    protected void pause()
+    {
+        dispatch.lock();
+        try {
+            hang();
+        } finally {
+            dispatch.unlock();
+        }
+    }
+
+    //// called whenever a process enters a run queue (a SchedulerPool waits on it).
+    protected void setWakeup(Runnable wakeup)
+    {
+        this.wakeup = wakeup;
+    }
+
+    //// true if a process waits in a run queue.
+    protected boolean hasRunnable()
+    {
+        if (!active.get())
+            return false;
+
+        for (Queue<Process> runQueue : runQueues)
+            if (!runQueue.isEmpty())
+                return true;
+        return false;
+    }
+
+    //// dispatches a quantum unless another thread is dispatching on this core.
+    //// returns the instructions retired, or -1 if nothing ran.
+    protected long tryRunOnce()
+    {
+        if (!active.get() || !dispatch.tryLock())
+            return -1;
+
+        try {
+            return active.get() ? runOnce() : -1;
+        } finally {
+            dispatch.unlock();
+        }
+    }
+
     protected boolean awake()
     {
         return active.get();
@@ -55,54 +134,122 @@ public class SharedProcess implements Runnable, Comparable<SharedProcess> {
         return getActiveProcesses() == 0;
     }
 
+    //// dispatch latencies (enqueue to dispatch) of this core for one class.
+    protected LatencyHistogram getLatencies(SchedulingClass schedulingClass)
+    {
+        return latencies[schedulingClass.ordinal()];
+    }
+
     protected void haltProcess(final Process process)
     {
         this.processes.remove(process);
+        this.parked.remove(process);
     }
 
-    public void run()
+    //// takes a hung process out of the run queues, it is no longer dispatched.
+    protected synchronized void park(final Process process)
     {
-        while (kernel.getKeepAlive())
+        if (process.isIdle() && processes.contains(process))
+            parked.add(process);
+    }
+
+    //// puts a woken process back into its run queue.
+    protected synchronized void unpark(final Process process)
+    {
+        if (!process.isIdle() && parked.remove(process))
+            enqueue(process);
+    }
+
+    private void enqueue(final Process process)
+    {
+        if (!process.markQueued())
+            return;
+
+        runQueues[process.getSchedulingClass().ordinal()].add(process);
+
+        Runnable wakeup = this.wakeup;
+        if (wakeup != null)
+            wakeup.run();
+    }
+
+    private Queue<Process> nextQueue()
+    {
+        Queue<Process> realtime     = runQueues[SchedulingClass.REALTIME.ordinal()];
+        Queue<Process> interactive  = runQueues[SchedulingClass.INTERACTIVE.ordinal()];
+        Queue<Process> batch        = runQueues[SchedulingClass.BATCH.ordinal()];
+
+        if (!realtime.isEmpty())
+            return realtime;
+
+        if (!interactive.isEmpty() && (burst < INTERACTIVE_BURST || batch.isEmpty()))
         {
-            if (active.get() && processes.size() > 0)
-            {
-                Iterator<Process> iterator = processes.iterator();
+            burst ++;
+            return interactive;
+        }
 
-                Queue<Process> prioritized = new PriorityQueue<>();
+        burst = 0;
+        return batch;
+    }
 
-                while (iterator.hasNext())
-                {
-                    final Process process = iterator.next();
-                    if (process.isIdle())
-                        process.catchUp();
-                    else
-                        prioritized.add(process);
-                }
+    //// dispatches a single quantum.
+    //// returns the number of instructions retired, or -1 if nothing was runnable.
+    protected long runOnce()
+    {
+        final Process process = nextQueue().poll();
+        if (process == null)
+            return -1;
 
-                int maxIterations   = priority.get();
+        process.clearQueued();
+        if (process.halted() || !processes.contains(process))
+            return 0;
 
-                iterator = prioritized.iterator();
-                int iterations      = maxIterations;
+        if (process.isIdle())
+        {
+            park(process);
+            ////it may have been woken before it was parked.
+            unpark(process);
+            return 0;
+        }
 
-                while (iterator.hasNext() && iterations > 0)
-                {
-                    final Process process = iterator.next();
-                    int cycles = Math.min(((maxIterations * process.getPriority()) / 100), iterations);
+        SchedulingClass schedulingClass = process.getSchedulingClass();
+        latencies[schedulingClass.ordinal()].record(System.nanoTime() - process.getEnqueuedAt());
 
-                    process.execute(cycles);
+        long retired = process.getInstructionsRetired();
+        process.execute(schedulingClass.quantum(priority.get(), process.getPriority()));
+        retired = process.getInstructionsRetired() - retired;
 
-                    iterations -= cycles;
-                }
-            }
+        if (process.isIdle())
+        {
+            park(process);
+            unpark(process);
+        }
+        else if (!process.halted())
+            enqueue(process);
+
+        return retired;
+    }
+
+    public void run()
+    {
+        while (kernel.getKeepAlive())
+        {
+            if (tryRunOnce() < 0)
+                Thread.yield();
         }
     }
 
     public void halt() {
         hang();
         Iterator<Process> iterator = processes.iterator();
+        while (iterator.hasNext())
+            iterator.next().haltAll();
+        iterator = parked.iterator();
         while (iterator.hasNext())
             iterator.next().haltAll();
         processes.clear();
+        parked.clear();
+        for (Queue<Process> runQueue : runQueues)
+            runQueue.clear();
     }
 
     @Override
@@ -114,6 +261,9 @@ public class SharedProcess implements Runnable, Comparable<SharedProcess> {
 
     public void executeProcess(final Process process)
     {
+        process.setCore(this);
         this.processes.add(process);
+        this.parked.add(process);
+        unpark(process);
     }
 }
@@ -0,0 +1,110 @@
+package com.riverssen.veras;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+//// Single producer, single consumer ring buffer.
+//// Each side owns one index and only caches the other. Indices are published with a volatile
+//// store (not lazySet) so a waiter registering on the other side can never miss a wakeup.
+public class SpscChannel extends Channel {
+    private final long          buffer[];
+    private final int           mask;
+    private final AtomicLong    head;
+    private final AtomicLong    tail;
+    private long                cachedHead;
+    private long                cachedTail;
+
+    public SpscChannel(final int id, final int capacity)
+    {
+        super(id);
+        this.buffer = new long[capacityOf(capacity)];
+        this.mask   = buffer.length - 1;
+        this.head   = new AtomicLong(0);
+        this.tail   = new AtomicLong(0);
+    }
+
+    @Override
+    public int getKind()
+    {
+        return SPSC;
+    }
+
+    @Override
+    public int capacity()
+    {
+        return buffer.length;
+    }
+
+    @Override
+    protected boolean enqueue(long value)
+    {
+        long t = tail.get();
+        if (t - cachedHead >= buffer.length)
+        {
+            cachedHead = head.get();
+            if (t - cachedHead >= buffer.length)
+                return false;
+        }
+
+        buffer[(int) t & mask] = value;
+        tail.set(t + 1);
+        return true;
+    }
+
+    @Override
+    protected int enqueue(long src[], int offset, int length)
+    {
+        long t = tail.get();
+        cachedHead = head.get();
+
+        int count = (int) Math.min(length, buffer.length - (t - cachedHead));
+        for (int i = 0; i < count; i ++)
+            buffer[(int) (t + i) & mask] = src[offset + i];
+
+        if (count > 0)
+            tail.set(t + count);
+        return count;
+    }
+
+    @Override
+    protected boolean dequeue(long dst[], int index)
+    {
+        long h = head.get();
+        if (h >= cachedTail)
+        {
+            cachedTail = tail.get();
+            if (h >= cachedTail)
+                return false;
+        }
+
+        dst[index] = buffer[(int) h & mask];
+        head.set(h + 1);
+        return true;
+    }
+
+    @Override
+    protected int dequeue(long dst[], int offset, int length)
+    {
+        long h = head.get();
+        cachedTail = tail.get();
+
+        int count = (int) Math.min(length, cachedTail - h);
+        for (int i = 0; i < count; i ++)
+            dst[offset + i] = buffer[(int) (h + i) & mask];
+
+        if (count > 0)
+            head.set(h + count);
+        return count;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return head.get() >= tail.get();
+    }
+
+    @Override
+    public boolean isFull()
+    {
+        return tail.get() - head.get() >= buffer.length;
+    }
+}
@@ -2,7 +2,16 @@ package com.riverssen.veras;
 
 import com.riverssen.veras.exceptions.MemoryException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 public class Stack {
+    //// bytes of a function frame: the return address and 32 registers.
+    public static final int                 FRAME_SIZE = 4 + 256;
+    public static final int                 DEFAULT_SIZE = 1024 * 12;
+    public static final int                 FRAME_TABLE_SIZE = 1024;
+
     private int                             maxUsed;
     private int                             used;
     private int                             heap;
@@ -10,15 +19,44 @@ public class Stack {
     private final Kernel                    kernel;
     private int                             index;
     private int                             funcindex;
+    private long                            allocations;
 
     public Stack(final Kernel kernel) throws MemoryException {
-        this(kernel, 1024 * 12);
+        this(kernel, DEFAULT_SIZE);
     }
 
     public Stack(final Kernel kernel, final int size) throws MemoryException {
         this.kernel     = kernel;
         this.heap       = kernel.getMemoryBlock().malloc(size);
-        this.funcheap   = kernel.getMemoryBlock().malloc(1024);
+        this.funcheap   = kernel.getMemoryBlock().malloc(FRAME_TABLE_SIZE);
+    }
+
+    //// a stack on blocks already allocated by the caller.
+    Stack(final Kernel kernel, final int heap, final int funcheap) {
+        this.kernel     = kernel;
+        this.heap       = heap;
+        this.funcheap   = funcheap;
+    }
+
+    //// restores a stack written by write(), its memory is already in the block.
+    Stack(final Kernel kernel, final DataInputStream in) throws IOException {
+        this.kernel     = kernel;
+        this.heap       = in.readInt();
+        this.funcheap   = in.readInt();
+        this.index      = in.readInt();
+        this.funcindex  = in.readInt();
+        this.maxUsed    = in.readInt();
+        this.allocations= in.readLong();
+        this.used       = usage();
+    }
+
+    void write(final DataOutputStream out) throws IOException {
+        out.writeInt(heap);
+        out.writeInt(funcheap);
+        out.writeInt(index);
+        out.writeInt(funcindex);
+        out.writeInt(maxUsed);
+        out.writeLong(allocations);
     }
 
     public void resize(int size)
@@ -54,10 +92,13 @@ public class Stack {
     }
 
     public void pushstack(int funcaddr) throws MemoryException {
-        int function = kernel.getMemoryBlock().malloc(4 + 256);
+        int function = kernel.getMemoryBlock().malloc(FRAME_SIZE);
         kernel.getMemoryBlock().setInt(function, funcaddr);
-        kernel.getMemoryBlock().setLong(funcheap + funcindex, function);
+        kernel.getMemoryBlock().setInt(funcheap + funcindex, function);
         funcindex += 4;
+        allocations ++;
+        kernel.getAccounting().allocated(FRAME_SIZE);
+        account();
 //        if (funcindex >= (sizeOf() - 32))
 //            resize(256);
     }
@@ -68,11 +109,12 @@ public class Stack {
         int funcaddr    = kernel.getMemoryBlock().getInt(function);
 
         kernel.getMemoryBlock().delete(function);
+        account();
         return funcaddr;
     }
 
     public int peekstack() throws MemoryException {
-        int function    = kernel.getMemoryBlock().getInt(funcheap + funcindex);
+        int function    = kernel.getMemoryBlock().getInt(funcheap + funcindex - 4);
         return function;
     }
 
@@ -80,6 +122,7 @@ public class Stack {
     {
         kernel.getMemoryBlock().setLong(heap + index, v);
         index += 8;
+        account();
 
         if (index >= (sizeOf() - 32))
             resize(256);
@@ -88,6 +131,7 @@ public class Stack {
     public long pop()
     {
         index -= 8;
+        used  -= 8;
         if (sizeOf() > (index + 512))
             downsize(256);
 
@@ -99,7 +143,76 @@ public class Stack {
         return kernel.getMemoryBlock().getLong(heap + (index - 8));
     }
 
+    //// bytes of values and frames currently on the stack.
+    public int getUsed()
+    {
+        return used;
+    }
+
+    //// the most bytes ever on the stack at once.
+    public int getMaxUsed()
+    {
+        return maxUsed;
+    }
+
+    //// function frames allocated so far.
+    public long getAllocations()
+    {
+        return allocations;
+    }
+
+    private int usage()
+    {
+        return index + (funcindex / 4) * FRAME_SIZE;
+    }
+
+    private void account()
+    {
+        used    = usage();
+        if (used > maxUsed)
+            maxUsed = used;
+    }
+
+    //// number of words on the stack.
+    public int size()
+    {
+        return index / 8;
+    }
+
+    //// number of function frames pushed with pushstack().
+    public int depth()
+    {
+        return funcindex / 4;
+    }
+
+    //// address of the value stack in the memory block.
+    int getAddress() {
+        return heap;
+    }
+
+    //// address of the frame table in the memory block.
+    int getFrameTable() {
+        return funcheap;
+    }
+
+    //// address of the i'th frame pushed with pushstack().
+    int getFrame(int i) {
+        return kernel.getMemoryBlock().getInt(funcheap + i * 4);
+    }
+
+    //// points the stack at copies of its blocks, frames[i] replaces getFrame(i).
+    void relocate(int heap, int funcheap, int frames[]) {
+        this.heap       = heap;
+        this.funcheap   = funcheap;
+        for (int i = 0; i < frames.length; i ++)
+            kernel.getMemoryBlock().setInt(funcheap + i * 4, frames[i]);
+    }
+
+    //// frees the value stack, the frame table and the frames still pushed.
     public void delete() throws MemoryException {
+        for (int i = 0; i < depth(); i ++)
+            kernel.getMemoryBlock().delete(getFrame(i));
+        kernel.getMemoryBlock().delete(funcheap);
         kernel.getMemoryBlock().delete(heap);
     }
 }
@@ -1,6 +1,7 @@
 package com.riverssen.veras;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface StorageBlock {
     boolean             createBlock(byte key[]);
@@ -9,4 +10,13 @@ public interface StorageBlock {
     CellInputStream     openInputStream(byte key[]) throws IOException;
     CellOutputStream    openOutputStream(byte key[]) throws IOException;
     boolean             reachable(byte key[]);
+    long                size();
+    //// the contents of the cell as a read-only buffer, memory mapped when it is large.
+    //// returns null if there is no such cell or it is being written.
+    ByteBuffer          mapCell(byte key[]) throws IOException;
+    //// replaces the contents of the cell with the remaining bytes of the buffers in one
+    //// gather write. returns false if there is no such cell or it is in use.
+    boolean             writeCell(byte key[], ByteBuffer srcs[]) throws IOException;
+    //// makes every write that returned durable.
+    void                sync() throws IOException;
 }
@@ -1,135 +1,447 @@
 package com.riverssen.veras;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 ////// This implementation does not take size restraints into consideration.
 //////
+////// Every cell is a file in the storage directory named by its hex encoded key, the
+////// keys are kept in a persistent StorageIndex (storage.index) so lookups compare key
+////// contents and survive a restart.
 //////
+////// Cells are multi-versioned. A version is an immutable file (key.version, version 0
+////// is the bare key), the index holds the version that is current. Readers read the
+////// version that was current when they opened, any number at once. A writer writes a
+////// new version, it becomes current atomically when the writer closes (the last one to
+////// close wins). A version's file is deleted once it is not current and its last
+////// reader closed, versions left behind by a crash are deleted on startup.
+//////
+////// Like the index, the cells and version numbers of a directory are shared by every
+////// StorageBlockImpl on it in this JVM, versions are only collected by the first one.
 public class StorageBlockImpl implements StorageBlock {
-    private final Map<byte[], Cell> addressMap;
+    public static final String      INDEX = "storage.index";
+    //// smaller cells are read, mapping them costs more than the copy.
+    public static final int         MAP_THRESHOLD = 64 * 1024;
+    private static final Pattern    VERSION_FILE = Pattern.compile("([0-9A-F]+)(?:\\.([0-9]+))?");
+    private static final ConcurrentMap<String, Shared> open = new ConcurrentHashMap<>();
+
+    private final FileService       directory;
+    private final StorageIndex      index;
+    private final ConcurrentMap<String, Cell> cells;
+    private final AtomicLong        versions;
+    ////versions made current since the last sync.
+    private final Set<File>         unsynced;
+    private final long              size;
 
-    public StorageBlockImpl(long size)
+    public StorageBlockImpl(FileService directory, long size) throws IOException
     {
-        this.addressMap = Collections.synchronizedMap(new LinkedHashMap<>());
+        Shared shared   = open.computeIfAbsent(directory.file().getCanonicalPath(), path -> new Shared());
+
+        this.directory  = directory;
+        this.index      = StorageIndex.open(directory.newFile(INDEX).file());
+        this.cells      = shared.cells;
+        this.versions   = shared.versions;
+        this.unsynced   = shared.unsynced;
+        this.size       = size;
+
+        synchronized (shared) {
+            if (!shared.collected)
+                collect();
+            shared.collected = true;
+        }
     }
 
-    @Override
-    public boolean createBlock(byte[] key) {
-        if (addressMap.containsKey(key))
-        return false;
+    public long size()
+    {
+        return size;
+    }
 
-        addressMap.put(key, new Cell(Base16.encode(key), 0));
+    public FileService getDirectory()
+    {
+        return directory;
+    }
 
-        return true;
+    public StorageIndex getIndex()
+    {
+        return index;
+    }
+
+    //// reopens the storage written by write(), its index is read from disk.
+    StorageBlockImpl(DataInputStream in) throws IOException
+    {
+        this(new FileService(in.readUTF()), in.readLong());
+    }
+
+    //// the storage is not part of a kernel image, only where it lives.
+    void write(DataOutputStream out) throws IOException
+    {
+        out.writeUTF(directory.file().getPath());
+        out.writeLong(size);
+        index.force();
+    }
+
+    @Override
+    public boolean createBlock(byte[] key) {
+        try {
+            ////a new cell never shares a version with a deleted one still being read.
+            return index.putIfAbsent(key, versions.incrementAndGet(), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
     public boolean blockExists(byte[] key) {
-        return addressMap.containsKey(key);
+        return index.contains(key);
     }
 
+    //// readers of the cell keep reading the version they opened.
     @Override
     public boolean deleteBlock(byte[] key) throws IOException {
-        if (addressMap.containsKey(key))
-            return addressMap.get(key).delete();
-        return false;
+        Cell cell = cell(key);
+        return cell != null && cell.delete();
     }
 
     @Override
     public CellInputStream openInputStream(byte[] key) throws IOException {
-        if (addressMap.containsKey(key))
-            return addressMap.get(key).read();
-        return null;
+        Cell cell = cell(key);
+        if (cell == null)
+            return null;
+
+        Version version = cell.acquire();
+        if (version == null)
+            return null;
+
+        try {
+            return new CellInputStream(version.open());
+        } catch (IOException e) {
+            version.release();
+            throw e;
+        }
     }
 
     @Override
     public CellOutputStream openOutputStream(byte[] key) throws IOException {
-        if (addressMap.containsKey(key))
-            return addressMap.get(key).write();
-        return null;
+        Cell cell = cell(key);
+        if (cell == null)
+            return null;
+
+        final Version version = new Version(cell, versions.incrementAndGet());
+        return new CellOutputStream(new FileOutputStream(version.file) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed)
+                    return;
+                closed = true;
+
+                super.close();
+                cell.publish(version);
+            }
+        });
     }
 
     @Override
     public boolean reachable(byte[] key) {
-        if (addressMap.containsKey(key))
-            return addressMap.get(key).available();
         return true;
     }
 
-    private final static class Cell {
-        private final String    address;
-        private final long      size;
-        private CellStream      currentStream;
+    @Override
+    public ByteBuffer mapCell(byte[] key) throws IOException {
+        Cell cell = cell(key);
+        if (cell == null)
+            return null;
 
-        public Cell(final String address, final long size) {
-            this.address = address;
-            this.size = size;
-            this.currentStream = null;
+        Version version = cell.acquire();
+        if (version == null)
+            return null;
+
+        ////a mapping stays valid after its version is deleted.
+        try (FileChannel channel = FileChannel.open(version.file.toPath(), StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("cell is too large to map.");
+            if (size >= MAP_THRESHOLD)
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0);
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        } catch (NoSuchFileException e) {
+            ////created but never written.
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        } finally {
+            version.release();
         }
+    }
+
+    @Override
+    public boolean writeCell(byte[] key, ByteBuffer srcs[]) throws IOException {
+        Cell cell = cell(key);
+        if (cell == null)
+            return false;
 
-        private boolean available()
+        long total = 0;
+        for (ByteBuffer src : srcs)
+            total += src.remaining();
+
+        Version version = new Version(cell, versions.incrementAndGet());
+        try (FileChannel channel = FileChannel.open(version.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
         {
-            if (currentStream == null)
-                return true;
-            return !currentStream.isOpen();
+            for (long written = 0; written < total; )
+                written += channel.write(srcs);
+        } catch (IOException e) {
+            version.release();
+            throw e;
         }
 
-        private CellInputStream newInStream() throws IOException {
-            try{
-                CellInputStream stream = new CellInputStream(new FileInputStream(new File(address)));
-                currentStream = stream;
+        return cell.publish(version);
+    }
 
-                return stream;
-            } catch (Exception e)
+    //// forces the versions made current since the last sync, the directory (their names)
+    //// and the index. versions deleted meanwhile are skipped.
+    @Override
+    public void sync() throws IOException {
+        for (File file : unsynced.toArray(new File[0]))
+        {
+            unsynced.remove(file);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
             {
-                throw new IOException("stream could not be opened.");
+                channel.force(false);
+            } catch (NoSuchFileException e) {
             }
         }
 
-        private CellOutputStream newOutStream() throws IOException {
-            try{
-                CellOutputStream stream = new CellOutputStream(new FileOutputStream(new File(address)));
-                currentStream = stream;
+        try (FileChannel channel = FileChannel.open(directory.file().toPath(), StandardOpenOption.READ))
+        {
+            channel.force(true);
+        } catch (IOException e) {
+            ////not every platform opens directories, their entries are written eventually.
+        }
 
-                return stream;
-            } catch (Exception e)
-            {
-                throw new IOException("stream could not be opened.");
-            }
+        index.force();
+    }
+
+    //// the versions of a cell, made on first use. returns null if there is no such cell.
+    private Cell cell(byte key[]) {
+        long location[] = new long[2];
+        while (index.get(key, location))
+        {
+            String name = Base16.encode(key);
+            Cell cell = cells.computeIfAbsent(name, address -> new Cell(this, address, key, location[0]));
+            if (cell.current() != null)
+                return cell;
+
+            ////deleted meanwhile, it may have been created again.
+            cells.remove(name, cell);
         }
 
-        public CellInputStream read() throws IOException {
-            if (!available())
-                return null;
-            return newInStream();
+        return null;
+    }
+
+    //// deletes the versions that are not current, left by writers that did not close or
+    //// a crash, and continues version numbers after the highest one on disk.
+    private void collect() throws IOException
+    {
+        Map<String, Long> current = new HashMap<>();
+        index.forEach((key, version, unused) -> {
+            current.put(Base16.encode(key), version);
+            versions.accumulateAndGet(version, Math::max);
+        });
+
+        File files[] = directory.file().listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files)
+        {
+            Matcher matcher = VERSION_FILE.matcher(file.getName());
+            if (!matcher.matches())
+                continue;
+
+            long version = matcher.group(2) == null ? 0 : Long.parseLong(matcher.group(2));
+            versions.accumulateAndGet(version, Math::max);
+
+            Long live = current.get(matcher.group(1));
+            if (live == null || live != version)
+                file.delete();
+        }
+    }
+
+    private File file(final String name, long version)
+    {
+        return directory.newFile(version == 0 ? name : name + "." + version).file();
+    }
+
+    //// the state of a storage directory, shared by every StorageBlockImpl on it.
+    private final static class Shared {
+        private final ConcurrentMap<String, Cell>   cells;
+        private final AtomicLong                    versions;
+        private final Set<File>                     unsynced;
+        private boolean                             collected;
+
+        private Shared()
+        {
+            this.cells      = new ConcurrentHashMap<>();
+            this.versions   = new AtomicLong(0);
+            this.unsynced   = ConcurrentHashMap.newKeySet();
+        }
+    }
+
+    private final static class Cell {
+        private final StorageBlockImpl  storage;
+        private final String            name;
+        private final byte              key[];
+        private Version                 current;
+
+        private Cell(final StorageBlockImpl storage, final String name, final byte key[], long version)
+        {
+            this.storage    = storage;
+            this.name       = name;
+            this.key        = key.clone();
+            this.current    = new Version(this, version);
+        }
+
+        private synchronized Version current()
+        {
+            return current;
         }
 
-        public CellOutputStream write() throws IOException {
-            if (!available())
+        //// the current version, held until released. returns null if the cell was deleted.
+        private synchronized Version acquire()
+        {
+            if (current == null)
                 return null;
-            return newOutStream();
+
+            current.retain();
+            return current;
         }
 
-        public boolean delete() throws IOException {
-            if (!available())
+        //// makes a written version current. returns false (and drops it) if the cell
+        //// was deleted meanwhile.
+        private boolean publish(final Version version) throws IOException
+        {
+            Version previous;
+            synchronized (this)
             {
-                if (currentStream != null)
-                    currentStream.forceClose();
+                if (current == null)
+                {
+                    version.release();
+                    return false;
+                }
+
+                try {
+                    storage.index.put(key, version.number, 0);
+                } catch (IOException e) {
+                    version.release();
+                    throw e;
+                }
+
+                previous    = current;
+                current     = version;
             }
-            if (available())
+
+            storage.unsynced.add(version.file);
+
+            previous.release();
+            return true;
+        }
+
+        private boolean delete() throws IOException
+        {
+            Version previous;
+            synchronized (this)
             {
-                File file = new File(address);
-                if (file.exists())
-                    return file.delete();
+                if (current == null)
+                    return false;
+
+                storage.index.remove(key);
+                previous    = current;
+                current     = null;
+                storage.cells.remove(name, this);
             }
 
-            return false;
+            previous.release();
+            return true;
+        }
+    }
+
+    //// one immutable file of a cell, deleted when it is neither current nor read.
+    private final static class Version {
+        private final long          number;
+        private final File          file;
+        ////the cell holds a reference while the version is current (or being written).
+        private final AtomicInteger references;
+
+        private Version(final Cell cell, long number)
+        {
+            this.number     = number;
+            this.file       = cell.storage.file(cell.name, number);
+            this.references = new AtomicInteger(1);
+        }
+
+        private void retain()
+        {
+            references.incrementAndGet();
+        }
+
+        private void release()
+        {
+            if (references.decrementAndGet() == 0)
+                file.delete();
+        }
+
+        //// a stream of the version that releases it when closed.
+        private InputStream open() throws IOException
+        {
+            if (!file.exists())
+                return new ByteArrayInputStream(new byte[0]) {
+                    private boolean closed;
+
+                    @Override
+                    public void close() {
+                        if (!closed)
+                            release();
+                        closed = true;
+                    }
+                };
+
+            return new FileInputStream(file) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed)
+                        return;
+                    closed = true;
+
+                    super.close();
+                    release();
+                }
+            };
         }
     }
 }
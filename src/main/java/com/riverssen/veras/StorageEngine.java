@@ -0,0 +1,9 @@
+package com.riverssen.veras;
+
+//// How a kernel keeps its cells on disk.
+public enum StorageEngine {
+    //// one file per cell, StorageBlockImpl.
+    CELLS,
+    //// records appended to segment files, LogStorageBlock.
+    LOG
+}
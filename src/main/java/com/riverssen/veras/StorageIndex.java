@@ -0,0 +1,575 @@
+package com.riverssen.veras;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+//// Persistent hash index of storage keys, kept in a memory-mapped file.
+////
+//// | header | slots | keys |
+////
+//// The slots are an open-addressing (linear probing) table of 32 byte entries:
+//// key hash, key offset, key length and two values owned by the storage engine.
+//// Keys are compared by content, their bytes are appended to the key area and never
+//// overwritten, so a removed key leaves a tombstone until the next rehash.
+////
+//// Lookups are optimistic reads of the mapping (StampedLock), they only fall back to
+//// a read lock if a writer got in between. Writers publish a slot by writing its hash
+//// last. The file is mapped as is at startup.
+////
+//// A counting Bloom filter of the key hashes answers most lookups of absent keys
+//// without touching the mapping. It lives in memory only, it is built from the slot
+//// hashes on startup and on every rehash, sized for the keys the table can hold.
+//// One index exists per file and JVM (open()), a file lock keeps other JVMs out.
+public class StorageIndex {
+    static final long           MAGIC           = 0x5645524153494458L; // "VERASIDX"
+    static final int            VERSION         = 1;
+    private static final int    HEADER_SIZE     = 32;
+    private static final int    SLOT_SIZE       = 32;
+    private static final int    MIN_CAPACITY    = 1024;
+    private static final long   EMPTY           = 0;
+    private static final long   TOMBSTONE       = 1;
+    public static final double  DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private static final Map<String, StorageIndex> open = new ConcurrentHashMap<>();
+
+    private final File                  file;
+    private final StampedLock           lock;
+    private final LongAdder             lookups;
+    private final LongAdder             filtered;
+    private final LongAdder             falsePositives;
+    ////replaced (never changed in place) when it is rebuilt, readers see either one.
+    private volatile CountingBloomFilter filter;
+    private double                      falsePositiveRate;
+    private RandomAccessFile            access;
+    private FileLock                    fileLock;
+    private volatile MappedByteBuffer   map;
+    private int                         count;
+    private int                         tombstones;
+    private long                        keyEnd;
+
+    //// visits every key and its values.
+    public interface Visitor {
+        void visit(byte key[], long value0, long value1) throws IOException;
+    }
+
+    private StorageIndex(final File file) throws IOException
+    {
+        this.file               = file;
+        this.lock               = new StampedLock();
+        this.lookups            = new LongAdder();
+        this.filtered           = new LongAdder();
+        this.falsePositives     = new LongAdder();
+        this.falsePositiveRate  = DEFAULT_FALSE_POSITIVE_RATE;
+
+        if (!file.exists() || file.length() == 0)
+            create(file, MIN_CAPACITY);
+        map(file);
+        rebuildFilter();
+    }
+
+    //// opens (creating it if needed) the index of the file, shared by everyone in this JVM.
+    //// throws exception if the file is not an index or another JVM has it open.
+    public static StorageIndex open(final File file) throws IOException
+    {
+        String path = file.getCanonicalPath();
+        StorageIndex index = open.get(path);
+        if (index != null)
+            return index;
+
+        synchronized (open) {
+            index = open.get(path);
+            if (index == null)
+            {
+                File parent = file.getCanonicalFile().getParentFile();
+                if (parent != null && !parent.exists() && !parent.mkdirs())
+                    throw new IOException("could not create '" + parent + "'.");
+
+                index = new StorageIndex(file.getCanonicalFile());
+                open.put(path, index);
+            }
+            return index;
+        }
+    }
+
+    //// 64 bit hash of the key contents, never EMPTY or TOMBSTONE.
+    public static long hash(final byte key[])
+    {
+        long hash = 0x9E3779B97F4A7C15L ^ (key.length * 0xC2B2AE3D27D4EB4FL);
+        int i = 0;
+        for (; i + 8 <= key.length; i += 8)
+        {
+            long word = 0;
+            for (int b = 7; b >= 0; b --)
+                word = (word << 8) | (key[i + b] & 0xFF);
+            hash ^= mix(word);
+            hash  = Long.rotateLeft(hash, 27) * 0x9E3779B97F4A7C15L + 0x85EBCA77C2B2AE63L;
+        }
+        for (; i < key.length; i ++)
+        {
+            hash ^= (key[i] & 0xFF) * 0x27D4EB2F165667C5L;
+            hash  = Long.rotateLeft(hash, 11) * 0x9E3779B97F4A7C15L;
+        }
+
+        hash = mix(hash);
+        return hash == EMPTY || hash == TOMBSTONE ? hash + 2 : hash;
+    }
+
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    //// lookups of keys, by contains() and get().
+    public long getLookups()
+    {
+        return lookups.sum();
+    }
+
+    //// lookups of absent keys the filter answered on its own.
+    public long getFilteredLookups()
+    {
+        return filtered.sum();
+    }
+
+    //// lookups of absent keys the filter let through to the table.
+    public long getFalsePositives()
+    {
+        return falsePositives.sum();
+    }
+
+    public double getFalsePositiveRate()
+    {
+        long stamp = lock.readLock();
+        try {
+            return falsePositiveRate;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    //// rebuilds the filter for the rate, lower rates cost more memory and hashes.
+    public void setFalsePositiveRate(double falsePositiveRate)
+    {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("invalid false positive rate.");
+
+        long stamp = lock.writeLock();
+        try {
+            this.falsePositiveRate = falsePositiveRate;
+            rebuildFilter();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public CountingBloomFilter getFilter()
+    {
+        return filter;
+    }
+
+    public boolean contains(final byte key[])
+    {
+        return get(key, null);
+    }
+
+    //// copies the two values of the key into values (if not null).
+    //// returns false if the key is not in the index.
+    public boolean get(final byte key[], final long values[])
+    {
+        long hash   = hash(key);
+        lookups.increment();
+        ////a writer adds the hash before it publishes the slot.
+        if (!filter.mightContain(hash))
+        {
+            filtered.increment();
+            return false;
+        }
+
+        long stamp  = lock.tryOptimisticRead();
+        if (stamp != 0)
+        {
+            MappedByteBuffer map = this.map;
+            int slot = find(map, key, hash);
+            long value0 = slot < 0 ? 0 : map.getLong(slotOffset(slot) + 16);
+            long value1 = slot < 0 ? 0 : map.getLong(slotOffset(slot) + 24);
+            if (lock.validate(stamp))
+                return result(slot, value0, value1, values);
+        }
+
+        stamp = lock.readLock();
+        try {
+            int slot = find(map, key, hash);
+            return result(slot, slot < 0 ? 0 : map.getLong(slotOffset(slot) + 16), slot < 0 ? 0 : map.getLong(slotOffset(slot) + 24), values);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    //// returns false (changing nothing) if the key is already in the index.
+    public boolean putIfAbsent(final byte key[], long value0, long value1) throws IOException
+    {
+        return put(key, value0, value1, false);
+    }
+
+    //// adds the key or replaces its values.
+    public void put(final byte key[], long value0, long value1) throws IOException
+    {
+        put(key, value0, value1, true);
+    }
+
+    //// returns false if the key is not in the index.
+    public boolean remove(final byte key[])
+    {
+        long hash   = hash(key);
+        long stamp  = lock.writeLock();
+        try {
+            int slot = find(map, key, hash);
+            if (slot < 0)
+                return false;
+
+            map.putLong(slotOffset(slot), TOMBSTONE);
+            count --;
+            tombstones ++;
+            writeHeader();
+            filter.remove(hash);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size()
+    {
+        long stamp = lock.readLock();
+        try {
+            return count;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    //// visits every key, writers wait until the visit is over.
+    public void forEach(final Visitor visitor) throws IOException
+    {
+        long stamp = lock.readLock();
+        try {
+            for (int slot = 0; slot < capacity(); slot ++)
+            {
+                int offset = slotOffset(slot);
+                long hash   = map.getLong(offset);
+                if (hash == EMPTY || hash == TOMBSTONE)
+                    continue;
+
+                visitor.visit(key(map, slot), map.getLong(offset + 16), map.getLong(offset + 24));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    //// writes the mapped pages back to the file.
+    public void force()
+    {
+        long stamp = lock.readLock();
+        try {
+            map.force();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    private boolean put(final byte key[], long value0, long value1, boolean replace) throws IOException
+    {
+        long hash   = hash(key);
+        long stamp  = lock.writeLock();
+        try {
+            int slot = find(map, key, hash);
+            if (slot >= 0)
+            {
+                if (!replace)
+                    return false;
+
+                map.putLong(slotOffset(slot) + 16, value0);
+                map.putLong(slotOffset(slot) + 24, value1);
+                return true;
+            }
+
+            int capacity = capacity();
+            if ((count + tombstones + 1) * 10L > capacity * 7L)
+                rehash(count + 1 > capacity / 2 ? capacity * 2 : capacity);
+            capacity = capacity();
+            if (keyEnd + key.length > map.capacity())
+                grow(keyEnd + key.length);
+
+            long keyOffset = keyEnd;
+            for (int i = 0; i < key.length; i ++)
+                map.put((int) keyOffset + i, key[i]);
+            keyEnd += key.length;
+
+            slot = (int) (hash & (capacity - 1));
+            while (true)
+            {
+                long current = map.getLong(slotOffset(slot));
+                if (current == EMPTY || current == TOMBSTONE)
+                {
+                    if (current == TOMBSTONE)
+                        tombstones --;
+                    break;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+
+            filter.add(hash);
+            int offset = slotOffset(slot);
+            map.putInt(offset + 8, (int) keyOffset);
+            map.putInt(offset + 12, key.length);
+            map.putLong(offset + 16, value0);
+            map.putLong(offset + 24, value1);
+            map.putLong(offset, hash);
+            count ++;
+            writeHeader();
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    //// returns the slot of the key, or -1.
+    //// safe on a mapping that is being written, a torn entry just does not match.
+    private static int find(final MappedByteBuffer map, final byte key[], long hash)
+    {
+        int capacity = map.getInt(12);
+        int slot = (int) (hash & (capacity - 1));
+        for (int probe = 0; probe < capacity; probe ++)
+        {
+            int offset      = slotOffset(slot);
+            long current    = map.getLong(offset);
+            if (current == EMPTY)
+                return -1;
+
+            if (current == hash && matches(map, slot, key))
+                return slot;
+
+            slot = (slot + 1) & (capacity - 1);
+        }
+
+        return -1;
+    }
+
+    private static boolean matches(final MappedByteBuffer map, int slot, final byte key[])
+    {
+        int offset      = slotOffset(slot);
+        int keyOffset   = map.getInt(offset + 8);
+        int keyLength   = map.getInt(offset + 12);
+        if (keyLength != key.length || keyOffset < 0 || keyOffset + keyLength > map.capacity())
+            return false;
+
+        for (int i = 0; i < keyLength; i ++)
+            if (map.get(keyOffset + i) != key[i])
+                return false;
+        return true;
+    }
+
+    private static byte[] key(final MappedByteBuffer map, int slot)
+    {
+        int offset  = slotOffset(slot);
+        byte key[]  = new byte[map.getInt(offset + 12)];
+        int start   = map.getInt(offset + 8);
+        for (int i = 0; i < key.length; i ++)
+            key[i] = map.get(start + i);
+        return key;
+    }
+
+    private boolean result(int slot, long value0, long value1, final long values[])
+    {
+        if (slot < 0)
+        {
+            falsePositives.increment();
+            return false;
+        }
+
+        if (values != null)
+        {
+            values[0] = value0;
+            values[1] = value1;
+        }
+        return true;
+    }
+
+    private static int slotOffset(int slot)
+    {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    //// slots of the current mapping, a power of two.
+    private int capacity()
+    {
+        return map.getInt(12);
+    }
+
+    private void writeHeader()
+    {
+        map.putInt(16, count);
+        map.putInt(20, tombstones);
+        map.putLong(24, keyEnd);
+    }
+
+    //// writes an empty index of the capacity (a power of two) to the file.
+    private static void create(final File file, int capacity) throws IOException
+    {
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw"))
+        {
+            long keys = slotOffset(capacity);
+            access.setLength(keys + capacity * 16L);
+            access.seek(0);
+            access.writeLong(MAGIC);
+            access.writeInt(VERSION);
+            access.writeInt(capacity);
+            access.writeInt(0);
+            access.writeInt(0);
+            access.writeLong(keys);
+        }
+    }
+
+    private void map(final File file) throws IOException
+    {
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        FileLock fileLock;
+        try {
+            fileLock = access.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        }
+
+        if (fileLock == null)
+        {
+            access.close();
+            throw new IOException("storage index '" + file + "' is in use by another process.");
+        }
+
+        MappedByteBuffer map = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, access.length());
+        if (map.getLong(0) != MAGIC || map.getInt(8) != VERSION)
+        {
+            fileLock.release();
+            access.close();
+            throw new IOException("'" + file + "' is not a storage index.");
+        }
+
+        if (this.access != null)
+        {
+            this.fileLock.release();
+            this.access.close();
+        }
+
+        this.access     = access;
+        this.fileLock   = fileLock;
+        this.count      = map.getInt(16);
+        this.tombstones = map.getInt(20);
+        this.keyEnd     = map.getLong(24);
+        this.map        = map;
+    }
+
+    //// extends the key area, write lock held.
+    private void grow(long needed) throws IOException
+    {
+        long length = Math.max(needed, map.capacity() * 2L);
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("storage index '" + file + "' is full.");
+
+        access.setLength(length);
+        MappedByteBuffer map = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        this.map = map;
+    }
+
+    //// copies the live keys into a new index of the capacity and swaps it in,
+    //// dropping the tombstones. write lock held.
+    private void rehash(int capacity) throws IOException
+    {
+        File temporary = new File(file.getPath() + ".tmp");
+        create(temporary, capacity);
+
+        try (RandomAccessFile target = new RandomAccessFile(temporary, "rw"))
+        {
+            int previous  = capacity();
+            long keyBytes = keyEnd - slotOffset(previous);
+            long keys     = slotOffset(capacity);
+            target.setLength(Math.max(target.length(), keys + keyBytes + capacity * 16L));
+
+            MappedByteBuffer next = target.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, target.length());
+            long keyEnd = keys;
+            for (int slot = 0; slot < previous; slot ++)
+            {
+                int offset  = slotOffset(slot);
+                long hash   = map.getLong(offset);
+                if (hash == EMPTY || hash == TOMBSTONE)
+                    continue;
+
+                byte key[] = key(map, slot);
+                for (int i = 0; i < key.length; i ++)
+                    next.put((int) keyEnd + i, key[i]);
+
+                int targetSlot = (int) (hash & (capacity - 1));
+                while (next.getLong(slotOffset(targetSlot)) != EMPTY)
+                    targetSlot = (targetSlot + 1) & (capacity - 1);
+
+                int to = slotOffset(targetSlot);
+                next.putLong(to, hash);
+                next.putInt(to + 8, (int) keyEnd);
+                next.putInt(to + 12, key.length);
+                next.putLong(to + 16, map.getLong(offset + 16));
+                next.putLong(to + 24, map.getLong(offset + 24));
+                keyEnd += key.length;
+            }
+
+            next.putInt(16, count);
+            next.putInt(20, 0);
+            next.putLong(24, keyEnd);
+            next.force();
+        }
+
+        ////the new file replaces the old one, the lock moves with it.
+        fileLock.release();
+        access.close();
+        access = null;
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(file);
+        rebuildFilter();
+    }
+
+    //// a filter of the keys in the table, for as many keys as it holds before a rehash.
+    //// write lock held (or not yet shared).
+    private void rebuildFilter()
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(Math.max(count, capacity() * 7L / 10), falsePositiveRate);
+        for (int slot = 0; slot < capacity(); slot ++)
+        {
+            long hash = map.getLong(slotOffset(slot));
+            if (hash != EMPTY && hash != TOMBSTONE)
+                filter.add(hash);
+        }
+
+        this.filter = filter;
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.riverssen.veras;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+//// Kernel clock and timers.
+//// Time is counted in milliseconds since the kernel booted, a dedicated daemon
+//// thread turns the TimingWheel once per millisecond.
+//// A virtual service has no thread, its clock only moves when advanceTo() is called
+//// (ExecutionMode.DETERMINISTIC).
+public class TimerService implements Runnable {
+    private final long          origin;
+    private final TimingWheel   wheel;
+    private final AtomicBoolean running;
+    private final boolean       virtual;
+    private volatile long       virtualNow;
+    private Thread              thread;
+
+    public TimerService()
+    {
+        this(false);
+    }
+
+    public TimerService(boolean virtual)
+    {
+        this(virtual, 0);
+    }
+
+    //// a service whose clock starts at start (a restored kernel keeps its time).
+    public TimerService(boolean virtual, long start)
+    {
+        this.origin     = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(start);
+        this.wheel      = new TimingWheel(start);
+        this.running    = new AtomicBoolean(false);
+        this.virtual    = virtual;
+        this.virtualNow = start;
+    }
+
+    public void start()
+    {
+        if (virtual || !running.compareAndSet(false, true))
+            return;
+
+        thread = new Thread(this, "veras-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop()
+    {
+        running.set(false);
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    //// milliseconds since the kernel booted.
+    public long now()
+    {
+        if (virtual)
+            return virtualNow;
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+    }
+
+    public TimingWheel.Timer schedule(long deadline, Runnable task)
+    {
+        return wheel.schedule(deadline, task);
+    }
+
+    public TimingWheel.Timer scheduleAfter(long delay, Runnable task)
+    {
+        return wheel.schedule(now() + delay, task);
+    }
+
+    //// moves a virtual clock forward and fires every timer due by then.
+    public void advanceTo(long now)
+    {
+        if (!virtual)
+            throw new IllegalStateException("the clock of a real time timer service cannot be moved.");
+
+        if (now > virtualNow)
+            virtualNow = now;
+        wheel.advance(virtualNow);
+    }
+
+    //// the earliest deadline of an armed timer, Long.MAX_VALUE if there is none.
+    public long nextDeadline()
+    {
+        if (!virtual)
+            throw new IllegalStateException("only the clock of a virtual timer service can be skipped ahead.");
+
+        return wheel.nextDeadline();
+    }
+
+    //// number of armed timers.
+    public int pending()
+    {
+        return wheel.size();
+    }
+
+    public void run()
+    {
+        while (running.get())
+        {
+            wheel.advance(now());
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+}
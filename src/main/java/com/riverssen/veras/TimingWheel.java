@@ -0,0 +1,184 @@
+package com.riverssen.veras;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//// Hierarchical timing wheel (LEVELS wheels of SLOTS slots each).
+////
+//// A timer due within SLOTS ticks sits in the slot of its deadline on level 0, later
+//// timers sit on the coarser levels and are cascaded down as the wheel turns.
+//// Scheduling and cancelling are O(1) and lock-free (new timers are queued and
+//// picked up by advance()), advance() must only be called from one thread.
+public class TimingWheel {
+    private static final int    LEVELS      = 4;
+    private static final int    SLOT_BITS   = 6;
+    private static final int    SLOTS       = 1 << SLOT_BITS;
+    private static final int    MASK        = SLOTS - 1;
+    private static final long   SPAN        = 1L << (SLOT_BITS * LEVELS);
+
+    private final List<Timer>   wheel[][];
+    private final Queue<Timer>  pending;
+    private final AtomicInteger size;
+    private long                current;
+
+    ////generic arrays cannot be created, every slot is a List<Timer>.
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long start)
+    {
+        List<Timer> wheel[][] = (List<Timer>[][]) new List<?>[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level ++)
+            for (int slot = 0; slot < SLOTS; slot ++)
+                wheel[level][slot] = new ArrayList<>();
+
+        this.wheel      = wheel;
+        this.pending    = new ConcurrentLinkedQueue<>();
+        this.size       = new AtomicInteger(0);
+        this.current    = start;
+    }
+
+    //// runs the task on the ticking thread once the wheel reaches the deadline.
+    public Timer schedule(long deadline, Runnable task)
+    {
+        Timer timer = new Timer(deadline, task, size);
+        size.incrementAndGet();
+        pending.add(timer);
+        return timer;
+    }
+
+    //// number of timers that neither fired nor were cancelled.
+    public int size()
+    {
+        return size.get();
+    }
+
+    //// fires every timer due up to and including the tick now.
+    public void advance(long now)
+    {
+        Timer timer;
+        while ((timer = pending.poll()) != null)
+            place(timer);
+
+        while (current <= now)
+        {
+            int index = (int) (current & MASK);
+
+            //// level 0 wrapped, pull the next slot of each coarser level down.
+            for (int level = 1; index == 0 && level < LEVELS; level ++)
+            {
+                index = (int) ((current >> (SLOT_BITS * level)) & MASK);
+                cascade(level, index);
+            }
+
+            List<Timer> due = wheel[0][(int) (current & MASK)];
+            for (int i = 0; i < due.size(); i ++)
+                due.get(i).fire();
+            due.clear();
+
+            current ++;
+        }
+    }
+
+    //// the earliest deadline of a live timer, Long.MAX_VALUE if none is armed.
+    //// like advance() it must only be called from the ticking thread, timers already
+    //// overdue fire on the way.
+    public long nextDeadline()
+    {
+        Timer timer;
+        while ((timer = pending.poll()) != null)
+            place(timer);
+
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level ++)
+            for (int slot = 0; slot < SLOTS; slot ++)
+                for (Timer armed : wheel[level][slot])
+                    if (!armed.isCancelled())
+                        next = Math.min(next, armed.deadline);
+
+        return next;
+    }
+
+    //// the next tick advance() will process.
+    public long getCurrent()
+    {
+        return current;
+    }
+
+    private void cascade(int level, int slot)
+    {
+        List<Timer> timers = wheel[level][slot];
+        wheel[level][slot] = new ArrayList<>();
+
+        for (int i = 0; i < timers.size(); i ++)
+            place(timers.get(i));
+    }
+
+    private void place(Timer timer)
+    {
+        if (timer.isCancelled())
+            return;
+
+        long delta = timer.deadline - current;
+        if (delta < 0)
+        {
+            timer.fire();
+            return;
+        }
+
+        //// beyond the span, park it on the last level until it comes into range.
+        long deadline = delta >= SPAN ? current + SPAN - 1 : timer.deadline;
+
+        int level = 0;
+        while (level < LEVELS - 1 && (deadline - current) >= (1L << (SLOT_BITS * (level + 1))))
+            level ++;
+
+        wheel[level][(int) ((deadline >> (SLOT_BITS * level)) & MASK)].add(timer);
+    }
+
+    public static class Timer {
+        private final long          deadline;
+        private final Runnable      task;
+        private final AtomicBoolean cancelled;
+        private final AtomicInteger size;
+
+        private Timer(long deadline, Runnable task, AtomicInteger size)
+        {
+            this.deadline   = deadline;
+            this.task       = task;
+            this.cancelled  = new AtomicBoolean(false);
+            this.size       = size;
+        }
+
+        public long getDeadline()
+        {
+            return deadline;
+        }
+
+        //// returns false if the timer already fired or was cancelled.
+        public boolean cancel()
+        {
+            if (!cancelled.compareAndSet(false, true))
+                return false;
+
+            size.decrementAndGet();
+            return true;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled.get();
+        }
+
+        private void fire()
+        {
+            if (!cancelled.compareAndSet(false, true))
+                return;
+
+            size.decrementAndGet();
+            task.run();
+        }
+    }
+}
@@ -2,7 +2,6 @@ package com.riverssen.veras;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterOutputStream;
 
@@ -51,29 +50,11 @@ public class Utils {
 
     public static byte[] sha256(byte data[])
     {
-        try
-        {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256", "BC");
-            byte[] hash = digest.digest(data);
-            return hash;
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        return Digests.sha256(data);
     }
 
     public static byte[] sha512(byte data[]) {
-        try
-        {
-            MessageDigest digest = MessageDigest.getInstance("SHA-512", "BC");
-            byte[] hash = digest.digest(data);
-            return hash;
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        return Digests.sha512(data);
     }
 
     public static byte[] sha256d(byte data[])
@@ -87,16 +68,7 @@ public class Utils {
 
     public static byte[] ripemd160(byte data[])
     {
-        try
-        {
-            MessageDigest digest = MessageDigest.getInstance("RIPEMD160", "BC");
-            byte[] hash = digest.digest(data);
-            return hash;
-        }
-        catch (Exception e)
-        {
-            return null;
-        }
+        return Ripemd160.digest(data);
     }
 
     public static short makeShort(byte b1, byte b0) {
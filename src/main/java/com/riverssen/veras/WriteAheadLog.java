@@ -0,0 +1,499 @@
+package com.riverssen.veras;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+////// Write-ahead log in front of a storage engine.
+//////
+////// While logging, a write is appended to the log as a record
+////// | type | key length | value length | crc | key | value |, made durable, and only then
+////// applied to the engine, so a write that returned survives a crash. Writers do not
+////// force the log each: the first one waiting becomes the leader, waits the commit
+////// latency for others to append, and forces everything appended so far at once
+////// (group commit). Writes of one key are applied in the order they were logged.
+//////
+////// On startup the records of the log are replayed into the engine (a torn record at the
+////// end is cut off). Once the log is larger than LOG_LIMIT, or on sync(), the engine is
+////// made durable and the log is emptied.
+//////
+////// While not logging, writes go to the engine as they are.
+public class WriteAheadLog implements StorageBlock {
+    public static final String      FILE                = "storage.wal";
+    public static final long        LOG_LIMIT           = 64L * 1024 * 1024;
+    //// microseconds a leader waits for other writers before it forces the log.
+    public static final long        DEFAULT_COMMIT_LATENCY = 200;
+    private static final int        HEADER_SIZE         = 13;
+    private static final byte       CREATE              = 1;
+    private static final byte       WRITE               = 2;
+    private static final byte       DELETE              = 3;
+    private static final int        STRIPES             = 64;
+
+    private final StorageBlock              engine;
+    private final File                      file;
+    private final FileChannel               channel;
+    ////writers hold it shared from appending a record until it is applied, a checkpoint
+    ////holds it exclusively so every logged record is in the engine when the log is emptied.
+    private final ReentrantReadWriteLock    checkpoint;
+    private final ReentrantLock             append;
+    private final Object                    commit;
+    private final Object                    stripes[];
+    private final LongAdder                 records;
+    private final LongAdder                 commits;
+    private final LongAdder                 checkpoints;
+    private volatile boolean                logging;
+    private volatile long                   commitLatency;
+    private volatile long                   appended;
+    private long                            durable;
+    private boolean                         forcing;
+
+    //// replays the log into the engine.
+    public WriteAheadLog(final StorageBlock engine, final File file) throws IOException
+    {
+        this.engine         = engine;
+        this.file           = file;
+        this.channel        = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.checkpoint     = new ReentrantReadWriteLock();
+        this.append         = new ReentrantLock();
+        this.commit         = new Object();
+        this.stripes        = new Object[STRIPES];
+        this.records        = new LongAdder();
+        this.commits        = new LongAdder();
+        this.checkpoints    = new LongAdder();
+        this.commitLatency  = DEFAULT_COMMIT_LATENCY;
+
+        for (int stripe = 0; stripe < STRIPES; stripe ++)
+            stripes[stripe] = new Object();
+
+        try {
+            replay();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public StorageBlock getEngine()
+    {
+        return engine;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public boolean isLogging()
+    {
+        return logging;
+    }
+
+    //// starts or stops logging writes. either way the engine is made durable first and the
+    //// log emptied, records of a log that is not read anymore never replay over newer writes.
+    public void setLogging(boolean logging) throws IOException
+    {
+        checkpoint.writeLock().lock();
+        try {
+            truncate();
+            this.logging = logging;
+        } finally {
+            checkpoint.writeLock().unlock();
+        }
+    }
+
+    public long getCommitLatency()
+    {
+        return commitLatency;
+    }
+
+    //// longer latencies commit more writers at once, each of them waits longer.
+    public void setCommitLatency(long microseconds)
+    {
+        if (microseconds < 0)
+            throw new IllegalArgumentException("invalid commit latency.");
+
+        this.commitLatency = microseconds;
+    }
+
+    //// records appended to the log.
+    public long getRecords()
+    {
+        return records.sum();
+    }
+
+    //// times the log was forced, every one commits a group of records.
+    public long getCommits()
+    {
+        return commits.sum();
+    }
+
+    public long getCheckpoints()
+    {
+        return checkpoints.sum();
+    }
+
+    //// bytes of the log on disk.
+    public long getLogBytes()
+    {
+        return appended;
+    }
+
+    //// makes the engine durable and empties the log.
+    @Override
+    public void sync() throws IOException
+    {
+        checkpoint.writeLock().lock();
+        try {
+            truncate();
+        } finally {
+            checkpoint.writeLock().unlock();
+        }
+    }
+
+    //// the log is emptied, nothing is left to replay.
+    public void close() throws IOException
+    {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public long size() {
+        return engine.size();
+    }
+
+    @Override
+    public boolean createBlock(byte[] key) {
+        checkpoint.readLock().lock();
+        try {
+            if (!logging)
+                return engine.createBlock(key);
+
+            synchronized (stripe(key))
+            {
+                if (engine.blockExists(key))
+                    return false;
+
+                commit(log(CREATE, key, null));
+                return engine.createBlock(key);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            checkpoint.readLock().unlock();
+            checkpointIfFull();
+        }
+    }
+
+    @Override
+    public boolean blockExists(byte[] key) {
+        return engine.blockExists(key);
+    }
+
+    @Override
+    public boolean deleteBlock(byte[] key) throws IOException {
+        checkpoint.readLock().lock();
+        try {
+            if (!logging)
+                return engine.deleteBlock(key);
+
+            synchronized (stripe(key))
+            {
+                if (!engine.blockExists(key))
+                    return false;
+
+                commit(log(DELETE, key, null));
+                return engine.deleteBlock(key);
+            }
+        } finally {
+            checkpoint.readLock().unlock();
+            checkpointIfFull();
+        }
+    }
+
+    @Override
+    public CellInputStream openInputStream(byte[] key) throws IOException {
+        return engine.openInputStream(key);
+    }
+
+    //// while logging the cell is written in memory and logged when the stream is closed.
+    @Override
+    public CellOutputStream openOutputStream(byte[] key) throws IOException {
+        if (!logging)
+            return engine.openOutputStream(key);
+        if (!engine.blockExists(key))
+            return null;
+
+        return new CellOutputStream(new ByteArrayOutputStream() {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed)
+                    return;
+                closed = true;
+
+                writeCell(key, new ByteBuffer[] { ByteBuffer.wrap(buf, 0, count) });
+            }
+        });
+    }
+
+    @Override
+    public boolean reachable(byte[] key) {
+        return engine.reachable(key);
+    }
+
+    @Override
+    public ByteBuffer mapCell(byte[] key) throws IOException {
+        return engine.mapCell(key);
+    }
+
+    @Override
+    public boolean writeCell(byte[] key, ByteBuffer srcs[]) throws IOException {
+        checkpoint.readLock().lock();
+        try {
+            if (!logging)
+                return engine.writeCell(key, srcs);
+
+            synchronized (stripe(key))
+            {
+                if (!engine.blockExists(key))
+                    return false;
+
+                ByteBuffer record   = record(WRITE, key, srcs);
+                ByteBuffer value    = record.duplicate();
+                value.position(HEADER_SIZE + key.length);
+
+                commit(log(record));
+                return engine.writeCell(key, new ByteBuffer[] { value });
+            }
+        } finally {
+            checkpoint.readLock().unlock();
+            checkpointIfFull();
+        }
+    }
+
+    //// writes of a key are logged and applied holding its stripe.
+    private Object stripe(final byte key[])
+    {
+        return stripes[(Arrays.hashCode(key) & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    private long log(byte type, final byte key[], final ByteBuffer srcs[]) throws IOException
+    {
+        return log(record(type, key, srcs));
+    }
+
+    //// appends a record, returns the position of the log it ends at.
+    private long log(final ByteBuffer record) throws IOException
+    {
+        append.lock();
+        try {
+            long position = appended;
+            while (record.hasRemaining())
+                position += channel.write(record, position);
+
+            appended = position;
+            records.increment();
+            return position;
+        } finally {
+            append.unlock();
+        }
+    }
+
+    //// returns once the log is forced up to the position. the first writer to wait forces
+    //// it for everyone appended meanwhile, the others wait for it.
+    private void commit(long position) throws IOException
+    {
+        synchronized (commit)
+        {
+            while (true)
+            {
+                if (durable >= position)
+                    return;
+                if (!forcing)
+                    break;
+
+                try {
+                    commit.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted waiting for the log to commit.");
+                }
+            }
+
+            forcing = true;
+        }
+
+        long latency = commitLatency;
+        if (latency > 0)
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(latency));
+
+        long target = appended;
+        IOException failed = null;
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            failed = e;
+        }
+
+        synchronized (commit)
+        {
+            forcing = false;
+            if (failed == null)
+            {
+                durable = Math.max(durable, target);
+                commits.increment();
+            }
+            commit.notifyAll();
+        }
+
+        if (failed != null)
+            throw failed;
+    }
+
+    private void checkpointIfFull()
+    {
+        if (appended < LOG_LIMIT)
+            return;
+
+        ////writers arriving meanwhile wait for it, the log cannot outgrow a steady stream of them.
+        checkpoint.writeLock().lock();
+        try {
+            if (appended >= LOG_LIMIT)
+                truncate();
+        } catch (IOException e) {
+            ////the log is kept and replayed, the next write tries again.
+        } finally {
+            checkpoint.writeLock().unlock();
+        }
+    }
+
+    //// no writer is between logging and applying a record. write lock held.
+    private void truncate() throws IOException
+    {
+        engine.sync();
+        if (appended == 0 && channel.size() == 0)
+            return;
+
+        append.lock();
+        try {
+            channel.truncate(0);
+            channel.force(true);
+            appended = 0;
+        } finally {
+            append.unlock();
+        }
+
+        synchronized (commit)
+        {
+            durable = 0;
+        }
+        checkpoints.increment();
+    }
+
+    //// applies every whole record of the log to the engine, then empties it.
+    private void replay() throws IOException
+    {
+        long position   = 0;
+        long length     = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= length)
+        {
+            header.clear();
+            read(header, position);
+            header.flip();
+
+            byte type       = header.get();
+            int keyLength   = header.getInt();
+            int valueLength = header.getInt();
+            int crc         = header.getInt();
+            if (type < CREATE || type > DELETE || keyLength < 0 || valueLength < 0 || position + HEADER_SIZE + keyLength + valueLength > length)
+                break;
+
+            ByteBuffer body = ByteBuffer.allocate(keyLength + valueLength);
+            read(body, position + HEADER_SIZE);
+            body.flip();
+
+            CRC32 checksum = new CRC32();
+            checksum.update(type);
+            checksum.update(body.duplicate());
+            if ((int) checksum.getValue() != crc)
+                break;
+
+            byte key[] = new byte[keyLength];
+            body.get(key);
+            if (type == CREATE)
+                engine.createBlock(key);
+            else if (type == DELETE)
+                engine.deleteBlock(key);
+            else
+            {
+                ////written before the cell's create record was emptied from the log.
+                engine.createBlock(key);
+                engine.writeCell(key, new ByteBuffer[] { body });
+            }
+
+            position += HEADER_SIZE + keyLength + valueLength;
+        }
+
+        appended = length;
+        truncate();
+    }
+
+    private void read(final ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException();
+            position += read;
+        }
+    }
+
+    private static ByteBuffer record(byte type, final byte key[], final ByteBuffer srcs[])
+    {
+        long length = 0;
+        if (srcs != null)
+            for (ByteBuffer src : srcs)
+                length += src.remaining();
+        if (length > Integer.MAX_VALUE - HEADER_SIZE - key.length)
+            throw new IllegalArgumentException("cell is too large to log.");
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + (int) length);
+        record.position(HEADER_SIZE);
+        record.put(key);
+        if (srcs != null)
+            for (ByteBuffer src : srcs)
+                record.put(src);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(type);
+        record.position(HEADER_SIZE);
+        checksum.update(record);
+
+        record.clear();
+        record.put(type);
+        record.putInt(key.length);
+        record.putInt((int) length);
+        record.putInt((int) checksum.getValue());
+        record.clear();
+        return record;
+    }
+}
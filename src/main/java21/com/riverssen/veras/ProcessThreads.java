@@ -0,0 +1,25 @@
+package com.riverssen.veras;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//// Thread factory for ExecutionMode.VIRTUAL (java 21+ version).
+//// Every process gets its own virtual thread, the carrier pool is sized to the cores
+//// unless the host already configured jdk.virtualThreadScheduler.parallelism.
+public class ProcessThreads {
+    private static final String PARALLELISM = "jdk.virtualThreadScheduler.parallelism";
+
+    public static boolean isVirtual()
+    {
+        return true;
+    }
+
+    public static ExecutorService newExecutor(final int carriers)
+    {
+        //// only honoured before the first virtual thread is created.
+        if (System.getProperty(PARALLELISM) == null)
+            System.setProperty(PARALLELISM, Integer.toString(carriers));
+
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("veras-process-", 0).factory());
+    }
+}
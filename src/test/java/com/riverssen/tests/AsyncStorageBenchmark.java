@@ -0,0 +1,85 @@
+package com.riverssen.tests;
+
+import com.riverssen.veras.*;
+import com.riverssen.veras.Process;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.riverssen.veras.KernelImpl.*;
+
+public class AsyncStorageBenchmark {
+    public static void main(String args[]) throws Throwable {
+        System.out.println("compute instructions/s with no loaders:       " + run(0, OP_LDCELL));
+        System.out.println("compute instructions/s with 32 sync loaders:  " + run(32, OP_LDCELL));
+        System.out.println("compute instructions/s with 32 async loaders: " + run(32, OP_ALDCELL));
+        System.exit(0);
+    }
+
+    /** Counts the instructions 16 compute loops retire in a second next to loaders that each spend 100ms per read. */
+    private static long run(int loaders, byte load) throws Throwable {
+        FileService directory = new FileService("benchmark/async/" + loaders + "-" + load);
+        directory.makeDirectories();
+        KernelImpl kernel = new KernelImpl(directory, 1024*1024*64, 500, 10000, ExecutionMode.SHARED, 0, StorageEngine.CELLS);
+        PageCache cache = kernel.getPageCache();
+        StorageBlock backing = cache.getBacking();
+        byte key[] = "data".getBytes();
+        backing.createBlock(key);
+        backing.writeCell(key, new ByteBuffer[]{ByteBuffer.wrap("hello world".getBytes())});
+        StorageBlock slow = (StorageBlock) Proxy.newProxyInstance(StorageBlock.class.getClassLoader(), new Class<?>[]{StorageBlock.class}, (proxy, method, arguments) -> {
+            if (method.getName().equals("mapCell"))
+                Thread.sleep(100);
+            try {
+                return method.invoke(backing, arguments);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+        cache.setBacking(slow);
+        kernel.setPageCacheCapacity(0);
+
+        List<Process> compute = new ArrayList<>();
+        for (int i = 0; i < 16; i ++)
+            compute.add(start(kernel, new byte[]{OP_JUMP, 0, 0, 0, 0}, new byte[0], 0));
+        ////sums what it loaded so the stack does not grow, the loop starts after the first push.
+        byte loader[] = concat(push(0), push(100), push(64), push(0), push(1), push(key.length), new byte[]{load, OP_ADD, OP_JUMP, 0, 0, 0, 0});
+        for (int i = 0; i < loaders; i ++)
+            start(kernel, loader, key, 5);
+
+        Thread.sleep(300);
+        long before = 0, after = 0;
+        for (Process process : compute)
+            before += process.getInstructionsRetired();
+        Thread.sleep(1000);
+        for (Process process : compute)
+            after += process.getInstructionsRetired();
+        kernel.haltProcesses();
+        return after - before;
+    }
+
+    /** Starts a program that ends in an OP_JUMP, the jump is pointed at the loop offset of the program in memory. */
+    private static Process start(Kernel kernel, byte program[], byte key[], int loop) throws Throwable {
+        Process process = kernel.generateProcess();
+        for (int i = 0; i < key.length; i ++)
+            process.getHeap().setByte(1 + i, key[i]);
+        process.setProgram(program);
+        kernel.getMemoryBlock().setInt(process.getProgram() + program.length - 4, process.getProgram() + loop);
+        kernel.executeProcess(process);
+        return process;
+    }
+
+    private static byte[] push(int value) {
+        return new byte[]{OP_PUSH, (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte part[] : parts)
+            stream.write(part, 0, part.length);
+        return stream.toByteArray();
+    }
+}
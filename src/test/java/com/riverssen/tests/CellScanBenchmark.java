@@ -0,0 +1,57 @@
+package com.riverssen.tests;
+
+import com.riverssen.veras.*;
+import com.riverssen.veras.exceptions.KernelNotFoundException;
+import com.riverssen.veras.exceptions.MemoryException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class CellScanBenchmark {
+    public static void main(String args[]) throws KernelNotFoundException, MemoryException, IOException {
+        for (StorageEngine engine : StorageEngine.values()) {
+            FileService directory = new FileService("benchmark/scan/" + engine);
+            directory.makeDirectories();
+            KernelImpl kernel = new KernelImpl(directory, 1024*1024*16, 500, 10000, ExecutionMode.SHARED, 0, engine);
+            StorageBlock storage = kernel.getStorageBlock();
+            StorageBlock backing = kernel.getPageCache().getBacking();
+            byte key[] = "data".getBytes();
+            byte raw[] = "raw".getBytes();
+            byte data[] = new byte[4 << 20];
+            for (int i = 0; i < data.length; i ++)
+                data[i] = (byte) (i * 31);
+            storage.createBlock(key);
+            storage.writeCell(key, new ByteBuffer[]{ByteBuffer.wrap(data)});
+            backing.createBlock(raw);
+            backing.writeCell(raw, new ByteBuffer[]{ByteBuffer.wrap(data)});
+
+            Heap heap = kernel.generateProcess().getHeap();
+            long engineBytes = 0, cachedBytes = 0, mapped = 0;
+            for (int round = 0; round < 3; round ++) {
+                engineBytes = scan(backing, raw, heap);
+                cachedBytes = scan(storage, key, heap);
+                long start = System.nanoTime();
+                ByteBuffer cell = storage.mapCell(key);
+                while (cell.hasRemaining()) {
+                    ByteBuffer window = cell.duplicate();
+                    window.limit(Math.min(cell.limit(), cell.position() + 16384));
+                    cell.position(cell.position() + heap.load(1, window));
+                }
+                mapped = System.nanoTime() - start;
+            }
+            System.out.println(engine + " scan 4MB into a 16KB window: per-byte from the engine " + engineBytes / 1000000 + "ms, per-byte through the cache " + cachedBytes / 1000000 + "ms, mapped " + mapped / 1000000 + "ms");
+            kernel.haltProcesses();
+        }
+        System.exit(0);
+    }
+
+    private static long scan(StorageBlock storage, byte key[], Heap heap) throws IOException {
+        long start = System.nanoTime();
+        CellInputStream stream = storage.openInputStream(key);
+        int b, i = 0;
+        while ((b = stream.read()) >= 0)
+            heap.setByte(1 + (i ++ & 16383), (byte) b);
+        stream.close();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,40 @@
+package com.riverssen.tests;
+
+import com.riverssen.veras.*;
+import com.riverssen.veras.exceptions.KernelNotFoundException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class PageCacheBenchmark {
+    public static void main(String args[]) throws KernelNotFoundException, IOException {
+        FileService directory = new FileService("benchmark/cache");
+        directory.makeDirectories();
+        KernelImpl kernel = new KernelImpl(directory, 1024*1024*16, 500, 10000, ExecutionMode.SHARED, 0, StorageEngine.CELLS);
+        PageCache cache = kernel.getPageCache();
+        StorageBlock backing = cache.getBacking();
+        byte key[] = "config".getBytes();
+        byte value[] = new byte[3000];
+        for (int i = 0; i < value.length; i ++)
+            value[i] = (byte) ('a' + i % 26);
+        cache.createBlock(key);
+        cache.writeCell(key, new ByteBuffer[]{ByteBuffer.wrap(value)});
+        cache.flush();
+
+        long uncached = 0, cached = 0;
+        for (int round = 0; round < 3; round ++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 20000; i ++)
+                backing.mapCell(key);
+            long middle = System.nanoTime();
+            for (int i = 0; i < 20000; i ++)
+                cache.mapCell(key);
+            long end = System.nanoTime();
+            uncached = middle - start;
+            cached = end - middle;
+        }
+        System.out.println("20000 reads of a hot 3KB cell: engine " + uncached / 1000000 + "ms, page cache " + cached / 1000000 + "ms, hits " + cache.getHits() + ", misses " + cache.getMisses());
+        kernel.haltProcesses();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,38 @@
+package com.riverssen.tests;
+
+import com.riverssen.veras.Base16;
+import com.riverssen.veras.Ripemd160;
+
+import java.util.Arrays;
+
+public class Ripemd160Vectors {
+    private static final String VECTORS[][] = {
+            { "", "9c1185a5c5e9fc54612808977ee8f548b2258d31" },
+            { "a", "0bdc9d2d256b3ee9daae347be6f4dc835a467ffe" },
+            { "abc", "8eb208f7e05d987a9b044a8e98c6b087f15a0bfc" },
+            { "message digest", "5d0689ef49d2fae572b881b123a85ffa21595f36" },
+            { "abcdefghijklmnopqrstuvwxyz", "f71c27109c692c1b56bbdceb5b9d2865b3708dbc" },
+            { "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq", "12a053384a9c0c88e405a06c27dcf49ada62eb2b" },
+            { "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789", "b0e20b6e3116640286ed3a87a5713079b21f5189" },
+            { "12345678901234567890123456789012345678901234567890123456789012345678901234567890", "9b752e45573d4b39f4dbd3323cab82bf63326bfb" } };
+
+    public static void main(String args[]) {
+        int failed = 0;
+        for (String vector[] : VECTORS)
+            failed += check("\"" + vector[0] + "\"", vector[0].getBytes(), vector[1]);
+
+        byte million[] = new byte[1000000];
+        Arrays.fill(million, (byte) 'a');
+        failed += check("a million times \"a\"", million, "52783243c1697bdbe16d37f97f68f08325dc1528");
+
+        System.out.println(failed == 0 ? "all vectors match" : failed + " vectors do not match");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static int check(String name, byte data[], String expected) {
+        String digest = Base16.encode(Ripemd160.digest(data));
+        boolean match = digest.equalsIgnoreCase(expected);
+        System.out.println((match ? "ok   " : "FAIL ") + name + " " + digest.toLowerCase());
+        return match ? 0 : 1;
+    }
+}
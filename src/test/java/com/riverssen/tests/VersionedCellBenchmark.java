@@ -0,0 +1,104 @@
+package com.riverssen.tests;
+
+import com.riverssen.veras.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VersionedCellBenchmark {
+    private static final int CELL_SIZE = 200000;
+
+    public static void main(String args[]) throws IOException, InterruptedException, ExecutionException {
+        File directory = new File("benchmark/versions");
+        directory.mkdirs();
+        StorageBlock storage = new StorageBlockImpl(new FileService(directory), 1 << 30);
+        byte key[] = "input".getBytes();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        storage.createBlock(key);
+        storage.writeCell(key, new ByteBuffer[]{ByteBuffer.wrap(fill(1))});
+        List<CellInputStream> readers = new ArrayList<>();
+        for (int i = 0; i < 40; i ++)
+            readers.add(storage.openInputStream(key));
+        CellOutputStream writer = storage.openOutputStream(key);
+        writer.write(fill(2));
+        writer.close();
+        storage.deleteBlock(key);
+        AtomicInteger stale = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (CellInputStream reader : readers)
+            futures.add(executor.submit(() -> {
+                if (read(reader) != 1)
+                    stale.incrementAndGet();
+                return null;
+            }));
+        for (Future<?> future : futures)
+            future.get();
+        System.out.println("40 readers held across a write and a delete: " + stale + " did not read the old contents");
+
+        storage.createBlock(key);
+        storage.writeCell(key, new ByteBuffer[]{ByteBuffer.wrap(fill(0))});
+        AtomicInteger reads = new AtomicInteger(), torn = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean();
+        futures.clear();
+        for (int t = 0; t < 6; t ++)
+            futures.add(executor.submit(() -> {
+                while (!stop.get()) {
+                    if (read(storage.openInputStream(key)) < 0)
+                        torn.incrementAndGet();
+                    reads.incrementAndGet();
+                }
+                return null;
+            }));
+        for (int t = 0; t < 2; t ++) {
+            final int base = t * 100;
+            futures.add(executor.submit(() -> {
+                for (int generation = 0; !stop.get(); generation = (generation + 1) % 100) {
+                    CellOutputStream stream = storage.openOutputStream(key);
+                    stream.write(fill(base + generation));
+                    stream.close();
+                }
+                return null;
+            }));
+        }
+        Thread.sleep(1500);
+        stop.set(true);
+        for (Future<?> future : futures)
+            future.get();
+        System.out.println("6 readers and 2 writers for 1.5s: " + reads + " reads, " + torn + " torn");
+        executor.shutdown();
+        System.exit(0);
+    }
+
+    private static byte[] fill(int generation) {
+        byte data[] = new byte[CELL_SIZE];
+        Arrays.fill(data, (byte) generation);
+        return data;
+    }
+
+    /** Returns the byte a whole cell was filled with, or -1 if it was torn. */
+    private static int read(CellInputStream stream) throws IOException {
+        byte buffer[] = new byte[4096];
+        int first = -2, total = 0, read;
+        boolean torn = false;
+        while ((read = stream.read(buffer)) > 0) {
+            if (first == -2)
+                first = buffer[0] & 0xFF;
+            for (int i = 0; i < read; i ++)
+                torn |= (buffer[i] & 0xFF) != first;
+            total += read;
+        }
+        stream.close();
+        return torn || total != CELL_SIZE ? -1 : first;
+    }
+}